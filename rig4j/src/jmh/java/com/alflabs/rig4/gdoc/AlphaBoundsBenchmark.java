@@ -0,0 +1,80 @@
+package com.alflabs.rig4.gdoc;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.WritableRaster;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares {@link AlphaBounds#find} with the per-pixel scan previously used by
+ * GDocHelper.cropAndResizeDrawing, on a large drawing with a small visible area.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class AlphaBoundsBenchmark {
+
+    @Param({ "4BYTE_ABGR", "INT_ARGB" })
+    public String mType;
+
+    private BufferedImage mImage;
+
+    @Setup
+    public void setUp() {
+        int type = "INT_ARGB".equals(mType) ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_4BYTE_ABGR;
+        mImage = new BufferedImage(3000, 2000, type);
+        Graphics2D g = mImage.createGraphics();
+        g.setColor(Color.BLUE);
+        g.fillRect(1000, 800, 600, 300);
+        g.dispose();
+    }
+
+    @Benchmark
+    public Rectangle bulkScan() {
+        return AlphaBounds.find(mImage);
+    }
+
+    @Benchmark
+    public Rectangle perPixelScan() {
+        int srcw = mImage.getWidth();
+        int srch = mImage.getHeight();
+        WritableRaster raster = mImage.getRaster();
+        ColorModel model = mImage.getColorModel();
+
+        int x1 = srcw;
+        int y1 = srch;
+        int x2 = 0;
+        int y2 = 0;
+        for (int y = 0; y < srch; y++) {
+            for (int x = 0; x < srcw; x++) {
+                Object elements = raster.getDataElements(x, y, null);
+                int a = model.getAlpha(elements);
+                if (a != 0) {
+                    if (x < x1) {
+                        x1 = x;
+                    } else if (x > x2) {
+                        x2 = x;
+                    }
+                    if (y < y1) {
+                        y1 = y;
+                    } else if (y > y2) {
+                        y2 = y;
+                    }
+                }
+            }
+        }
+        return new Rectangle(x1, y1, x2 - x1 + 1, y2 - y1 + 1);
+    }
+}
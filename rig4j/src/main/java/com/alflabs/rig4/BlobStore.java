@@ -3,18 +3,40 @@ package com.alflabs.rig4;
 import com.alflabs.annotations.NonNull;
 import com.alflabs.annotations.Null;
 import com.alflabs.rig4.flags.Flags;
-import com.alflabs.utils.FileOps;
+import com.alflabs.rig4.store.BloomBlobStorage;
+import com.alflabs.rig4.store.CompressedBlobStorage;
+import com.alflabs.rig4.store.DedupBlobStorage;
+import com.alflabs.rig4.store.FileBlobStorage;
+import com.alflabs.rig4.store.GcMarks;
+import com.alflabs.rig4.store.IBlobStorage;
+import com.alflabs.rig4.store.SegmentBlobStorage;
+import com.alflabs.rig4.store.StoreFileOps;
 import com.alflabs.utils.ILogger;
 import com.alflabs.utils.StringUtils;
+import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
 import com.fasterxml.jackson.databind.ObjectWriter;
 import com.google.common.base.Charsets;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.Striped;
 import org.apache.commons.codec.digest.DigestUtils;
 
 import javax.inject.Inject;
 import javax.inject.Singleton;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Type;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
 
 /**
  * The blob store caches opaque data for the application.
@@ -24,7 +46,26 @@ import java.io.IOException;
  * for a given document. The descriptor is hashed into a SHA1 and this becomes the filename stored
  * in the store.
  * <p/>
+ * The actual storage is delegated to an {@link IBlobStorage} engine selected by a flag:
+ * either one file per blob (the default) or append-only segment files.
+ * With the 'file' engine, an optional Bloom filter of the existing keys answers most misses without
+ * touching the file system.
+ * Optionally, blobs larger than a threshold are compressed; entries stored uncompressed remain
+ * readable. Streamed blobs are never compressed so that they can be memory-mapped.
+ * Optionally a content-addressed layer stores identical payloads only once, whatever the
+ * number of descriptors referring to them.
+ * <p/>
+ * All the descriptors used during a run are recorded. When garbage collection is enabled,
+ * {@link #collectGarbage()} sweeps the blobs which have not been used in the last N runs.
+ * <p/>
+ * An optional memory tier keeps recently read blobs, bounded by their total size in bytes.
+ * <p/>
+ * The store is thread-safe: operations on the same blob are serialized by striped read-write
+ * locks, and operations on different blobs run concurrently.
+ * <p/>
  * Only 3 data types are supported: String, byte[] and anything serializable via JSON.
+ * JSON blobs are pretty-printed unless the compact mode flag is set, and are parsed straight
+ * from the storage stream.
  * (optionally the store could support Java serialization or LibUtils Serial, to be added if needed).
  */
 @Singleton
@@ -33,17 +74,50 @@ public class BlobStore {
     private final boolean DEBUG = false;
 
     private static final String BLOB_STORE_DIR = "blob-store-dir";
+    private static final String BLOB_STORE_ENGINE = "blob-store-engine";
+    private static final String BLOB_STORE_MIGRATE = "blob-store-migrate";
+    private static final String BLOB_STORE_DEDUP = "blob-store-dedup";
+    private static final String BLOB_STORE_MEMORY_CACHE_MB = "blob-store-memory-cache-mb";
+    private static final String BLOB_STORE_BLOOM = "blob-store-bloom";
+    private static final String BLOB_STORE_COMPRESS_MIN_BYTES = "blob-store-compress-min-bytes";
+    private static final String BLOB_STORE_JSON_COMPACT = "blob-store-json-compact";
+    public static final String BLOB_STORE_GC = "blob-store-gc";
+    public static final String BLOB_STORE_GC_DRY_RUN = "blob-store-gc-dry-run";
+    public static final String BLOB_STORE_GC_KEEP_RUNS = "blob-store-gc-keep-runs";
+
+    public static final String ENGINE_FILE = "file";
+    public static final String ENGINE_SEGMENT = "segment";
+    private static final String SEGMENTS_DIR = "segments";
+    private static final String GC_MARKS_NAME = "blob_store.gc";
+    private static final String BLOOM_NAME = "blob_store.bloom";
+    private static final int LOCK_STRIPES = 256;
+    /** Blobs larger than this fraction of the memory tier are not kept in it. */
+    private static final int MEMORY_CACHE_MAX_ENTRY_RATIO = 16;
 
     private final Flags mFlags;
-    private final FileOps mFileOps;
+    private final StoreFileOps mFileOps;
     private final ILogger mLogger;
+    private final Timing mTimingRoot;
     private final Timing.TimeAccumulator mTiming;
+    private final Set<String> mTouchedKeys = ConcurrentHashMap.newKeySet();
+    private final Striped<ReadWriteLock> mLocks = Striped.readWriteLock(LOCK_STRIPES);
+    // Mappers are expensive to create; readers and writers are immutable and thread-safe.
+    private final ObjectMapper mObjectMapper = new ObjectMapper();
+    private final Map<Type, ObjectReader> mJsonReaders = new ConcurrentHashMap<>();
+    private final Map<Class<?>, ObjectWriter> mJsonWriters = new ConcurrentHashMap<>();
+    private volatile IBlobStorage mStorage;
+    // These are set along with mStorage and only accessed after getStorage().
+    private Cache<String, byte[]> mMemoryCache;
+    private long mMemoryCacheMaxEntry;
+    private Timing.Counter mMemoryCacheHits;
+    private Timing.Counter mMemoryCacheMisses;
 
     @Inject
-    public BlobStore(Flags flags, FileOps fileOps, Timing timing, ILogger logger) {
+    public BlobStore(Flags flags, StoreFileOps fileOps, Timing timing, ILogger logger) {
         mFlags = flags;
         mFileOps = fileOps;
         mLogger = logger;
+        mTimingRoot = timing;
         mTiming = timing.get("BlobStore");
     }
 
@@ -51,6 +125,81 @@ public class BlobStore {
         mFlags.addString(BLOB_STORE_DIR,
                 "~/.rig42/blob_store",
                 "Directory where Rig4j caches local data.");
+        mFlags.addString(BLOB_STORE_ENGINE,
+                ENGINE_FILE,
+                "Blob store engine: 'file' (one file per blob) or 'segment' (append-only segment files).");
+        mFlags.addBool(BLOB_STORE_MIGRATE,
+                false,
+                "Moves all the blobs from the 'file' engine into the 'segment' engine at startup.");
+        mFlags.addBool(BLOB_STORE_DEDUP,
+                false,
+                "Stores identical blobs only once, referenced by their content hash.");
+        mFlags.addInt(BLOB_STORE_MEMORY_CACHE_MB,
+                0,
+                "Size in MB of the in-memory tier caching blobs read during a run. 0 to disable.");
+        mFlags.addBool(BLOB_STORE_BLOOM,
+                false,
+                "Answers lookups of missing blobs from a Bloom filter instead of the file system ('file' engine only).");
+        mFlags.addInt(BLOB_STORE_COMPRESS_MIN_BYTES,
+                0,
+                "Blobs smaller than this are stored uncompressed. 0 to disable compression.");
+        mFlags.addBool(BLOB_STORE_JSON_COMPACT,
+                false,
+                "Stores JSON blobs without pretty-printing.");
+        mFlags.addBool(BLOB_STORE_GC,
+                false,
+                "Removes the blob and hash store entries not used in the last runs.");
+        mFlags.addBool(BLOB_STORE_GC_DRY_RUN,
+                false,
+                "Only reports what the garbage collection would remove.");
+        mFlags.addInt(BLOB_STORE_GC_KEEP_RUNS,
+                5,
+                "Number of runs during which an unused entry is kept by the garbage collection.");
+    }
+
+    /**
+     * Returns a file located directly in the blob store directory.
+     * This is used by the {@link HashStore} to keep its snapshot next to the blobs.
+     */
+    @NonNull
+    public File getStoreFile(@NonNull String name) {
+        return new File(StringUtils.expandUserHome(mFlags.getString(BLOB_STORE_DIR)), name);
+    }
+
+    /** Returns the file operations to use for the files of the blob store directory. */
+    @NonNull
+    public StoreFileOps getFileOps() {
+        return mFileOps;
+    }
+
+    /**
+     * Persists any pending state of the storage engine.
+     * This should be called once at the end of a run.
+     */
+    public void flush() throws IOException {
+        mTiming.start();
+        try {
+            synchronized (this) {
+                if (mStorage != null) {
+                    mStorage.flush();
+                }
+            }
+        } finally {
+            mTiming.end();
+        }
+    }
+
+    /**
+     * Releases the resources held by the storage engine, e.g. open files and threads.
+     * This should be called once at the very end of a run, after {@link #flush()}.
+     */
+    public void close() throws IOException {
+        synchronized (this) {
+            if (mStorage != null) {
+                mStorage.close();
+                mStorage = null;
+            }
+        }
     }
 
     public void putBytes(@NonNull String descriptor, @NonNull byte[] content) throws IOException {
@@ -63,7 +212,107 @@ public class BlobStore {
     public byte[] getBytes(@NonNull String descriptor) throws IOException {
         mTiming.start();
         try {
-            return retrieve(descriptor, "b");
+            byte[] content = retrieve(descriptor, "b");
+            // Don't let the caller modify the array held by the memory tier.
+            return content != null && mMemoryCache != null ? content.clone() : content;
+        } finally {
+            mTiming.end();
+        }
+    }
+
+    /**
+     * Stores the byte content read from the given stream till its end, without holding it all in
+     * memory. The stream is not closed. The data can be read back using {@link #getBytes},
+     * {@link #getStream} or {@link #getMapped}.
+     */
+    public void putStream(@NonNull String descriptor, @NonNull InputStream content) throws IOException {
+        mTiming.start();
+        try {
+            String key = DigestUtils.sha256Hex(descriptor) + "b";
+            mTouchedKeys.add(key);
+            Lock lock = mLocks.get(key).writeLock();
+            lock.lock();
+            try {
+                IBlobStorage storage = getStorage();
+                invalidate(key);
+                storage.write(key, content);
+            } finally {
+                lock.unlock();
+            }
+        } finally {
+            mTiming.end();
+        }
+    }
+
+    /**
+     * Returns a stream on the byte content for the given descriptor, or null if missing.
+     * Large blobs are read from a memory-mapped file rather than copied on the heap.
+     * The caller must close the stream.
+     */
+    @Null
+    public InputStream getStream(@NonNull String descriptor) throws IOException {
+        mTiming.start();
+        try {
+            String key = DigestUtils.sha256Hex(descriptor) + "b";
+            mTouchedKeys.add(key);
+            // Engines return streams which are not affected by a later write of the same blob.
+            Lock lock = mLocks.get(key).readLock();
+            lock.lock();
+            try {
+                IBlobStorage storage = getStorage();
+                byte[] cached = mMemoryCache == null ? null : mMemoryCache.getIfPresent(key);
+                if (cached != null) {
+                    mMemoryCacheHits.increment();
+                    return new ByteArrayInputStream(cached);
+                }
+                return storage.openRead(key);
+            } finally {
+                lock.unlock();
+            }
+        } finally {
+            mTiming.end();
+        }
+    }
+
+    /**
+     * Returns a read-only buffer on the byte content for the given descriptor, or null if missing.
+     * Large blobs are memory-mapped rather than copied on the heap.
+     */
+    @Null
+    public ByteBuffer getMapped(@NonNull String descriptor) throws IOException {
+        mTiming.start();
+        try {
+            String key = DigestUtils.sha256Hex(descriptor) + "b";
+            mTouchedKeys.add(key);
+            Lock lock = mLocks.get(key).readLock();
+            lock.lock();
+            try {
+                return getStorage().map(key);
+            } finally {
+                lock.unlock();
+            }
+        } finally {
+            mTiming.end();
+        }
+    }
+
+    /** Returns true if there is byte content for the given descriptor, without reading it. */
+    public boolean containsBytes(@NonNull String descriptor) throws IOException {
+        mTiming.start();
+        try {
+            String key = DigestUtils.sha256Hex(descriptor) + "b";
+            mTouchedKeys.add(key);
+            Lock lock = mLocks.get(key).readLock();
+            lock.lock();
+            try {
+                IBlobStorage storage = getStorage();
+                if (mMemoryCache != null && mMemoryCache.getIfPresent(key) != null) {
+                    return true;
+                }
+                return storage.contains(key);
+            } finally {
+                lock.unlock();
+            }
         } finally {
             mTiming.end();
         }
@@ -100,8 +349,10 @@ public class BlobStore {
         // }
 
         // Version using the Jackson ObjectMapper API.
-        ObjectMapper mapper = new ObjectMapper();
-        ObjectWriter writer = mapper.writerWithDefaultPrettyPrinter();
+        ObjectWriter writer = mJsonWriters.computeIfAbsent(content.getClass(), clazz ->
+                mFlags.getBool(BLOB_STORE_JSON_COMPACT)
+                        ? mObjectMapper.writerFor(clazz)
+                        : mObjectMapper.writerFor(clazz).withDefaultPrettyPrinter());
         byte[] bytes = writer.writeValueAsBytes(content);
         store(descriptor, "j", bytes);
         mTiming.end();
@@ -111,11 +362,9 @@ public class BlobStore {
     public <T> T getJson(@NonNull String descriptor, @NonNull Class<T> clazz) throws IOException {
         mTiming.start();
         try {
-            byte[] bytes = retrieve(descriptor, "j");
-            if (bytes == null) return null;
             // Version using the Jackson ObjectMapper API.
-            ObjectMapper mapper = new ObjectMapper();
-            return mapper.readValue(bytes, clazz);
+            ObjectReader reader = mJsonReaders.computeIfAbsent(clazz, t -> mObjectMapper.readerFor(clazz));
+            return readJson(descriptor, reader);
 
             // // Example version using the com.google.api.client.json.JsonParser API.
             // try (ByteArrayInputStream bais = new ByteArrayInputStream(bytes)) {
@@ -127,20 +376,256 @@ public class BlobStore {
         }
     }
 
+    /** Same as {@link #getJson(String, Class)} for generic types, e.g. lists of structs. */
+    @Null
+    public <T> T getJson(@NonNull String descriptor, @NonNull TypeReference<T> type) throws IOException {
+        mTiming.start();
+        try {
+            ObjectReader reader = mJsonReaders.computeIfAbsent(type.getType(), t -> mObjectMapper.readerFor(type));
+            return readJson(descriptor, reader);
+        } finally {
+            mTiming.end();
+        }
+    }
+
+    /**
+     * Removes the data for the given descriptor, whatever its type.
+     * Returns true if anything was removed.
+     */
+    public boolean remove(@NonNull String descriptor) throws IOException {
+        mTiming.start();
+        try {
+            String key = DigestUtils.sha256Hex(descriptor);
+            boolean removed = delete(key + "b");
+            removed |= delete(key + "s");
+            removed |= delete(key + "j");
+            return removed;
+        } finally {
+            mTiming.end();
+        }
+    }
+
+    /**
+     * Marks the data for the given descriptor as still in use during this run, without reading it.
+     * Data which is read or written is automatically marked.
+     */
+    public void keep(@NonNull String descriptor) {
+        String key = DigestUtils.sha256Hex(descriptor);
+        mTouchedKeys.add(key + "b");
+        mTouchedKeys.add(key + "s");
+        mTouchedKeys.add(key + "j");
+    }
+
+    /**
+     * Sweeps the blobs which have not been used in the last N runs, if enabled by the flags.
+     * This should be called once at the end of a successful run, before {@link #flush()}.
+     */
+    public void collectGarbage() throws IOException {
+        if (!mFlags.getBool(BLOB_STORE_GC)) {
+            return;
+        }
+        mTiming.start();
+        try {
+            boolean dryRun = mFlags.getBool(BLOB_STORE_GC_DRY_RUN);
+            IBlobStorage storage = getStorage();
+            GcMarks marks = new GcMarks(mLogger, getStoreFile(GC_MARKS_NAME));
+            List<String> stale = marks.collect(
+                    mTouchedKeys,
+                    storage.keys(),
+                    mFlags.getInt(BLOB_STORE_GC_KEEP_RUNS));
+            mTouchedKeys.clear();
+
+            long bytes = 0;
+            for (String key : stale) {
+                bytes += storage.size(key);
+                if (!dryRun) {
+                    delete(key);
+                    marks.forget(key);
+                }
+            }
+            marks.save();
+            mLogger.d(TAG, String.format("GC: %s %d blobs, %d bytes",
+                    dryRun ? "could reclaim" : "reclaimed", stale.size(), bytes));
+        } finally {
+            mTiming.end();
+        }
+    }
+
     private void store(@NonNull String descriptor, @NonNull String suffix, @NonNull byte[] content) throws IOException {
         String key = DigestUtils.sha256Hex(descriptor) + suffix;
-        File file = new File(StringUtils.expandUserHome(mFlags.getString(BLOB_STORE_DIR)), key);
-        mFileOps.createParentDirs(file);
-        mFileOps.writeBytes(content, file);
-        if (DEBUG) mLogger.d(TAG, "BLOB >> Store " + content.length + " bytes to " + file.getPath());
+        mTouchedKeys.add(key);
+        Lock lock = mLocks.get(key).writeLock();
+        lock.lock();
+        try {
+            IBlobStorage storage = getStorage();
+            // Only blobs which are read back are kept in the memory tier.
+            invalidate(key);
+            storage.write(key, content);
+        } finally {
+            lock.unlock();
+        }
     }
 
     private byte[] retrieve(@NonNull String descriptor, @NonNull String suffix) throws IOException {
         String key = DigestUtils.sha256Hex(descriptor) + suffix;
-        File file = new File(StringUtils.expandUserHome(mFlags.getString(BLOB_STORE_DIR)), key);
-        if (!mFileOps.isFile(file)) return null;
-        byte[] content = mFileOps.readBytes(file);
-        if (DEBUG) mLogger.d(TAG, "BLOB << Read  " + content.length + " bytes from " + file.getPath());
-        return content;
+        mTouchedKeys.add(key);
+        Lock lock = mLocks.get(key).readLock();
+        lock.lock();
+        try {
+            IBlobStorage storage = getStorage();
+            if (mMemoryCache == null) {
+                return storage.read(key);
+            }
+            byte[] content = mMemoryCache.getIfPresent(key);
+            if (content != null) {
+                mMemoryCacheHits.increment();
+                return content;
+            }
+            mMemoryCacheMisses.increment();
+            content = storage.read(key);
+            if (content != null && content.length <= mMemoryCacheMaxEntry) {
+                mMemoryCache.put(key, content);
+            }
+            return content;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Parses a JSON blob straight from the storage stream (memory-mapped for large blobs)
+     * rather than reading it in a byte array first, unless the memory tier is enabled.
+     */
+    @Null
+    private <T> T readJson(@NonNull String descriptor, @NonNull ObjectReader reader) throws IOException {
+        String key = DigestUtils.sha256Hex(descriptor) + "j";
+        mTouchedKeys.add(key);
+        IBlobStorage storage = getStorage();
+        if (mMemoryCache != null) {
+            byte[] bytes = retrieve(descriptor, "j");
+            return bytes == null ? null : reader.readValue(bytes);
+        }
+        // Engines return streams which are not affected by a later write of the same blob.
+        InputStream stream;
+        Lock lock = mLocks.get(key).readLock();
+        lock.lock();
+        try {
+            stream = storage.openRead(key);
+        } finally {
+            lock.unlock();
+        }
+        if (stream == null) return null;
+        try (InputStream in = stream) {
+            return reader.readValue(in);
+        }
+    }
+
+    private boolean delete(@NonNull String key) throws IOException {
+        Lock lock = mLocks.get(key).writeLock();
+        lock.lock();
+        try {
+            IBlobStorage storage = getStorage();
+            invalidate(key);
+            return storage.delete(key);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Removes a blob from the memory tier. Must be called with the blob's write lock. */
+    private void invalidate(@NonNull String key) {
+        if (mMemoryCache != null) {
+            mMemoryCache.invalidate(key);
+        }
+    }
+
+    /**
+     * Lazily creates the storage engine. This can't be done in the constructor since the
+     * flags are only parsed after the store has been created.
+     */
+    @NonNull
+    private IBlobStorage getStorage() throws IOException {
+        IBlobStorage storage = mStorage;
+        if (storage != null) {
+            return storage;
+        }
+        synchronized (this) {
+            if (mStorage == null) {
+                createMemoryCache();
+                mStorage = createStorage();
+            }
+            return mStorage;
+        }
+    }
+
+    private void createMemoryCache() {
+        long maxBytes = 1024L * 1024L * mFlags.getInt(BLOB_STORE_MEMORY_CACHE_MB);
+        if (maxBytes <= 0) {
+            return;
+        }
+        // Weighted by size so that the bound is on total bytes; a large blob evicts as many
+        // bytes as it needs rather than a fixed number of entries. Blobs which are too large
+        // for the tier are not admitted at all, so that they can't flush many small ones.
+        mMemoryCache = CacheBuilder.newBuilder()
+                .maximumWeight(maxBytes)
+                .weigher((String key, byte[] content) -> content.length)
+                .build();
+        mMemoryCacheMaxEntry = maxBytes / MEMORY_CACHE_MAX_ENTRY_RATIO;
+        mMemoryCacheHits = mTimingRoot.getCounter("BlobStore.memory.hits");
+        mMemoryCacheMisses = mTimingRoot.getCounter("BlobStore.memory.misses");
+    }
+
+    @NonNull
+    private IBlobStorage createStorage() throws IOException {
+        IBlobStorage storage;
+        String dirPath = StringUtils.expandUserHome(mFlags.getString(BLOB_STORE_DIR));
+        FileBlobStorage fileStorage = new FileBlobStorage(mFileOps, mLogger, dirPath);
+        if (ENGINE_SEGMENT.equals(mFlags.getString(BLOB_STORE_ENGINE))) {
+            SegmentBlobStorage segmentStorage =
+                    new SegmentBlobStorage(mFileOps, mLogger, new File(dirPath, SEGMENTS_DIR));
+            if (mFlags.getBool(BLOB_STORE_MIGRATE)) {
+                migrate(fileStorage, segmentStorage);
+            }
+            storage = segmentStorage;
+        } else if (mFlags.getBool(BLOB_STORE_BLOOM)) {
+            // The segment engine already has all its keys in memory.
+            storage = new BloomBlobStorage(mFileOps, mLogger, fileStorage, getStoreFile(BLOOM_NAME),
+                    mTimingRoot.getCounter("BlobStore.bloom.avoided"),
+                    mTimingRoot.getCounter("BlobStore.bloom.false-positives"));
+        } else {
+            storage = fileStorage;
+        }
+        int compressMinBytes = mFlags.getInt(BLOB_STORE_COMPRESS_MIN_BYTES);
+        if (compressMinBytes > 0) {
+            // Below the dedup layer, so that payloads are still addressed by their raw content.
+            storage = new CompressedBlobStorage(storage, compressMinBytes);
+        }
+        if (mFlags.getBool(BLOB_STORE_DEDUP)) {
+            storage = new DedupBlobStorage(mLogger, storage);
+        }
+        if (DEBUG) mLogger.d(TAG, "Storage engine: " + storage.getClass().getSimpleName());
+        return storage;
+    }
+
+    /**
+     * One-shot migration: copies all the blobs from one engine to the other then removes them
+     * from the source once the destination has been flushed. Running it again is a no-op.
+     */
+    private void migrate(@NonNull IBlobStorage from, @NonNull IBlobStorage to) throws IOException {
+        Set<String> keys = from.keys();
+        if (keys.isEmpty()) {
+            return;
+        }
+        mLogger.d(TAG, "Migrating " + keys.size() + " blobs to the " + ENGINE_SEGMENT + " engine");
+        for (String key : keys) {
+            byte[] content = from.read(key);
+            if (content != null) {
+                to.write(key, content);
+            }
+        }
+        to.flush();
+        for (String key : keys) {
+            from.delete(key);
+        }
     }
 }
@@ -27,7 +27,10 @@ public class EntryPoint {
         component.getBlogFlags().declareFlags();
         component.getTemplater().declareFlags();
         component.getBlobStore().declareFlags();
+        component.getHashStore().declareFlags();
         component.getGDocReader().declareFlags();
+        component.getRetryPolicy().declareFlags();
+        component.getImageFormatPredictor().declareFlags();
 
         flags.addBool(FLAG_HELP, false, "Displays help and exits");
         flags.addBool(FLAG_VERSION, false, "Display the version and exits");
@@ -2,13 +2,27 @@ package com.alflabs.rig4;
 
 import com.alflabs.annotations.NonNull;
 import com.alflabs.annotations.Null;
+import com.alflabs.rig4.flags.Flags;
+import com.alflabs.rig4.store.GcMarks;
+import com.alflabs.rig4.store.StoreFileOps;
+import com.alflabs.utils.IClock;
 import com.alflabs.utils.ILogger;
+import com.google.common.base.Charsets;
 
 import javax.inject.Inject;
 import javax.inject.Singleton;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * The hash store caches short opaque strings for the application.
@@ -19,40 +33,245 @@ import java.util.Map;
  * <p/>
  * The difference between {@link HashStore} and {@link BlobStore} is essentially semantic.
  * <p/>
- * There might be some optimization details in the implementation such as caching or loading
- * the store in-memory, which is why clients should not store large values.
+ * All entries are loaded at once from a single memory-mapped snapshot file, and mutations are
+ * only kept in memory till {@link #flush()} is called at the end of the run or till a size or
+ * time threshold is reached. The snapshot is written to a temp file and atomically renamed so
+ * that a crash never leaves a torn snapshot. This is why clients should not store large values.
+ * <p/>
+ * Once a snapshot exists, it has all the entries and a miss is a miss. Before that, entries from
+ * older versions, stored as individual {@link BlobStore} strings, are read on a miss and moved
+ * into the snapshot. Their descriptors are hashed so they can't be listed and migrated upfront;
+ * this fallback stays active for the whole run which writes the first snapshot.
+ * <p/>
+ * The store is thread-safe. Lookups and updates only go through a concurrent map; loading and
+ * writing the snapshot are serialized.
+ * <p/>
+ * Snapshot entries not used in the last N runs are removed by {@link #collectGarbage()} using
+ * the same flags as the {@link BlobStore} garbage collection.
  */
 @Singleton
 public class HashStore {
     private static final String TAG = HashStore.class.getSimpleName();
     private final boolean DEBUG = false;
 
-    private final Map<String, String> mCache = new HashMap<>();
+    private static final String HASH_STORE_SNAPSHOT = "hash-store-snapshot";
+    private static final String HASH_STORE_FLUSH_COUNT = "hash-store-flush-count";
+    private static final String HASH_STORE_FLUSH_SECONDS = "hash-store-flush-seconds";
+
+    private static final String SNAPSHOT_NAME = "hash_store.snapshot";
+    private static final int SNAPSHOT_MAGIC = 0x52344853; // "R4HS"
+    private static final int SNAPSHOT_VERSION = 1;
+    private static final String GC_MARKS_NAME = "hash_store.gc";
+
+    private final Map<String, String> mCache = new ConcurrentHashMap<>();
+    private final Set<String> mTouched = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger mPendingCount = new AtomicInteger();
+    private final Flags mFlags;
+    private final IClock mClock;
     private final ILogger mLogger;
     private final BlobStore mBlobStore;
+    private volatile boolean mSnapshotLoaded;
+    /** True till a snapshot is found: misses then fall back on the legacy per-blob entries. */
+    private volatile boolean mLegacyFallback = true;
+    private volatile long mLastFlushTS;
 
     @Inject
-    public HashStore(ILogger logger, BlobStore blobStore) {
+    public HashStore(Flags flags, IClock clock, ILogger logger, BlobStore blobStore) {
+        mFlags = flags;
+        mClock = clock;
         mLogger = logger;
         mBlobStore = blobStore;
     }
 
+    public void declareFlags() {
+        mFlags.addBool(HASH_STORE_SNAPSHOT,
+                true,
+                "Keeps the hash store in a single snapshot file instead of one blob per hash.");
+        mFlags.addInt(HASH_STORE_FLUSH_COUNT,
+                1000,
+                "Number of pending hash store changes that triggers a snapshot write.");
+        mFlags.addInt(HASH_STORE_FLUSH_SECONDS,
+                60,
+                "Delay in seconds after which pending hash store changes trigger a snapshot write.");
+    }
+
     public void putString(@NonNull String descriptor, @NonNull String content) throws IOException {
         if (DEBUG) mLogger.d(TAG, "HASH >> write [" + descriptor + "] = " + content);
-        mBlobStore.putString(descriptor, content);
-        mCache.put(descriptor, content);
+        if (!useSnapshot()) {
+            mBlobStore.putString(descriptor, content);
+            mCache.put(descriptor, content);
+            return;
+        }
+
+        loadSnapshot();
+        mTouched.add(descriptor);
+        if (!content.equals(mCache.put(descriptor, content))) {
+            mPendingCount.incrementAndGet();
+            maybeFlush();
+        }
     }
 
     @Null
     public String getString(@NonNull String descriptor) throws IOException {
+        if (useSnapshot()) {
+            loadSnapshot();
+            mTouched.add(descriptor);
+        }
         String content = mCache.get(descriptor);
-        if (content == null) {
+        if (content == null && mLegacyFallback) {
+            // Fallback on the legacy per-blob storage.
             content = mBlobStore.getString(descriptor);
             if (DEBUG) mLogger.d(TAG, "HASH << read [" + descriptor + "] = " + content);
             if (content != null) {
-                mCache.put(descriptor, content);
+                // Don't overwrite a value put concurrently by another thread.
+                String current = mCache.putIfAbsent(descriptor, content);
+                if (current != null) {
+                    content = current;
+                } else if (useSnapshot()) {
+                    // Migrate the legacy entry into the next snapshot.
+                    mPendingCount.incrementAndGet();
+                }
             }
         }
         return content;
     }
+
+    /**
+     * Writes all pending changes to the snapshot file.
+     * This should be called once at the end of a run.
+     */
+    public synchronized void flush() throws IOException {
+        if (mPendingCount.get() == 0 || !useSnapshot()) {
+            return;
+        }
+        // Changes made concurrently from now on are counted for the next flush.
+        int pendingCount = mPendingCount.getAndSet(0);
+        try {
+            writeSnapshot();
+        } catch (IOException e) {
+            mPendingCount.addAndGet(pendingCount);
+            throw e;
+        }
+        if (DEBUG) mLogger.d(TAG, "HASH >> snapshot " + mCache.size() + " entries, " + pendingCount + " changed");
+        mLastFlushTS = mClock.elapsedRealtime();
+    }
+
+    private void writeSnapshot() throws IOException {
+        // Copy the entries first so that the count matches even with concurrent changes.
+        Map<String, String> entries = new HashMap<>(mCache);
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(baos)) {
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(SNAPSHOT_VERSION);
+            out.writeInt(entries.size());
+            for (Map.Entry<String, String> entry : entries.entrySet()) {
+                writeString(out, entry.getKey());
+                writeString(out, entry.getValue());
+            }
+        }
+        StoreFileOps fileOps = mBlobStore.getFileOps();
+        File file = mBlobStore.getStoreFile(SNAPSHOT_NAME);
+        fileOps.createParentDirs(file);
+        fileOps.writeAtomically(baos.toByteArray(), file, true /* sync */);
+    }
+
+    /**
+     * Removes the snapshot entries which have not been used in the last N runs, if enabled by
+     * the {@link BlobStore} garbage collection flags. Without a snapshot, the hash store entries
+     * are blobs and are collected by the {@link BlobStore} itself.
+     * This should be called once at the end of a successful run, before {@link #flush()}.
+     */
+    public synchronized void collectGarbage() throws IOException {
+        if (!mFlags.getBool(BlobStore.BLOB_STORE_GC) || !useSnapshot()) {
+            return;
+        }
+        loadSnapshot();
+        boolean dryRun = mFlags.getBool(BlobStore.BLOB_STORE_GC_DRY_RUN);
+        GcMarks marks = new GcMarks(mLogger, mBlobStore.getStoreFile(GC_MARKS_NAME));
+        List<String> stale = marks.collect(
+                mTouched,
+                mCache.keySet(),
+                mFlags.getInt(BlobStore.BLOB_STORE_GC_KEEP_RUNS));
+        mTouched.clear();
+
+        long bytes = 0;
+        for (String key : stale) {
+            bytes += key.length() + mCache.get(key).length();
+            if (!dryRun) {
+                mCache.remove(key);
+                marks.forget(key);
+                mPendingCount.incrementAndGet();
+            }
+        }
+        marks.save();
+        mLogger.d(TAG, String.format("GC: %s %d hashes, %d bytes",
+                dryRun ? "could reclaim" : "reclaimed", stale.size(), bytes));
+    }
+
+    private boolean useSnapshot() {
+        return mFlags.getBool(HASH_STORE_SNAPSHOT);
+    }
+
+    private void maybeFlush() throws IOException {
+        long elapsedMs = mClock.elapsedRealtime() - mLastFlushTS;
+        if (mPendingCount.get() >= mFlags.getInt(HASH_STORE_FLUSH_COUNT)
+                || elapsedMs >= 1000L * mFlags.getInt(HASH_STORE_FLUSH_SECONDS)) {
+            flush();
+        }
+    }
+
+    private void loadSnapshot() throws IOException {
+        if (mSnapshotLoaded) {
+            return;
+        }
+        synchronized (this) {
+            if (!mSnapshotLoaded) {
+                readSnapshot();
+                mSnapshotLoaded = true;
+            }
+        }
+    }
+
+    private void readSnapshot() throws IOException {
+        mLastFlushTS = mClock.elapsedRealtime();
+
+        StoreFileOps fileOps = mBlobStore.getFileOps();
+        File file = mBlobStore.getStoreFile(SNAPSHOT_NAME);
+        if (!fileOps.isFile(file)) {
+            return;
+        }
+
+        try {
+            ByteBuffer buffer = fileOps.map(file);
+            if (buffer.getInt() != SNAPSHOT_MAGIC || buffer.getInt() != SNAPSHOT_VERSION) {
+                mLogger.d(TAG, "Ignoring unknown snapshot format in " + file.getPath());
+                return;
+            }
+            int count = buffer.getInt();
+            for (int i = 0; i < count; i++) {
+                String key = readString(buffer);
+                String value = readString(buffer);
+                mCache.put(key, value);
+            }
+            mLegacyFallback = false;
+            mLogger.d(TAG, "Loaded " + count + " hashes from " + file.getPath());
+        } catch (BufferUnderflowException e) {
+            // This can't happen with the atomic rename, unless the file was modified externally.
+            mLogger.d(TAG, "Ignoring truncated snapshot " + file.getPath());
+            mCache.clear();
+        }
+    }
+
+    private static void writeString(@NonNull DataOutputStream out, @NonNull String str) throws IOException {
+        byte[] bytes = str.getBytes(Charsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    @NonNull
+    private static String readString(@NonNull ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, Charsets.UTF_8);
+    }
 }
@@ -4,6 +4,8 @@ import com.alflabs.rig4.blog.BlogFlags;
 import com.alflabs.rig4.exp.Exp;
 import com.alflabs.rig4.exp.ExpFlags;
 import com.alflabs.rig4.gdoc.GDocReader;
+import com.alflabs.rig4.gdoc.ImageFormatPredictor;
+import com.alflabs.rig4.gdoc.RetryPolicy;
 import com.alflabs.rig4.exp.Templater;
 import com.alflabs.rig4.flags.Flags;
 import com.alflabs.utils.ILogger;
@@ -20,7 +22,10 @@ public interface IRigComponent {
     ExpFlags getExpFlags();
     BlogFlags getBlogFlags();
     GDocReader getGDocReader();
+    RetryPolicy getRetryPolicy();
+    ImageFormatPredictor getImageFormatPredictor();
     BlobStore getBlobStore();
+    HashStore getHashStore();
     Templater getTemplater();
     ILogger getLogger();
 
@@ -1,7 +1,9 @@
 package com.alflabs.rig4;
 
 import com.alflabs.rig4.gdoc.GDocReader;
+import com.alflabs.rig4.gdoc.RetryPolicy;
 import com.alflabs.rig4.flags.Flags;
+import com.alflabs.rig4.store.StoreFileOps;
 import com.alflabs.utils.FileOps;
 import com.alflabs.utils.IClock;
 import com.alflabs.utils.ILogger;
@@ -29,6 +31,12 @@ public class RigModule {
         return new FileOps();
     }
 
+    @Singleton
+    @Provides
+    public StoreFileOps provideStoreFileOps() {
+        return new StoreFileOps();
+    }
+
     @Singleton
     @Provides
     public ILogger provideILogger() {
@@ -37,8 +45,16 @@ public class RigModule {
 
     @Singleton
     @Provides
-    public GDocReader provideGDocReader(JsonFactory jsonFactory, Flags flags, Timing timing, ILogger logger) {
-        return new GDocReader(jsonFactory, flags, timing, logger);
+    public GDocReader provideGDocReader(
+            JsonFactory jsonFactory,
+            Flags flags,
+            IClock clock,
+            Timing timing,
+            ILogger logger,
+            BlobStore blobStore,
+            HashStore hashStore,
+            RetryPolicy retryPolicy) {
+        return new GDocReader(jsonFactory, flags, clock, timing, logger, blobStore, hashStore, retryPolicy);
     }
 
     @Singleton
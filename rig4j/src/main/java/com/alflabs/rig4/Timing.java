@@ -8,12 +8,22 @@ import javax.inject.Inject;
 import javax.inject.Singleton;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * Accumulates the time spent in named sections of the code.
+ * <p/>
+ * Accumulators can be used from several threads: each thread tracks its own start time and
+ * the elapsed times of all threads are summed.
+ * <p/>
+ * Named counters can also be used to report event counts (e.g. cache hits) along with the times.
+ */
 @Singleton
 public class Timing {
     private final IClock mClock;
     private final ILogger mLogger;
-    private Map<String, TimeAccumulator> mMap = new TreeMap<>();
+    private final Map<String, TimeAccumulator> mMap = new TreeMap<>();
+    private final Map<String, Counter> mCounters = new TreeMap<>();
 
     @Inject
     public Timing(IClock clock, ILogger logger) {
@@ -21,7 +31,7 @@ public class Timing {
         mLogger = logger;
     }
 
-    public TimeAccumulator get(@NonNull String name) {
+    public synchronized TimeAccumulator get(@NonNull String name) {
         TimeAccumulator a = mMap.get(name);
         if (a == null) {
             a = new TimeAccumulator(name);
@@ -30,33 +40,47 @@ public class Timing {
         return a;
     }
 
-    public void printToLog() {
+    public synchronized Counter getCounter(@NonNull String name) {
+        Counter c = mCounters.get(name);
+        if (c == null) {
+            c = new Counter(name);
+            mCounters.put(name, c);
+        }
+        return c;
+    }
+
+    public synchronized void printToLog() {
         for (Map.Entry<String, TimeAccumulator> entry : mMap.entrySet()) {
             mLogger.d("Timing",
                     String.format("%s = %.3f s", entry.getKey(),
                             entry.getValue().getAccumulator() / 1000.0f));
         }
+        for (Map.Entry<String, Counter> entry : mCounters.entrySet()) {
+            mLogger.d("Timing",
+                    String.format("%s = %d", entry.getKey(), entry.getValue().getCount()));
+        }
     }
 
     public class TimeAccumulator {
         private final String mName;
-        private long mStart;
-        private long mAccumulator;
+        private final ThreadLocal<Long> mStart = new ThreadLocal<>();
+        private final AtomicLong mAccumulator = new AtomicLong();
 
         public TimeAccumulator(@NonNull String name) {
             mName = name;
         }
 
         public TimeAccumulator start() {
-            mStart = mClock.elapsedRealtime();
+            mStart.set(mClock.elapsedRealtime());
             return this;
         }
 
         public void end() {
-            if (mStart > 0) {
-                long delay = mClock.elapsedRealtime() - mStart;
-                mAccumulator += delay;
-                mStart = 0;
+            Long start = mStart.get();
+            if (start != null) {
+                long delay = mClock.elapsedRealtime() - start;
+                mAccumulator.addAndGet(delay);
+                mStart.remove();
             }
         }
 
@@ -65,7 +89,32 @@ public class Timing {
         }
 
         public long getAccumulator() {
-            return mAccumulator;
+            return mAccumulator.get();
+        }
+    }
+
+    public static class Counter {
+        private final String mName;
+        private final AtomicLong mCount = new AtomicLong();
+
+        public Counter(@NonNull String name) {
+            mName = name;
+        }
+
+        public void increment() {
+            mCount.incrementAndGet();
+        }
+
+        public void add(long delta) {
+            mCount.addAndGet(delta);
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        public long getCount() {
+            return mCount.get();
         }
     }
 }
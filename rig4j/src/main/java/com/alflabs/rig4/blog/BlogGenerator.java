@@ -10,6 +10,8 @@ import com.alflabs.rig4.blog.posttree.PostTree;
 import com.alflabs.rig4.blog.sourcetree.SourceBlog;
 import com.alflabs.rig4.blog.sourcetree.SourceBlogPost;
 import com.alflabs.rig4.blog.sourcetree.SourceTree;
+import com.alflabs.rig4.exp.DownloadPool;
+import com.alflabs.rig4.exp.EntityPrefetcher;
 import com.alflabs.rig4.exp.HtmlTransformer;
 import com.alflabs.rig4.exp.Templater;
 import com.alflabs.rig4.flags.Flags;
@@ -24,6 +26,7 @@ import com.google.common.base.Preconditions;
 import javax.inject.Inject;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.time.LocalDate;
@@ -35,6 +38,7 @@ import java.util.Locale;
 
 import static com.alflabs.rig4.exp.ExpFlags.EXP_DEST_DIR;
 import static com.alflabs.rig4.exp.ExpFlags.EXP_GA_UID;
+import static com.alflabs.rig4.exp.ExpFlags.EXP_GDOC_ZIP_EXPORT;
 import static com.alflabs.rig4.exp.ExpFlags.EXP_SITE_BANNER;
 import static com.alflabs.rig4.exp.ExpFlags.EXP_SITE_BASE_URL;
 import static com.alflabs.rig4.exp.ExpFlags.EXP_SITE_TITLE;
@@ -50,6 +54,7 @@ public class BlogGenerator {
     private final HashStore mHashStore;
     private final Templater mTemplater;
     private final HtmlTransformer mHtmlTransformer;
+    private final DownloadPool mDownloadPool;
 
     @Inject
     public BlogGenerator(
@@ -59,7 +64,8 @@ public class BlogGenerator {
             GDocHelper gDocHelper,
             HashStore hashStore,
             Templater templater,
-            HtmlTransformer htmlTransformer) {
+            HtmlTransformer htmlTransformer,
+            DownloadPool downloadPool) {
         mFlags = flags;
         mLogger = logger;
         mFileOps = fileOps;
@@ -67,6 +73,7 @@ public class BlogGenerator {
         mHashStore = hashStore;
         mTemplater = templater;
         mHtmlTransformer = htmlTransformer;
+        mDownloadPool = downloadPool;
     }
 
     public void processEntries(@NonNull List<BlogEntry> blogEntries, boolean allChanged)
@@ -122,8 +129,16 @@ public class BlogGenerator {
             throws IOException, URISyntaxException {
         List<BlogSourceParser.ParsedResult> parsedResults = new ArrayList<>();
 
+        List<String> fileIds = new ArrayList<>();
         for (BlogEntry blogEntry : blogEntries) {
-            BlogSourceParser.ParsedResult result = parseSource(blogEntry);
+            fileIds.add(blogEntry.getFileId());
+        }
+        EntityPrefetcher prefetcher = new EntityPrefetcher(
+                mGDocHelper, mDownloadPool, fileIds, mFlags.getBool(EXP_GDOC_ZIP_EXPORT));
+
+        for (int index = 0; index < blogEntries.size(); index++) {
+            BlogEntry blogEntry = blogEntries.get(index);
+            BlogSourceParser.ParsedResult result = parseSource(blogEntry, prefetcher.get(index));
             parsedResults.add(result);
 
             BlogConfig blogConfig = configs.get(blogEntry);
@@ -133,17 +148,19 @@ public class BlogGenerator {
         return parsedResults;
     }
 
-    private BlogSourceParser.ParsedResult parseSource(@NonNull BlogEntry blogEntry)
+    private BlogSourceParser.ParsedResult parseSource(@NonNull BlogEntry blogEntry, GDocEntity entity)
             throws IOException, URISyntaxException {
         mLogger.d(TAG, "Parse config " + blogEntry.getConfigNumber() + ", source: " + blogEntry.getFileId());
-        GDocEntity entity = mGDocHelper.getGDocAsync(blogEntry.getFileId(), "text/html");
         boolean fileChanged = !entity.isUpdateToDate();
-        byte[] content = entity.getContent();
-        Preconditions.checkNotNull(content); // fail fast
+        BlogSourceParser.ParsedResult result;
+        try (InputStream content = entity.openContentStream()) {
+            Preconditions.checkNotNull(content); // fail fast
+            BlogSourceParser blogSourceParser = new BlogSourceParser(mHtmlTransformer);
+            result = blogSourceParser.parse(content);
+        }
         entity.syncToStore();
 
-        BlogSourceParser blogSourceParser = new BlogSourceParser(mHtmlTransformer);
-        return blogSourceParser.parse(content).setFileChanged(blogEntry.getFileId(), fileChanged);
+        return result.setFileChanged(blogEntry.getFileId(), fileChanged);
     }
 
     @NonNull
@@ -7,6 +7,7 @@ import org.jsoup.nodes.Element;
 import org.jsoup.nodes.Node;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URISyntaxException;
 import java.time.LocalDate;
 import java.time.format.DateTimeFormatter;
@@ -47,7 +48,15 @@ public class BlogSourceParser {
     }
 
     public ParsedResult parse(@NonNull byte[] content) throws IOException, URISyntaxException {
-        Element body = mHtmlTransformer.simplifyForProcessing(content);
+        return parse(mHtmlTransformer.simplifyForProcessing(content));
+    }
+
+    /** Parses the content read from the given stream, which is not closed. */
+    public ParsedResult parse(@NonNull InputStream content) throws IOException, URISyntaxException {
+        return parse(mHtmlTransformer.simplifyForProcessing(content));
+    }
+
+    private ParsedResult parse(@NonNull Element body) throws IOException, URISyntaxException {
 
         // Iterate on the top-level elements and keeps a state:
         // - SourceBlog parsing starts as soon as [izu:blog] is found.
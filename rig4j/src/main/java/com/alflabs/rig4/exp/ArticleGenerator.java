@@ -11,21 +11,25 @@ import com.alflabs.utils.FileOps;
 import com.alflabs.utils.ILogger;
 import com.alflabs.utils.RPair;
 import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
 import org.jsoup.nodes.Element;
 
 import javax.inject.Inject;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.lang.reflect.InvocationTargetException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.text.ParseException;
 import java.time.LocalDate;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
 import java.util.List;
 
 import static com.alflabs.rig4.exp.ExpFlags.EXP_DEST_DIR;
 import static com.alflabs.rig4.exp.ExpFlags.EXP_GA_UID;
+import static com.alflabs.rig4.exp.ExpFlags.EXP_GDOC_ZIP_EXPORT;
 import static com.alflabs.rig4.exp.ExpFlags.EXP_SITE_BANNER;
 import static com.alflabs.rig4.exp.ExpFlags.EXP_SITE_BASE_URL;
 import static com.alflabs.rig4.exp.ExpFlags.EXP_SITE_TITLE;
@@ -40,6 +44,7 @@ public class ArticleGenerator {
     private final HashStore mHashStore;
     private final Templater mTemplater;
     private final HtmlTransformer mHtmlTransformer;
+    private final DownloadPool mDownloadPool;
 
     @Inject
     public ArticleGenerator(
@@ -49,7 +54,8 @@ public class ArticleGenerator {
             GDocHelper gDocHelper,
             HashStore hashStore,
             Templater templater,
-            HtmlTransformer htmlTransformer) {
+            HtmlTransformer htmlTransformer,
+            DownloadPool downloadPool) {
         mFlags = flags;
         mLogger = logger;
         mFileOps = fileOps;
@@ -57,6 +63,7 @@ public class ArticleGenerator {
         mHashStore = hashStore;
         mTemplater = templater;
         mHtmlTransformer = htmlTransformer;
+        mDownloadPool = downloadPool;
     }
 
     void processEntries(@NonNull List<ArticleEntry> entries, boolean allChanged)
@@ -65,13 +72,21 @@ public class ArticleGenerator {
         mLogger.d(TAG, "        Site URL: " + mFlags.getString(EXP_SITE_BASE_URL));
         mLogger.d(TAG, "     Destination: " + destDir);
 
+        List<String> fileIds = new ArrayList<>();
         for (ArticleEntry entry : entries) {
+            fileIds.add(entry.getFileId());
+        }
+        EntityPrefetcher prefetcher = new EntityPrefetcher(
+                mGDocHelper, mDownloadPool, fileIds, mFlags.getBool(EXP_GDOC_ZIP_EXPORT));
+
+        for (int index = 0; index < entries.size(); index++) {
+            ArticleEntry entry = entries.get(index);
             String destName = entry.getDestName().replace('/', File.separatorChar);
             File destFile = new File(destDir, destName);
 
             mLogger.d(TAG, "Process document: " + destName);
 
-            GDocEntity entity = mGDocHelper.getGDocAsync(entry.getFileId(), "text/html");
+            GDocEntity entity = prefetcher.get(index);
             String title = entity.getMetadata().getTitle();
             boolean keepExisting = true;
             String changed = "";
@@ -99,7 +114,11 @@ public class ArticleGenerator {
                 mLogger.d(TAG, "   Keep existing: " + destName);
             } else {
                 mLogger.d(TAG, "  Rebuild Reason: " + changed);
-                RPair<Element, HtmlTransformer.LazyTransformer> intermediary = processHtml(entity.getContent(), title, destFile);
+                RPair<Element, HtmlTransformer.LazyTransformer> intermediary;
+                try (InputStream content = entity.openContentStream()) {
+                    Preconditions.checkNotNull(content); // fail fast
+                    intermediary = processHtml(content, title, destFile);
+                }
                 entity.syncToStore();
 
                 HtmlTransformer.LazyTransformer transformer = intermediary.second;
@@ -138,7 +157,7 @@ public class ArticleGenerator {
     }
 
     @NonNull
-    private RPair<Element, HtmlTransformer.LazyTransformer> processHtml(@NonNull byte[] content, @NonNull String title, File destFile) throws IOException, URISyntaxException {
+    private RPair<Element, HtmlTransformer.LazyTransformer> processHtml(@NonNull InputStream content, @NonNull String title, File destFile) throws IOException, URISyntaxException {
         HtmlTransformer.LazyTransformer transformer = mHtmlTransformer.createLazyTransformer(
                 destFile.getPath(),
                 new HtmlTransformer.Callback() {
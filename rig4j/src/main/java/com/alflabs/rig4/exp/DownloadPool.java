@@ -0,0 +1,127 @@
+package com.alflabs.rig4.exp;
+
+import com.alflabs.annotations.NonNull;
+import com.alflabs.annotations.Null;
+import com.alflabs.rig4.flags.Flags;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import static com.alflabs.rig4.exp.ExpFlags.EXP_DOWNLOAD_THREADS;
+import static com.alflabs.rig4.exp.ExpFlags.EXP_DOWNLOAD_THREADS_PER_HOST;
+
+/**
+ * A bounded pool running the image and drawing jobs of the {@link HtmlTransformer}
+ * concurrently, since their time is dominated by network waits.
+ * <p/>
+ * The number of concurrent jobs is bounded globally and per host, so that a page with many
+ * images doesn't hammer a single server. Jobs over their host's limit wait in a per-host queue
+ * rather than in a pool thread, so that they never hold a thread another host could use.
+ * Without any thread, jobs run synchronously on the caller thread.
+ * <p/>
+ * The pool is created on first use, once the flags have been parsed. Its threads are daemon
+ * threads so that it never needs to be shut down.
+ */
+@Singleton
+public class DownloadPool {
+    private final Flags mFlags;
+    private final Map<String, HostQueue> mHostQueues = new ConcurrentHashMap<>();
+    private boolean mInitialized;
+    private ExecutorService mExecutor;
+    private int mPermitsPerHost;
+
+    @Inject
+    public DownloadPool(Flags flags) {
+        mFlags = flags;
+    }
+
+    /**
+     * Runs the job, counting it against the given host's limit.
+     * Exceptions thrown by the job are reported by the future.
+     */
+    @NonNull
+    public <T> Future<T> submit(@NonNull String host, @NonNull Callable<T> job) {
+        ExecutorService executor = getExecutor();
+        if (executor == null) {
+            try {
+                return Futures.immediateFuture(job.call());
+            } catch (Exception e) {
+                return Futures.immediateFailedFuture(e);
+            }
+        }
+        FutureTask<T> task = new FutureTask<>(job);
+        mHostQueues.computeIfAbsent(host, h -> new HostQueue(executor)).add(task);
+        return task;
+    }
+
+    /**
+     * Returns an executor running its tasks with {@link #submit}, e.g. to run a
+     * {@link java.util.concurrent.CompletableFuture} on this pool.
+     */
+    @NonNull
+    public Executor asExecutor(@NonNull String host) {
+        return command -> submit(host, Executors.callable(command));
+    }
+
+    @Null
+    private synchronized ExecutorService getExecutor() {
+        if (!mInitialized) {
+            mInitialized = true;
+            int threads = mFlags.getInt(EXP_DOWNLOAD_THREADS);
+            if (threads > 0) {
+                mPermitsPerHost = Math.max(1, mFlags.getInt(EXP_DOWNLOAD_THREADS_PER_HOST));
+                mExecutor = Executors.newFixedThreadPool(threads, new ThreadFactoryBuilder()
+                        .setDaemon(true)
+                        .setNameFormat("download-%d")
+                        .build());
+            }
+        }
+        return mExecutor;
+    }
+
+    /** The jobs of a host: at most {@link #mPermitsPerHost} run at once, the others wait in order. */
+    private class HostQueue {
+        private final ExecutorService mExecutor;
+        private final Queue<FutureTask<?>> mWaiting = new ArrayDeque<>();
+        private int mRunning;
+
+        HostQueue(ExecutorService executor) {
+            mExecutor = executor;
+        }
+
+        synchronized void add(@NonNull FutureTask<?> task) {
+            if (mRunning < mPermitsPerHost) {
+                mRunning++;
+                mExecutor.execute(() -> run(task));
+            } else {
+                mWaiting.add(task);
+            }
+        }
+
+        private void run(@NonNull FutureTask<?> task) {
+            // A cancelled task does nothing when run and simply hands its permit over.
+            task.run();
+            synchronized (this) {
+                FutureTask<?> next = mWaiting.poll();
+                if (next == null) {
+                    mRunning--;
+                } else {
+                    // Resubmitted rather than run in this thread, to be fair to the other hosts.
+                    mExecutor.execute(() -> run(next));
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package com.alflabs.rig4.exp;
+
+import com.alflabs.annotations.NonNull;
+import com.alflabs.annotations.Null;
+import com.alflabs.rig4.gdoc.GDocHelper;
+import com.alflabs.rig4.struct.GDocEntity;
+
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * Gets the HTML entities of a list of documents processed in order, and downloads the
+ * content of the stale ones in the background a few entries ahead of the one being processed,
+ * so that the downloads overlap with parsing and transforming the previous entries.
+ * <p/>
+ * The prefetched content is spooled to the blob store rather than held in memory, see
+ * {@link GDocEntity#fetchContentAsync}. Only a few entries are fetched ahead to bound the
+ * number of downloads in flight. Up-to-date entries are not prefetched since their content is
+ * read from the blob store.
+ */
+public class EntityPrefetcher {
+    /** Number of entries after the current one which content is prefetched. */
+    private static final int AHEAD = 4;
+    /**
+     * Key used to count the exports against the {@link DownloadPool} per-host limit.
+     * Exports come from the same host as the drawings, yet they are counted apart so that
+     * prefetches never hold the slots needed by the drawings of the page being transformed.
+     */
+    private static final String EXPORT_HOST = "docs.google.com/export";
+
+    private final GDocHelper mGDocHelper;
+    private final Executor mExecutor;
+    private final List<String> mFileIds;
+    private final boolean mZipExport;
+    private final GDocEntity[] mEntities;
+    private final boolean[] mRequested;
+
+    public EntityPrefetcher(
+            @NonNull GDocHelper gDocHelper,
+            @NonNull DownloadPool downloadPool,
+            @NonNull List<String> fileIds,
+            boolean zipExport) {
+        mGDocHelper = gDocHelper;
+        mExecutor = downloadPool.asExecutor(EXPORT_HOST);
+        mFileIds = fileIds;
+        mZipExport = zipExport;
+        mEntities = new GDocEntity[fileIds.size()];
+        mRequested = new boolean[fileIds.size()];
+    }
+
+    /**
+     * Returns the entity of the file at the given index, as given by
+     * {@link GDocHelper#getGDocHtmlAsync}, and starts prefetching the following ones.
+     */
+    @Null
+    public GDocEntity get(int index) {
+        GDocEntity entity = request(index);
+        for (int i = index + 1; i <= index + AHEAD && i < mEntities.length; i++) {
+            request(i);
+        }
+        return entity;
+    }
+
+    @Null
+    private GDocEntity request(int index) {
+        if (!mRequested[index]) {
+            mRequested[index] = true;
+            GDocEntity entity = mGDocHelper.getGDocHtmlAsync(mFileIds.get(index), mZipExport);
+            if (entity != null && !entity.isUpdateToDate()) {
+                entity.fetchContentAsync(mExecutor);
+            }
+            mEntities[index] = entity;
+        }
+        return mEntities[index];
+    }
+}
@@ -1,16 +1,22 @@
 package com.alflabs.rig4.exp;
 
+import com.alflabs.rig4.BlobStore;
 import com.alflabs.rig4.EntryPoint;
 import com.alflabs.rig4.HashStore;
 import com.alflabs.rig4.Timing;
 import com.alflabs.rig4.blog.BlogGenerator;
 import com.alflabs.rig4.flags.Flags;
+import com.alflabs.rig4.gdoc.GDocReader;
+import com.alflabs.rig4.struct.ArticleEntry;
+import com.alflabs.rig4.struct.BlogEntry;
 import com.alflabs.rig4.struct.Index;
 import com.alflabs.utils.ILogger;
 
 import javax.inject.Inject;
 import javax.inject.Singleton;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 import static com.alflabs.rig4.exp.ExpFlags.*;
 
@@ -23,6 +29,8 @@ public class Exp {
     private final ILogger mLogger;
     private final Timing mTiming;
     private final HashStore mHashStore;
+    private final BlobStore mBlobStore;
+    private final GDocReader mGDocReader;
     private final IndexReader mIndexReader;
     private final BlogGenerator mBlogGenerator;
     private final ArticleGenerator mArticleGenerator;
@@ -34,6 +42,8 @@ public class Exp {
             ILogger logger,
             Timing timing,
             HashStore hashStore,
+            BlobStore blobStore,
+            GDocReader gDocReader,
             IndexReader indexReader,
             BlogGenerator blogGenerator,
             ArticleGenerator articleGenerator) {
@@ -42,6 +52,8 @@ public class Exp {
         mLogger = logger;
         mTiming = timing;
         mHashStore = hashStore;
+        mBlobStore = blobStore;
+        mGDocReader = gDocReader;
         mIndexReader = indexReader;
         mBlogGenerator = blogGenerator;
         mArticleGenerator = articleGenerator;
@@ -54,16 +66,46 @@ public class Exp {
         }
 
         Timing.TimeAccumulator timing = mTiming.get("Total").start();
-        boolean allChanged = checkVersionChanged();
-        Index index = mIndexReader.readIndex(mFlags.getString(EXP_DOC_ID));
-        mArticleGenerator.processEntries(index.getArticleEntries(), allChanged);
-        mBlogGenerator.processEntries(index.getBlogEntries(), allChanged);
+        try {
+            boolean allChanged = checkVersionChanged();
+            mGDocReader.readChanges();
+            Index index = mIndexReader.readIndex(mFlags.getString(EXP_DOC_ID));
+            prefetchMetadata(index);
+            mArticleGenerator.processEntries(index.getArticleEntries(), allChanged);
+            mBlogGenerator.processEntries(index.getBlogEntries(), allChanged);
+            // Only sweep after a complete run, otherwise entries still in use would not be marked.
+            mHashStore.collectGarbage();
+            mBlobStore.collectGarbage();
+            mGDocReader.commitChanges();
+        } finally {
+            // Persist the store indexes even if the run failed midway.
+            try {
+                mHashStore.flush();
+            } finally {
+                try {
+                    mBlobStore.flush();
+                } finally {
+                    mBlobStore.close();
+                }
+            }
+        }
         timing.end();
         mTiming.printToLog();
     }
 
     // ---
 
+    private void prefetchMetadata(Index index) {
+        List<String> fileIds = new ArrayList<>();
+        for (ArticleEntry entry : index.getArticleEntries()) {
+            fileIds.add(entry.getFileId());
+        }
+        for (BlogEntry entry : index.getBlogEntries()) {
+            fileIds.add(entry.getFileId());
+        }
+        mGDocReader.prefetchMetadata(fileIds);
+    }
+
     private boolean checkVersionChanged() throws IOException {
         final String versionKey = "version";
 
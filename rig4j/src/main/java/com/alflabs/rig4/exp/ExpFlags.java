@@ -17,6 +17,11 @@ public final class ExpFlags {
     /** Base URL that gets rewritten to exp-site-base-url. This is useful for staging & dev/testing
      * as gdoc does not allow to embed relative URLs, only absolute ones. */
     public static final String EXP_REWRITTEN_URL = "exp-rewritten-url";
+    /** Number of images and drawings downloaded concurrently. 0 downloads them one at a time. */
+    public static final String EXP_DOWNLOAD_THREADS = "exp-download-threads";
+    public static final String EXP_DOWNLOAD_THREADS_PER_HOST = "exp-download-threads-per-host";
+    /** Exports the documents as zip files, with the images as separate files rather than base64 data. */
+    public static final String EXP_GDOC_ZIP_EXPORT = "exp-gdoc-zip-export";
 
     private final Flags mFlags;
 
@@ -33,5 +38,8 @@ public final class ExpFlags {
         mFlags.addString(EXP_SITE_BANNER,   "header.jpg", "Web site banner filename");
         mFlags.addString(EXP_SITE_BASE_URL, "http://localhost/folder/", "Web site base URL");
         mFlags.addString(EXP_REWRITTEN_URL, "",           "Root URL rewritten to site URL for staging");
+        mFlags.addInt(EXP_DOWNLOAD_THREADS,          8,   "Concurrent image and drawing downloads");
+        mFlags.addInt(EXP_DOWNLOAD_THREADS_PER_HOST, 4,   "Concurrent image and drawing downloads per host");
+        mFlags.addBool(EXP_GDOC_ZIP_EXPORT,         false, "Export documents as zip with separate images");
     }
 }
@@ -7,6 +7,7 @@ import com.alflabs.rig4.Timing;
 import com.alflabs.rig4.blog.BlogSourceParser;
 import com.alflabs.rig4.blog.IzuTags;
 import com.alflabs.rig4.flags.Flags;
+import com.alflabs.rig4.gdoc.GDocHelper;
 import com.alflabs.utils.RPair;
 import com.alflabs.utils.RSparseArray;
 import com.google.common.base.Charsets;
@@ -36,6 +37,7 @@ import org.w3c.dom.css.CSSStyleSheet;
 import javax.inject.Inject;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.StringReader;
 import java.net.URI;
 import java.net.URISyntaxException;
@@ -45,10 +47,13 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.regex.Matcher;
 
 public class HtmlTransformer {
@@ -88,15 +93,18 @@ public class HtmlTransformer {
     private static final String HTML_NBSP = Entities.getByName("nbsp");
     private final Flags mFlags;
     private final HashStore mHashStore;
+    private final DownloadPool mDownloadPool;
     private final Timing.TimeAccumulator mTiming;
 
     @Inject
     public HtmlTransformer(
             Flags flags,
             Timing timing,
-            HashStore hashStore) {
+            HashStore hashStore,
+            DownloadPool downloadPool) {
         mFlags = flags;
         mHashStore = hashStore;
+        mDownloadPool = downloadPool;
         mTiming = timing.get("HtmlTransformer");
     }
 
@@ -109,9 +117,20 @@ public class HtmlTransformer {
      */
     public Element simplifyForProcessing(@NonNull byte[] content)
             throws IOException, URISyntaxException {
-        mTiming.start();
         try (ByteArrayInputStream bais = new ByteArrayInputStream(content)) {
-            Document doc = Jsoup.parse(bais, null /* charset */, "" /* base uri */);
+            return simplifyForProcessing(bais);
+        }
+    }
+
+    /**
+     * Same as {@link #simplifyForProcessing(byte[])} reading from a stream.
+     * The stream is not closed.
+     */
+    public Element simplifyForProcessing(@NonNull InputStream content)
+            throws IOException, URISyntaxException {
+        mTiming.start();
+        try {
+            Document doc = Jsoup.parse(content, null /* charset */, "" /* base uri */);
 
             expandStyles(doc);
             doc = cleanup(doc);
@@ -773,6 +792,9 @@ public class HtmlTransformer {
      *   source directly and bypass the redirector.
      * - Handle drawing exported PNGs links by downloading them and rewriting them locally.
      * - Any untreated google.com link is an error that should be looked into.
+     * <p/>
+     * Images and drawings are processed concurrently by the {@link DownloadPool} and their
+     * attributes are only patched once all of them are done.
      */
     private void rewriteUrls(Element root, String attrName, Callback callback, String transformKey)
             throws IOException {
@@ -790,6 +812,7 @@ public class HtmlTransformer {
             siteBase = mFlags.getString(ExpFlags.EXP_SITE_BASE_URL);
         }
 
+        List<PendingAttr> pendingAttrs = new ArrayList<>();
         for (Element element : root.getElementsByAttribute(attrName)) {
             try {
                 String value = element.attr(attrName);
@@ -815,6 +838,10 @@ public class HtmlTransformer {
                     }
                     host = "";
                     path = "";
+                } else if (GDocHelper.ZIP_IMAGE_SCHEME.equals(uri.getScheme())) {
+                    // An image extracted from a zip export, see GDocHelper.unpackZipExport().
+                    host = "";
+                    path = "";
                 } else if (host == null || path == null) {
                     // This is typically the case with anchor references (e.g. <a href="#chapter">).
                     continue;
@@ -837,16 +864,23 @@ public class HtmlTransformer {
                     String id = queries.get("id");
                     int w = Integer.parseInt(queries.get(QUERY_W));
                     int h = Integer.parseInt(queries.get(QEURY_H));
-                    newValue = callback.processDrawing(id, w, h, useImgCache);
+                    pendingAttrs.add(new PendingAttr(element, attrName, mDownloadPool.submit(host,
+                            () -> callback.processDrawing(id, w, h, useImgCache))));
 
                 } else if (host.equals("docs.google.com") && path.startsWith("/drawings/d/") && path.endsWith("/image")) {
                     // Current style of drawing URLs.
                     try {
-                        String id = path.substring("/drawings/d/".length());
-                        id = id.substring(0, id.length() - "/image".length());
+                        String id = path.substring("/drawings/d/".length(), path.length() - "/image".length());
                         int w = Integer.parseInt(queries.get(QUERY_W));
                         int h = Integer.parseInt(queries.get(QEURY_H));
-                        newValue = callback.processDrawing(id, w, h, useImgCache);
+                        pendingAttrs.add(new PendingAttr(element, attrName, mDownloadPool.submit(host, () -> {
+                            try {
+                                return callback.processDrawing(id, w, h, useImgCache);
+                            } catch (Throwable t) {
+                                throw new TransformerException("ERROR processing URI " + value
+                                        + ", Error: " + t);
+                            }
+                        })));
                     } catch (Throwable t) {
                         throw new TransformerException("ERROR processing URI " + value
                                 + ", Error: " + t);
@@ -873,8 +907,10 @@ public class HtmlTransformer {
                     int w = getIntValue(sw, 0);
                     int h = getIntValue(sh, 0);
 
-                    // This also handles the case where the URI is a data:image/png;base64.
-                    newValue = callback.processImage(uri, w, h, useImgCache);
+                    // This also handles the case where the URI is a data:image/png;base64
+                    // or an image from a zip export.
+                    pendingAttrs.add(new PendingAttr(element, attrName, mDownloadPool.submit(host,
+                            () -> callback.processImage(uri, w, h, useImgCache))));
                 }
 
                 if (newValue != null) {
@@ -889,6 +925,18 @@ public class HtmlTransformer {
             }
         }
 
+        try {
+            for (PendingAttr pendingAttr : pendingAttrs) {
+                pendingAttr.apply();
+            }
+        } catch (IOException | RuntimeException | Error e) {
+            // The page fails anyway: don't let the other jobs keep downloading.
+            for (PendingAttr pendingAttr : pendingAttrs) {
+                pendingAttr.cancel();
+            }
+            throw e;
+        }
+
         if (!useImgCache) {
             mHashStore.putString(contentKey, contentHash);
         }
@@ -986,6 +1034,55 @@ public class HtmlTransformer {
         return i;
     }
 
+    /** An attribute waiting for the result of an image or drawing job. */
+    private static class PendingAttr {
+        private final Element mElement;
+        private final String mAttrName;
+        private final Future<String> mNewValue;
+
+        public PendingAttr(Element element, String attrName, Future<String> newValue) {
+            mElement = element;
+            mAttrName = attrName;
+            mNewValue = newValue;
+        }
+
+        /** Waits for the job and sets the attribute, rethrowing any failure of the job. */
+        public void apply() throws IOException {
+            String newValue;
+            try {
+                newValue = mNewValue.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                } else if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                } else if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw new IOException(cause);
+            }
+            if (newValue != null) {
+                mElement.attr(mAttrName, newValue);
+            }
+        }
+
+        /**
+         * Cancels the job if it has not started yet. Running jobs are not interrupted since an
+         * interrupt would close the file channels of the blob store they may be writing to.
+         */
+        public void cancel() {
+            mNewValue.cancel(false /* mayInterruptIfRunning */);
+        }
+    }
+
+    /**
+     * Processes images and drawings. Calls may happen concurrently from the threads of the
+     * {@link DownloadPool}, so implementations must be thread-safe.
+     */
     public interface Callback {
         /**
          * Process a drawing by downloading it, adjusting it to change to the desired size and
@@ -997,7 +1094,7 @@ public class HtmlTransformer {
          * Process an image by downloading it, adjusting it to change to the desired size and
          * returns the src for the new document.
          *
-         * The URI can be a valid data:image/png;base64.
+         * The URI can be a valid data:image/png;base64 or a {@link GDocHelper#ZIP_IMAGE_SCHEME} URI.
          */
         String processImage(URI uri, int width, int height, boolean useCache) throws IOException;
     }
@@ -0,0 +1,177 @@
+package com.alflabs.rig4.gdoc;
+
+import com.alflabs.annotations.NonNull;
+import com.alflabs.annotations.Null;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+
+/**
+ * Finds the bounding box of the non-transparent pixels of an image.
+ * <p/>
+ * The common ARGB int and ABGR byte images are scanned directly in the raster's backing array,
+ * without allocating or going through the color model for each pixel. Other image types use a
+ * slower generic path. The scan starts from each edge and stops at the first visible pixel, so
+ * the inside of the box is mostly not scanned.
+ */
+final class AlphaBounds {
+
+    private AlphaBounds() {}
+
+    /**
+     * Returns the smallest rectangle containing all the pixels with a non-zero alpha,
+     * or null if the image is fully transparent.
+     */
+    @Null
+    public static Rectangle find(@NonNull BufferedImage image) {
+        int w = image.getWidth();
+        int h = image.getHeight();
+        if (!image.getColorModel().hasAlpha()) {
+            return w > 0 && h > 0 ? new Rectangle(0, 0, w, h) : null;
+        }
+        AlphaPixels pixels = new AlphaPixels(image);
+
+        int y1 = 0;
+        while (y1 < h && !pixels.isRowVisible(y1, 0, w)) {
+            y1++;
+        }
+        if (y1 == h) {
+            return null;
+        }
+        int y2 = h - 1;
+        while (y2 > y1 && !pixels.isRowVisible(y2, 0, w)) {
+            y2--;
+        }
+
+        // On each remaining row, only the pixels outside of the current box need to be checked.
+        int x1 = w;
+        int x2 = -1;
+        for (int y = y1; y <= y2; y++) {
+            for (int x = 0; x < x1; x++) {
+                if (pixels.isVisible(x, y)) {
+                    x1 = x;
+                    break;
+                }
+            }
+            for (int x = w - 1; x > x2 && x >= x1; x--) {
+                if (pixels.isVisible(x, y)) {
+                    x2 = x;
+                    break;
+                }
+            }
+        }
+
+        return new Rectangle(x1, y1, x2 - x1 + 1, y2 - y1 + 1);
+    }
+
+    /** Accesses the alpha of the pixels of an image, directly in the raster data when possible. */
+    private static final class AlphaPixels {
+        private final int[] mInts;
+        private final byte[] mBytes;
+        /** Index of the alpha of pixel (0, 0) in mInts or mBytes. */
+        private final int mOffset;
+        private final int mPixelStride;
+        private final int mScanlineStride;
+        // Generic path.
+        private final WritableRaster mRaster;
+        private final ColorModel mModel;
+        private Object mElements;
+
+        AlphaPixels(@NonNull BufferedImage image) {
+            WritableRaster raster = image.getRaster();
+            ColorModel model = image.getColorModel();
+            SampleModel sampleModel = raster.getSampleModel();
+            DataBuffer buffer = raster.getDataBuffer();
+            int tx = raster.getSampleModelTranslateX();
+            int ty = raster.getSampleModelTranslateY();
+
+            int[] ints = null;
+            byte[] bytes = null;
+            int offset = 0;
+            int pixelStride = 0;
+            int scanlineStride = 0;
+            if (buffer instanceof DataBufferInt
+                    && buffer.getNumBanks() == 1
+                    && sampleModel instanceof SinglePixelPackedSampleModel
+                    && model instanceof DirectColorModel
+                    && ((DirectColorModel) model).getAlphaMask() == 0xFF000000) {
+                // TYPE_INT_ARGB and TYPE_INT_ARGB_PRE: the alpha is the top byte of each int.
+                ints = ((DataBufferInt) buffer).getData();
+                pixelStride = 1;
+                scanlineStride = ((SinglePixelPackedSampleModel) sampleModel).getScanlineStride();
+                offset = buffer.getOffset() - ty * scanlineStride - tx;
+            } else if (buffer instanceof DataBufferByte
+                    && buffer.getNumBanks() == 1
+                    && sampleModel instanceof PixelInterleavedSampleModel
+                    && model instanceof ComponentColorModel
+                    && model.getComponentSize(model.getNumComponents() - 1) == 8) {
+                // TYPE_4BYTE_ABGR and the RGBA/gray+alpha images decoded from PNG:
+                // the alpha is the last component of each pixel.
+                PixelInterleavedSampleModel interleaved = (PixelInterleavedSampleModel) sampleModel;
+                bytes = ((DataBufferByte) buffer).getData();
+                pixelStride = interleaved.getPixelStride();
+                scanlineStride = interleaved.getScanlineStride();
+                offset = buffer.getOffset()
+                        + interleaved.getBandOffsets()[model.getNumComponents() - 1]
+                        - ty * scanlineStride - tx * pixelStride;
+            }
+
+            mInts = ints;
+            mBytes = bytes;
+            mOffset = offset;
+            mPixelStride = pixelStride;
+            mScanlineStride = scanlineStride;
+            mRaster = raster;
+            mModel = model;
+        }
+
+        boolean isVisible(int x, int y) {
+            int index = mOffset + y * mScanlineStride + x * mPixelStride;
+            if (mInts != null) {
+                return (mInts[index] >>> 24) != 0;
+            }
+            if (mBytes != null) {
+                return mBytes[index] != 0;
+            }
+            mElements = mRaster.getDataElements(x, y, mElements);
+            return mModel.getAlpha(mElements) != 0;
+        }
+
+        boolean isRowVisible(int y, int fromX, int toX) {
+            if (mInts != null) {
+                for (int i = mOffset + y * mScanlineStride + fromX, end = i + toX - fromX; i < end; i++) {
+                    if ((mInts[i] >>> 24) != 0) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+            if (mBytes != null) {
+                int stride = mPixelStride;
+                int i = mOffset + y * mScanlineStride + fromX * stride;
+                for (int end = i + (toX - fromX) * stride; i < end; i += stride) {
+                    if (mBytes[i] != 0) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+            for (int x = fromX; x < toX; x++) {
+                if (isVisible(x, y)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
@@ -5,10 +5,12 @@ import com.alflabs.annotations.Null;
 import com.alflabs.rig4.BlobStore;
 import com.alflabs.rig4.HashStore;
 import com.alflabs.rig4.Timing;
+import com.alflabs.rig4.store.StoreFileOps;
 import com.alflabs.rig4.struct.GDocEntity;
 import com.alflabs.utils.FileOps;
 import com.alflabs.utils.ILogger;
 import com.google.common.base.Charsets;
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
 import com.google.common.io.BaseEncoding;
 import com.google.common.io.ByteSink;
@@ -20,24 +22,56 @@ import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.codec.digest.DigestUtils;
 
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
 import javax.inject.Inject;
 import java.awt.Color;
 import java.awt.Graphics2D;
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
-import java.awt.image.ColorModel;
+import java.awt.image.DataBuffer;
 import java.awt.image.DataBufferByte;
-import java.awt.image.WritableRaster;
 import java.io.*;
+import java.lang.ref.WeakReference;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.security.DigestInputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
 
 public class GDocHelper {
     private static final String TAG = GDocHelper.class.getSimpleName();
 
+    /** URI scheme of the images extracted from a zip export, followed by their content hash. */
+    public static final String ZIP_IMAGE_SCHEME = "rig4-zip-image";
+    private static final String ZIP_IMAGE_KEY_PREFIX = "gdoc-zip-image-";
+    private static final String ZIP_SPOOL_PREFIX = "zip-spool-";
+    /** The image references in a zip export HTML, e.g. src="images/image1.png". */
+    private static final Pattern ZIP_IMAGE_SRC = Pattern.compile("(\\bsrc=\")([^\"]+)(\")");
+    private static final String MIME_HTML = "text/html";
+    private static final String MIME_ZIP = "application/zip";
+
     private static final boolean COMPOSITE_GRAPHICS_TO_WHITE = true;
+    /**
+     * Maximum total size of the encoded images kept for the other pages using the same URL.
+     * Decoded images are much larger (a 4000x3000 image takes 48 MB) and are not retained.
+     */
+    private static final long MAX_RETAINED_IMAGE_BYTES = 64 * 1024 * 1024;
+    /**
+     * Images are decoded with at least this many times the pixels of their target size on each
+     * axis, so that the downscale still averages enough pixels for a good quality.
+     */
+    private static final int MIN_OVERSAMPLING = 2;
 
     private final ILogger mLogger;
     private final FileOps mFileOps;
@@ -45,6 +79,64 @@ public class GDocHelper {
     private final GDocReader mGDocReader;
     private final BlobStore mBlobStore;
     private final HashStore mHashStore;
+    private final RetryPolicy mRetryPolicy;
+    private final ImageFormatPredictor mImageFormatPredictor;
+    private final SingleFlight<String, SourceImage> mImages = new SingleFlight<>(
+            MAX_RETAINED_IMAGE_BYTES, source -> source.mBytes == null ? 0 : source.mBytes.length);
+
+    /**
+     * The encoded bytes of a source image, with the validators of the response it was
+     * downloaded from. The image is only decoded when needed, once for all the concurrent
+     * callers using the same subsampling. Decoded images are only weakly referenced so that
+     * they are dropped once all these callers are done with them.
+     */
+    private static class SourceImage {
+        /** The image bytes, or null if the server indicated it was not modified. */
+        @Null final byte[] mBytes;
+        /** SHA-256 of the image bytes. */
+        @Null final String mHash;
+        @NonNull final HttpValidators mValidators;
+        /** Decoded images, by subsampling factor. */
+        private final Map<Integer, WeakReference<BufferedImage>> mDecoded = new HashMap<>();
+
+        SourceImage(@Null byte[] bytes, @Null String hash, @NonNull HttpValidators validators) {
+            mBytes = bytes;
+            mHash = hash == null && bytes != null ? DigestUtils.sha256Hex(bytes) : hash;
+            mValidators = validators;
+        }
+
+        /**
+         * Decodes the image, subsampled while decoding when it is much larger than the given
+         * target size. This is faster and uses less memory than decoding the full image to
+         * downscale it. A 0x0 target size decodes the full image.
+         */
+        synchronized BufferedImage decode(int width, int height) throws IOException {
+            try (ImageInputStream iis = ImageIO.createImageInputStream(new ByteArrayInputStream(mBytes))) {
+                Iterator<ImageReader> readers = iis == null ? null : ImageIO.getImageReaders(iis);
+                if (readers == null || !readers.hasNext()) {
+                    throw new IOException("Unsupported image format, source " + mHash);
+                }
+                ImageReader reader = readers.next();
+                try {
+                    reader.setInput(iis, true /* seekForwardOnly */, true /* ignoreMetadata */);
+                    int factor = getSubsampling(reader.getWidth(0), reader.getHeight(0), width, height);
+                    WeakReference<BufferedImage> decoded = mDecoded.get(factor);
+                    BufferedImage image = decoded == null ? null : decoded.get();
+                    if (image == null) {
+                        ImageReadParam param = reader.getDefaultReadParam();
+                        if (factor > 1) {
+                            param.setSourceSubsampling(factor, factor, 0, 0);
+                        }
+                        image = reader.read(0, param);
+                        mDecoded.put(factor, new WeakReference<>(image));
+                    }
+                    return image;
+                } finally {
+                    reader.dispose();
+                }
+            }
+        }
+    }
 
     @Inject
     public GDocHelper(
@@ -53,13 +145,17 @@ public class GDocHelper {
             Timing timing,
             GDocReader gDocReader,
             BlobStore blobStore,
-            HashStore hashStore) {
+            HashStore hashStore,
+            RetryPolicy retryPolicy,
+            ImageFormatPredictor imageFormatPredictor) {
         mLogger = logger;
         mFileOps = fileOps;
         mTiming = timing;
         mGDocReader = gDocReader;
         mBlobStore = blobStore;
         mHashStore = hashStore;
+        mRetryPolicy = retryPolicy;
+        mImageFormatPredictor = imageFormatPredictor;
     }
 
     public String downloadDrawing(String id, File destFile, int width, int height, boolean useCache) throws IOException {
@@ -73,36 +169,30 @@ public class GDocHelper {
 
             // Note: There is no Drive API for embedded drawings.
             // Experience shows that we can't even get the metadata like for a normal gdoc.
-            // Instead, we just download them every time the doc is generated.
+            // Instead, we download them every time the doc is generated, using a conditional
+            // request when we have a cached file.
 
             String extension = "png";
             String destName = "img_" + DigestUtils.sha256Hex("_drawing_" + id) + "d";
             mLogger.d(TAG, "         Drawing: " + destName + ", " + width + "x" + height);
 
             URL url = new URL("https://docs.google.com/drawings/d/" + id + "/export/" + extension);
+            HttpValidators validators = getCachedValidators(cacheKey);
+            String sourceKey;
             BufferedImage image;
             try {
-                int timeoutSeconds = 30;
-                int retry = 0;
-                while (true) {
-                    try {
-                        InputStream stream = mGDocReader.getDataByUrl(url);
-                        image = ImageIO.read(stream);
-                        break;
-                    } catch (IOException e) {
-                        if (retry > 3) {
-                            throw e;
-                        }
-                        mLogger.d(TAG, e.getClass().getSimpleName() + " retry: " + retry + ", timeout:" + timeoutSeconds + " seconds, URL:" + url);
-                        try {
-                            Thread.sleep(1000L * (timeoutSeconds / 2));
-                        } catch (InterruptedException ignore) {
-                            throw e;
-                        }
-                        timeoutSeconds *= 2;
-                        retry++;
-                    }
+                SourceImage source = readSourceFromUrl(url, validators);
+                if (source == null) {
+                    mLogger.d(TAG, "         Drawing: Not modified");
+                    return getCachedFilePath(width, height, cacheKey);
+                }
+                sourceKey = getSourceKey("drawing_I" + id, source, width, height);
+                String sourceOutput = useSourceOutput(sourceKey, cacheKey, destFile, validators);
+                if (sourceOutput != null) {
+                    return sourceOutput;
                 }
+                // Drawings are never subsampled: they are cropped based on their full size.
+                image = source.decode(0, 0);
             } catch (Exception e) {
                 // If we fail with an exception, try to fall back on the last cache;
                 // only throw if we have nothing to use.
@@ -124,7 +214,8 @@ public class GDocHelper {
                 if (storedImageName != null) {
                     File actualFile = new File(destFile.getParentFile(), storedImageName);
                     if (mFileOps.isFile(actualFile)) {
-                        mHashStore.putString(cacheKey, actualFile.getPath());
+                        putCachedFilePath(cacheKey, actualFile, validators);
+                        mHashStore.putString(sourceKey, actualFile.getPath());
                         return storedImageName;
                     }
                 }
@@ -137,9 +228,10 @@ public class GDocHelper {
             File imgFile = writeImageJpgOrPng(/*destDir=*/destFile, destName, image, width, height);
             destName = imgFile.getName();
 
-            mHashStore.putString(cacheKey, imgFile.getPath());
+            putCachedFilePath(cacheKey, imgFile, validators);
             mHashStore.putString(keyImageHash, imageHash);
             mHashStore.putString(keyImageName, destName);
+            mHashStore.putString(sourceKey, imgFile.getPath());
 
             return destName;
         } finally {
@@ -159,9 +251,21 @@ public class GDocHelper {
         String size = "w" + width + "h" + height + ".";
         digest.update(size.getBytes(Charsets.UTF_8));
 
-        WritableRaster raster = image.getRaster();
-        DataBufferByte data = (DataBufferByte) raster.getDataBuffer();
-        digest.update(data.getData());
+        DataBuffer buffer = image.getRaster().getDataBuffer();
+        if (buffer instanceof DataBufferByte && buffer.getNumBanks() == 1) {
+            digest.update(((DataBufferByte) buffer).getData());
+        } else {
+            // Other image types are hashed row by row as ARGB pixels.
+            int w = image.getWidth();
+            int[] row = new int[w];
+            ByteBuffer bytes = ByteBuffer.allocate(w * 4);
+            for (int y = 0, h = image.getHeight(); y < h; y++) {
+                image.getRGB(0, y, w, 1, row, 0, w);
+                bytes.clear();
+                bytes.asIntBuffer().put(row);
+                digest.update(bytes.array());
+            }
+        }
 
         String hash = new String(Hex.encodeHex(digest.digest()));
         timing.end();
@@ -173,37 +277,17 @@ public class GDocHelper {
         int srcw = image.getWidth();
         int srch = image.getHeight();
 
-        WritableRaster raster = image.getRaster();
-        ColorModel model = image.getColorModel();
-
-        int x1 = srcw;
-        int y1 = srch;
-        int x2 = 0;
-        int y2 = 0;
-
-        for (int k = 0, y = 0; y < srch; y++) {
-            for (int x = 0; x < srcw; x++) {
-                Object elements = raster.getDataElements(x, y, null);
-                int a = model.getAlpha(elements);
-
-                if (a != 0) {
-                    if (x < x1) {
-                        x1 = x;
-                    } else if (x > x2) {
-                        x2 = x;
-                    }
-                    if (y < y1) {
-                        y1 = y;
-                    } else if (y > y2) {
-                        y2 = y;
-                    }
-                }
-            }
+        Rectangle bounds = AlphaBounds.find(image);
+        if (bounds == null) {
+            // Fully transparent: nothing to crop.
+            bounds = new Rectangle(0, 0, srcw, srch);
         }
+        int x1 = bounds.x;
+        int y1 = bounds.y;
 
         // If we desired size is larger, then try to center it
-        int destw = x2 - x1 + 1;
-        int desth = y2 - y1 + 1;
+        int destw = bounds.width;
+        int desth = bounds.height;
         if (width <= srcw && width > destw && height <= srch && height > desth) {
             double w2 = width / 2.;
             double h2 = height / 2.;
@@ -261,19 +345,37 @@ public class GDocHelper {
                 if (cachedName != null) return cachedName;
             }
 
+            HttpValidators validators = null;
+            String sourceKey;
             BufferedImage image;
 
             // Download the image, then compares whether a PNG or JPG would be more compact.
             //
             // The gdoc exported images seem to always be PNG, even when copied from photos.
             // Drawings are fairly compact in PNG, but not photos.
+            //
+            // The image is only decoded if no file was generated from the same source bytes.
 
             try {
+                SourceImage source;
                 if ("data".equals(uri.getScheme())) {
-                    image = getImageFromDataBase64(uri);
+                    source = getSourceFromDataBase64(uri);
+                } else if (ZIP_IMAGE_SCHEME.equals(uri.getScheme())) {
+                    source = getSourceFromZipExport(uri);
                 } else {
-                    image = downloadImageFromLink(uri);
+                    validators = getCachedValidators(cacheKey);
+                    source = downloadSourceFromLink(uri, validators);
+                    if (source == null) {
+                        mLogger.d(TAG, "         Image  : Not modified");
+                        return getCachedFilePath(width, height, cacheKey);
+                    }
+                }
+                sourceKey = getSourceKey("image", source, width, height);
+                String sourceOutput = useSourceOutput(sourceKey, cacheKey, destFile, validators);
+                if (sourceOutput != null) {
+                    return sourceOutput;
                 }
+                image = source.decode(width, height);
             } catch (Exception e) {
                 // If we still fail with an exception, try to fall back on the last cache;
                 // only throw if we have nothing to use.
@@ -306,7 +408,8 @@ public class GDocHelper {
                 if (storedImageName != null) {
                     File actualFile = new File(destFile.getParentFile(), storedImageName);
                     if (mFileOps.isFile(actualFile)) {
-                        mHashStore.putString(cacheKey, actualFile.getPath());
+                        putCachedFilePath(cacheKey, actualFile, validators);
+                        mHashStore.putString(sourceKey, actualFile.getPath());
                         return storedImageName;
                     }
                 }
@@ -315,9 +418,10 @@ public class GDocHelper {
             File imgFile = writeImageJpgOrPng(destFile, destName, image, width, height);
             destName = imgFile.getName();
 
-            mHashStore.putString(cacheKey, imgFile.getPath());
+            putCachedFilePath(cacheKey, imgFile, validators);
             mHashStore.putString(keyImageHash, imageHash);
             mHashStore.putString(keyImageName, destName);
+            mHashStore.putString(sourceKey, imgFile.getPath());
 
             return destName;
         } finally {
@@ -325,39 +429,168 @@ public class GDocHelper {
         }
     }
 
-    private BufferedImage getImageFromDataBase64(URI uri)
-            throws IndexOutOfBoundsException, IllegalArgumentException, IOException {
-        // Parse a data:image/[jpg|png];base64,<all image data> into an image buffer
+    /**
+     * Returns the largest factor by which an image of srcWidth x srcHeight can be subsampled when
+     * decoding, while still having {@link #MIN_OVERSAMPLING} times the pixels of the target size.
+     * The target size follows the same rules as {@link #writeImageJpgOrPng}: the image fits in
+     * width x height, and a zero value is computed from the other one.
+     */
+    @VisibleForTesting
+    static int getSubsampling(int srcWidth, int srcHeight, int width, int height) {
+        double scale;
+        if (width > 0 && height > 0) {
+            scale = Math.max((double) srcWidth / width, (double) srcHeight / height);
+        } else if (width > 0) {
+            scale = (double) srcWidth / width;
+        } else if (height > 0) {
+            scale = (double) srcHeight / height;
+        } else {
+            return 1;
+        }
+        return Math.max(1, (int) Math.floor(scale / MIN_OVERSAMPLING));
+    }
+
+    /**
+     * Returns the key of the derived file generated from the given source bytes at the given
+     * size. The format is given by the extension of the derived file.
+     * <p/>
+     * Unlike the cache keys, this does not depend on the destination: the same image used by
+     * several pages in different directories is only generated once.
+     * <p/>
+     * Drawings give their id as part of the kind: their file is named after the drawing, so two
+     * drawings with the same bytes must not share it as it would go stale when one of them changes.
+     */
+    private static String getSourceKey(String kind, SourceImage source, int width, int height) {
+        return String.format("dl_%s_derived_S%s_W%d_H%d", kind, source.mHash, width, height);
+    }
+
+    /**
+     * If a file was already derived from the same source bytes, records it as the cached file
+     * of this image and returns its name. When it was derived for another destination directory,
+     * it is hard-linked or copied in this one.
+     * This avoids decoding, hashing the pixels and re-encoding unchanged images.
+     */
+    @Null
+    private String useSourceOutput(
+            String sourceKey,
+            String cacheKey,
+            File destFile,
+            @Null HttpValidators validators) throws IOException {
+        String derivedPath = mHashStore.getString(sourceKey);
+        if (derivedPath == null) {
+            return null;
+        }
+        File derived = new File(derivedPath);
+        File file = new File(destFile.getParentFile(), derived.getName());
+        if (mFileOps.isFile(file)) {
+            mLogger.d(TAG, "         Unchanged source: " + file.getName());
+            mTiming.getCounter("Html.Image.UnchangedSource").increment();
+        } else if (mFileOps.isFile(derived)) {
+            mLogger.d(TAG, "         Linking : " + derivedPath);
+            mTiming.getCounter("Html.Image.Linked").increment();
+            linkDerivedFile(derived, file);
+        } else {
+            return null;
+        }
+        putCachedFilePath(cacheKey, file, validators);
+        return file.getName();
+    }
+
+    /** Hard-links the derived file in another destination directory, or copies it if that fails. */
+    private void linkDerivedFile(File derived, File file) throws IOException {
+        if (!mFileOps.isDir(file.getParentFile())) {
+            mLogger.d(TAG, "    Creating Dir: " + file.getParent());
+            mFileOps.createParentDirs(file);
+        }
+        try {
+            java.nio.file.Files.createLink(file.toPath(), derived.toPath());
+        } catch (IOException | UnsupportedOperationException e) {
+            // Hard links are not supported by all file systems, nor across file systems.
+            Files.copy(derived, file);
+        }
+    }
+
+    private SourceImage getSourceFromDataBase64(URI uri)
+            throws IndexOutOfBoundsException, IllegalArgumentException {
+        // Parse a data:image/[jpg|png];base64,<all image data> into the image bytes
         String data = uri.getSchemeSpecificPart();
         String base64 = data.substring(data.indexOf(',') + 1);
         byte[] decoded = BaseEncoding.base64().decode(base64);
-        try (ByteArrayInputStream is = new ByteArrayInputStream(decoded)) {
-            return ImageIO.read(is);
+        return new SourceImage(decoded, null /* hash */, new HttpValidators());
+    }
+
+    private SourceImage getSourceFromZipExport(URI uri) throws IOException {
+        // Zip export images are stored by the SHA-256 of their content.
+        String hash = uri.getSchemeSpecificPart();
+        String key = ZIP_IMAGE_KEY_PREFIX + hash;
+        try (InputStream is = mBlobStore.getStream(key)) {
+            if (is == null) {
+                throw new FileNotFoundException("Missing zip export image " + uri);
+            }
+            return new SourceImage(ByteStreams.toByteArray(is), hash, new HttpValidators());
         }
     }
 
-    private BufferedImage downloadImageFromLink(URI uri) throws IOException {
+    @Null
+    private SourceImage downloadSourceFromLink(URI uri, @NonNull HttpValidators validators) throws IOException {
         // Direct reading can fail with a 403 (auth issue).
-        URL url = uri.toURL();
-        int timeoutSeconds = 30;
-        int retry = 0;
-        while (true) {
-            try {
-                InputStream stream = mGDocReader.getDataByUrl(url);
-                return ImageIO.read(stream);
-            } catch (IOException e) {
-                if (retry > 3) {
-                    throw e;
+        return readSourceFromUrl(uri.toURL(), validators);
+    }
+
+    /**
+     * Downloads an image. Failures while reading the stream are retried too, and the download
+     * itself is not retried separately.
+     * <p/>
+     * The same image is typically used by several pages (blog categories, index, full page,
+     * feed) with different cache keys: concurrent and recent requests for the same URL share
+     * a single download and the same decoded image, which callers must not modify.
+     *
+     * @param validators Sent for a conditional request and updated from the response.
+     * @return The image source or null if the server indicates it was not modified.
+     */
+    @Null
+    private SourceImage readSourceFromUrl(URL url, @NonNull HttpValidators validators) throws IOException {
+        // The validators are part of the key: a caller without a cached file must not get
+        // the "not modified" result of a caller with one.
+        SourceImage source = mImages.get(url + "|" + validators, () -> {
+            HttpValidators responseValidators = HttpValidators.parse(validators.toString());
+            byte[] bytes = mRetryPolicy.run("image " + url, attempt -> {
+                InputStream stream = mGDocReader.getDataByUrl(url, responseValidators);
+                if (stream == null) {
+                    return null;
                 }
-                mLogger.d(TAG, e.getClass().getSimpleName() + " retry: " + retry + ", timeout:" + timeoutSeconds + " seconds, URL:" + url);
-                try {
-                    Thread.sleep(1000L * (timeoutSeconds / 2));
-                } catch (InterruptedException ignore) {
-                    throw e;
+                try (InputStream is = stream) {
+                    return ByteStreams.toByteArray(is);
                 }
-                timeoutSeconds *= 2;
-                retry++;
-            }
+            });
+            return new SourceImage(bytes, null /* hash */, responseValidators);
+        });
+        validators.set(source.mValidators.getETag(), source.mValidators.getLastModified());
+        return source.mBytes == null ? null : source;
+    }
+
+    /**
+     * Returns the response validators stored with the cached file, if the cached file still
+     * exists. Otherwise returns empty validators so that the image is fully fetched.
+     */
+    @NonNull
+    private HttpValidators getCachedValidators(String cacheKey) throws IOException {
+        String cachedFilePath = mHashStore.getString(cacheKey);
+        if (cachedFilePath == null || !mFileOps.isFile(new File(cachedFilePath))) {
+            return new HttpValidators();
+        }
+        return HttpValidators.parse(mHashStore.getString(cacheKey + "_validators"));
+    }
+
+    /**
+     * Records the cached file path for the given image/drawing, with the validators of the
+     * response it was generated from. Empty validators are stored too so that stale ones are
+     * never sent for a newer file.
+     */
+    private void putCachedFilePath(String cacheKey, File file, @Null HttpValidators validators) throws IOException {
+        mHashStore.putString(cacheKey, file.getPath());
+        if (validators != null) {
+            mHashStore.putString(cacheKey + "_validators", validators.toString());
         }
     }
 
@@ -385,9 +618,10 @@ public class GDocHelper {
      * A typical case is to have width=some value and height=0, in which case height is recomputed
      * to match the scaled width.
      * <p/>
-     * Side effect: this loads both the original image and the generated JPG and PNG streams in
-     * memory. It also means the original image is always decoded then re-encoded, even if it's
-     * in the same format.
+     * The format is predicted by the {@link ImageFormatPredictor} and the image is only encoded
+     * once, except when the predictor requests both formats to keep the smaller one.
+     * Note that the original image is always decoded then re-encoded, even if it's in the same
+     * format.
      *
      * @param destDir Destination direction.
      * @param destName Base name (without the .extension)
@@ -412,27 +646,25 @@ public class GDocHelper {
             height = h;
         }
 
-        ByteArrayOutputStream pngStream = new ByteArrayOutputStream();
-        ByteArrayOutputStream jpgStream = new ByteArrayOutputStream();
-        Thumbnails.of(image)
-                .size(width, height)
-                .antialiasing(Antialiasing.ON)
-                .outputFormat("png")
-                .toOutputStream(pngStream);
-        Thumbnails.of(image)
-                .size(width, height)
-                .antialiasing(Antialiasing.ON)
-                .outputFormat("jpg")
-                .outputQuality(0.9f)
-                .toOutputStream(jpgStream);
-
-        pngStream.close();
-        jpgStream.close();
+        ImageFormatPredictor.Prediction prediction = mImageFormatPredictor.predict(image);
+        String extension;
+        byte[] result;
+        String sizes;
+        if (mImageFormatPredictor.shouldEncodeBoth(prediction)) {
+            byte[] png = encodeImage(image, width, height, ImageFormatPredictor.PNG);
+            byte[] jpg = encodeImage(image, width, height, ImageFormatPredictor.JPG);
+            boolean usePng = png.length < jpg.length;
+            extension = usePng ? ImageFormatPredictor.PNG : ImageFormatPredictor.JPG;
+            result = usePng ? png : jpg;
+            mImageFormatPredictor.report(prediction, extension);
+            sizes = "png: " + png.length + " " + (usePng ? "<" : ">") + " jpg: " + jpg.length
+                    + ", predicted " + prediction;
+        } else {
+            extension = prediction.getFormat();
+            result = encodeImage(image, width, height, extension);
+            sizes = extension + ": " + result.length + ", predicted " + prediction;
+        }
 
-        int pngSize = pngStream.size();
-        int jpgSize = jpgStream.size();
-        ByteArrayOutputStream result = pngSize < jpgSize ? pngStream : jpgStream;
-        String extension = pngSize < jpgSize ? "png" : "jpg";
         destName += "." + extension;
         File parentDir = destDir.getParentFile();
         if (!mFileOps.isDir(parentDir)) {
@@ -443,13 +675,31 @@ public class GDocHelper {
 
         mLogger.d(TAG, "         Writing: " + destName
                 + ", " + width + "x" + height
-                + ", [png: " + pngSize + " " + (pngSize < jpgSize ? "<" : ">") + " jpg: " + jpgSize + "]");
+                + ", [" + sizes + "]");
+        // The file may be hard-linked from other directories: replace it rather than writing
+        // through the link.
+        java.nio.file.Files.deleteIfExists(destFile.toPath());
         ByteSink writer = Files.asByteSink(destFile);
-        writer.write(result.toByteArray());
+        writer.write(result);
         timing.end();
         return destFile;
     }
 
+    /** Resizes and encodes the image in the given format, {@link ImageFormatPredictor#PNG} or JPG. */
+    private byte[] encodeImage(BufferedImage image, int width, int height, String format) throws IOException {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        Thumbnails.Builder<BufferedImage> builder = Thumbnails.of(image)
+                .size(width, height)
+                .antialiasing(Antialiasing.ON)
+                .outputFormat(format);
+        if (ImageFormatPredictor.JPG.equals(format)) {
+            builder.outputQuality(0.9f);
+        }
+        builder.toOutputStream(stream);
+        stream.close();
+        return stream.toByteArray();
+    }
+
 
     // ---
 
@@ -464,6 +714,9 @@ public class GDocHelper {
      * - {@link #getGDocSync} when the caller is going to fetch and use the content no matter what.
      * <br/>
      * - {@link #getGDocAsync} when the caller doesn't need the content if the metadata is up-to-date.
+     * <p/>
+     * Callers which can consume a stream should use {@link GDocEntity#openContentStream()}:
+     * the export is then spooled directly to the blob store and read back from there.
      */
     @Null
     public GDocEntity getGDocSync(@NonNull String fileId, @NonNull String mimeType) {
@@ -526,6 +779,124 @@ public class GDocHelper {
         return new GDocEntity(metadata, updateToDate, content);
     }
 
+    /**
+     * Retrieves the HTML export of the given GDoc id, like {@link #getGDocAsync} does.
+     * <p/>
+     * With zipExport, the document is exported as application/zip instead of text/html.
+     * The zip holds the HTML with its images as separate files rather than inlined as base64
+     * data: URIs, which makes the HTML much smaller and faster to parse. The images are
+     * extracted in the blob store when the content is read, see {@link #unpackZipExport}.
+     * The content of the entity is the HTML.
+     */
+    @Null
+    public GDocEntity getGDocHtmlAsync(@NonNull String fileId, boolean zipExport) {
+        if (!zipExport) {
+            return getGDocAsync(fileId, MIME_HTML);
+        }
+        GDocEntity zip = getGDocAsync(fileId, MIME_ZIP);
+        if (zip == null) {
+            return null;
+        }
+
+        GDocEntity.ContentFetcher fetcher = (entity) -> {
+            try (InputStream zipStream = zip.openContentStream()) {
+                Preconditions.checkNotNull(zipStream); // fail fast
+                return unpackZipHtml(zipStream);
+            } catch (IOException e) {
+                mLogger.d(TAG, "        Unpacking zip export failed", e);
+                throw new RuntimeException(e);
+            }
+        };
+        GDocEntity.StreamOpener streamOpener = (entity) -> {
+            try (InputStream zipStream = zip.openContentStream()) {
+                return zipStream == null ? null : unpackZipExport(zipStream);
+            }
+        };
+        GDocEntity.Syncer syncToStore = (entity) -> zip.syncToStore();
+
+        return new GDocEntity(zip.getMetadata(), zip.isUpdateToDate(), fetcher, streamOpener, syncToStore);
+    }
+
+    /**
+     * Reads a GDoc zip export and returns a stream on its HTML file.
+     * <p/>
+     * The images of the zip are stored in the blob store by content hash, and their references
+     * in the HTML are replaced by {@link #ZIP_IMAGE_SCHEME} URIs which {@link #downloadImage}
+     * reads back from the blob store. Images are decoded only when they are actually needed.
+     * The zip stream is read sequentially and is not closed.
+     */
+    @NonNull
+    public InputStream unpackZipExport(@NonNull InputStream zipStream) throws IOException {
+        return new ByteArrayInputStream(unpackZipHtml(zipStream));
+    }
+
+    /** Same as {@link #unpackZipExport} but returns the HTML bytes. */
+    @NonNull
+    private byte[] unpackZipHtml(@NonNull InputStream zipStream) throws IOException {
+        Timing.TimeAccumulator timing = mTiming.get("Html.Unzip").start();
+        try {
+            String html = null;
+            Map<String, String> imageUris = new HashMap<>();
+            ZipInputStream zis = new ZipInputStream(zipStream);
+            ZipEntry entry;
+            while ((entry = zis.getNextEntry()) != null) {
+                if (entry.isDirectory()) {
+                    continue;
+                }
+                String name = entry.getName();
+                if (name.endsWith(".html")) {
+                    html = new String(ByteStreams.toByteArray(zis), Charsets.UTF_8);
+                } else {
+                    imageUris.put(name, ZIP_IMAGE_SCHEME + ":" + storeZipImage(zis));
+                }
+            }
+            if (html == null) {
+                throw new IOException("Zip export without an HTML file");
+            }
+
+            // Rewrite all the image references in a single pass over the HTML.
+            Matcher matcher = ZIP_IMAGE_SRC.matcher(html);
+            StringBuffer rewritten = new StringBuffer(html.length());
+            while (matcher.find()) {
+                String uri = imageUris.get(matcher.group(2));
+                if (uri != null) {
+                    matcher.appendReplacement(rewritten, "$1" + Matcher.quoteReplacement(uri) + "$3");
+                }
+            }
+            matcher.appendTail(rewritten);
+            return rewritten.toString().getBytes(Charsets.UTF_8);
+        } finally {
+            timing.end();
+        }
+    }
+
+    /**
+     * Stores the current entry of the zip stream in the blob store, keyed by its SHA-256, and
+     * returns the hash. The image is never held in memory: since its key depends on its content,
+     * it is hashed while being spooled to a temp file, which then only gets stored if new.
+     */
+    @NonNull
+    private String storeZipImage(@NonNull ZipInputStream zis) throws IOException {
+        StoreFileOps fileOps = mBlobStore.getFileOps();
+        // The spool file is unique to the calling thread, so that concurrent unpacks don't collide.
+        File spool = mBlobStore.getStoreFile(ZIP_SPOOL_PREFIX + Thread.currentThread().getId() + ".tmp");
+        try {
+            MessageDigest digest = DigestUtils.getSha256Digest();
+            fileOps.createParentDirs(spool);
+            fileOps.writeAtomically(new DigestInputStream(zis, digest), spool);
+            String hash = Hex.encodeHexString(digest.digest());
+            String key = ZIP_IMAGE_KEY_PREFIX + hash;
+            if (!mBlobStore.containsBytes(key)) {
+                try (InputStream is = fileOps.openRead(spool)) {
+                    mBlobStore.putStream(key, is);
+                }
+            }
+            return hash;
+        } finally {
+            fileOps.delete(spool);
+        }
+    }
+
     /**
      * Retrieves only the metadata for the given GDoc id immediately.
      * SourceContent retrieval is deferred till actually needed.
@@ -575,6 +946,10 @@ public class GDocHelper {
             String storeHash = mHashStore.getString(metadataKey);
             updateToDate = metadata.getContentHash().equals(storeHash);
         } catch (IOException ignore) {}
+        if (updateToDate) {
+            // The content may not be read at all in this run but it's still valid.
+            mBlobStore.keep(contentKey);
+        }
 
         GDocEntity.ContentFetcher fetcher = (entity) -> {
             byte[] content = null;
@@ -609,6 +984,27 @@ public class GDocHelper {
             return content;
         };
 
+        GDocEntity.StreamOpener streamOpener = (entity) -> {
+            if (entity.isUpdateToDate()) {
+                InputStream stream = mBlobStore.getStream(contentKey);
+                if (stream != null) {
+                    return stream;
+                }
+            }
+            String exportLink = metadata.getExportLinks().get(mimeType);
+            if (exportLink == null) {
+                return null; // Legacy, use the content fetcher.
+            }
+            // Spool the export directly into the store rather than on the heap.
+            // Only the content is stored here; the hash is still only updated by syncToStore
+            // so a failed run will fetch this again.
+            mLogger.d(TAG, "        Streaming " + mimeType + ": " + fileId);
+            try (InputStream inputStream = mGDocReader.getDataByUrl(new URL(exportLink))) {
+                mBlobStore.putStream(contentKey, inputStream);
+            }
+            return mBlobStore.getStream(contentKey);
+        };
+
         GDocEntity.Syncer syncToStore = (entity) -> {
             if (entity.isUpdateToDate()) {
                 return;
@@ -623,7 +1019,7 @@ public class GDocHelper {
             }
         };
 
-        return new GDocEntity(metadata, updateToDate, fetcher, syncToStore);
+        return new GDocEntity(metadata, updateToDate, fetcher, streamOpener, syncToStore);
     }
 
 }
@@ -1,26 +1,33 @@
 package com.alflabs.rig4.gdoc;
 
 import com.alflabs.annotations.NonNull;
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
 import com.google.auto.value.AutoValue;
 
 import java.util.Map;
 
+/** Drive metadata of a GDoc. Serializable via JSON so that it can be cached in the blob store. */
 @AutoValue
 public abstract class GDocMetadata {
     @NonNull
+    @JsonCreator
     public static GDocMetadata create(
-            @NonNull String title,
-            @NonNull String contentHash,
-            @NonNull Map<String, String> exportLinks) {
+            @JsonProperty("title") @NonNull String title,
+            @JsonProperty("contentHash") @NonNull String contentHash,
+            @JsonProperty("exportLinks") @NonNull Map<String, String> exportLinks) {
         return new AutoValue_GDocMetadata(title, contentHash, exportLinks);
     }
 
     @NonNull
+    @JsonProperty("title")
     public abstract String getTitle();
 
     @NonNull
+    @JsonProperty("contentHash")
     public abstract String getContentHash();
 
     @NonNull
+    @JsonProperty("exportLinks")
     public abstract Map<String, String> getExportLinks();
 }
@@ -1,8 +1,12 @@
 package com.alflabs.rig4.gdoc;
 
 import com.alflabs.annotations.NonNull;
+import com.alflabs.annotations.Null;
+import com.alflabs.rig4.BlobStore;
+import com.alflabs.rig4.HashStore;
 import com.alflabs.rig4.Timing;
 import com.alflabs.rig4.flags.Flags;
+import com.alflabs.utils.IClock;
 import com.alflabs.utils.ILogger;
 import com.alflabs.utils.StringUtils;
 import com.google.api.client.auth.oauth2.Credential;
@@ -13,13 +17,20 @@ import com.google.api.client.googleapis.auth.oauth2.GoogleClientSecrets;
 import com.google.api.client.googleapis.javanet.GoogleNetHttpTransport;
 import com.google.api.client.http.GenericUrl;
 import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpRequestInitializer;
 import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.client.http.HttpStatusCodes;
+import com.google.api.client.http.HttpTransport;
 import com.google.api.client.http.javanet.NetHttpTransport;
 import com.google.api.client.json.JsonFactory;
 import com.google.api.client.util.DateTime;
 import com.google.api.client.util.store.FileDataStoreFactory;
 import com.google.api.services.drive.Drive;
 import com.google.api.services.drive.DriveScopes;
+import com.google.api.services.drive.model.Change;
+import com.google.api.services.drive.model.ChangeList;
+import com.google.common.annotations.VisibleForTesting;
 import org.apache.commons.codec.digest.DigestUtils;
 
 import javax.inject.Inject;
@@ -32,8 +43,18 @@ import java.io.InputStream;
 import java.net.SocketTimeoutException;
 import java.net.URL;
 import java.security.GeneralSecurityException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  *
@@ -51,22 +72,58 @@ public class GDocReader {
     private static final String GDOC_ROOT_DIR = "gdoc-root-dir";
     private static final String GDOC_PATH_CLIENT_SECRET_JSON = "gdoc-path-client-secret-json";
     private static final String GDOC_PATH_DATA_STORE_DIR = "gdoc-path-data-store-dir";
+    private static final String GDOC_PREFETCH_THREADS = "gdoc-prefetch-threads";
+    private static final String GDOC_CHANGES_FEED = "gdoc-changes-feed";
+    private static final String GDOC_RATE_METADATA = "gdoc-rate-metadata";
+    private static final String GDOC_RATE_EXPORT = "gdoc-rate-export";
+    private static final String GDOC_RATE_DOWNLOAD = "gdoc-rate-download";
+    private static final String GDOC_RECORD_DIR = "gdoc-record-dir";
+    private static final String GDOC_REPLAY_DIR = "gdoc-replay-dir";
+    private static final String GDOC_REPLAY_LATENCY_MS = "gdoc-replay-latency-ms";
+    private static final String CHANGES_PAGE_TOKEN_KEY = "gdoc-changes-page-token";
+    private static final String METADATA_KEY_PREFIX = "gdoc-metadata-";
     private static final String APPLICATION_NAME = "rig4";
 
     private final JsonFactory mJsonFactory;
     private final Flags mFlags;
+    private final IClock mClock;
     private final ILogger mLogger;
     private final Timing.TimeAccumulator mTiming;
+    private final Timing.TimeAccumulator mPrefetchTiming;
+    private final BlobStore mBlobStore;
+    private final HashStore mHashStore;
+    private final RetryPolicy mRetryPolicy;
+    /** Metadata loaded in this run, shared by all the requests for the same file. */
+    private final SingleFlight<String, GDocMetadata> mMetadata = new SingleFlight<>(Integer.MAX_VALUE);
     private NetHttpTransport mHttpTransport;
     private Drive mDrive;
+    private RateLimiter mMetadataLimiter;
+    private RateLimiter mExportLimiter;
+    private RateLimiter mDownloadLimiter;
+    /** Files changed since the last run, or null if unknown (everything may have changed). */
+    private volatile Set<String> mChangedFileIds;
+    private String mNextPageToken;
 
 
     @Inject
-    public GDocReader(JsonFactory jsonFactory, Flags flags, Timing timing, ILogger logger) {
+    public GDocReader(
+            JsonFactory jsonFactory,
+            Flags flags,
+            IClock clock,
+            Timing timing,
+            ILogger logger,
+            BlobStore blobStore,
+            HashStore hashStore,
+            RetryPolicy retryPolicy) {
         mJsonFactory = jsonFactory;
         mFlags = flags;
+        mClock = clock;
         mLogger = logger;
+        mBlobStore = blobStore;
+        mHashStore = hashStore;
+        mRetryPolicy = retryPolicy;
         mTiming = timing.get("GDocReader");
+        mPrefetchTiming = timing.get("GDocReader.Prefetch");
     }
 
     public void declareFlags() {
@@ -79,17 +136,70 @@ public class GDocReader {
         mFlags.addString(GDOC_PATH_DATA_STORE_DIR,
                 "$GDOC_ROOT_DIR/gdoc_store",
                 "Directory where the Google Drive API stores local credentials.");
+        mFlags.addInt(GDOC_PREFETCH_THREADS,
+                8,
+                "Number of concurrent requests used to prefetch the metadata of the index entries. 0 to disable.");
+        mFlags.addBool(GDOC_CHANGES_FEED,
+                false,
+                "Uses the Drive changes feed to only fetch the metadata of the files changed since the last run.");
+        mFlags.addInt(GDOC_RATE_METADATA,
+                10,
+                "Maximum Drive metadata requests per second, reduced automatically when rate-limited. 0 to disable.");
+        mFlags.addInt(GDOC_RATE_EXPORT,
+                3,
+                "Maximum document export requests per second, reduced automatically when rate-limited. 0 to disable.");
+        mFlags.addInt(GDOC_RATE_DOWNLOAD,
+                10,
+                "Maximum image and drawing requests per second, reduced automatically when rate-limited. 0 to disable.");
+        mFlags.addString(GDOC_RECORD_DIR,
+                "",
+                "Directory where all the Drive requests and responses are recorded. Empty to disable.");
+        mFlags.addString(GDOC_REPLAY_DIR,
+                "",
+                "Directory of recorded Drive requests to replay offline, without credentials. Empty to disable.");
+        mFlags.addInt(GDOC_REPLAY_LATENCY_MS,
+                0,
+                "Latency added to each replayed Drive request, in milliseconds.");
     }
 
     public void init() throws GeneralSecurityException, IOException {
         mTiming.start();
+        String replayDir = mFlags.getString(GDOC_REPLAY_DIR);
+        if (replayDir != null && !replayDir.isEmpty()) {
+            mLogger.d(TAG, "Replaying Drive requests from " + replayDir);
+            initDrive(new ReplayTransport(
+                    new File(StringUtils.expandUserHome(replayDir)),
+                    mClock,
+                    mFlags.getInt(GDOC_REPLAY_LATENCY_MS)),
+                    null /* credential */);
+            mTiming.end();
+            return;
+        }
+
         mHttpTransport = GoogleNetHttpTransport.newTrustedTransport();
         Credential credential = authorize();
-        // set up the global Drive instance
-        mDrive = new Drive.Builder(mHttpTransport, mJsonFactory, credential)
+        HttpTransport transport = mHttpTransport;
+        String recordDir = mFlags.getString(GDOC_RECORD_DIR);
+        if (recordDir != null && !recordDir.isEmpty()) {
+            mLogger.d(TAG, "Recording Drive requests in " + recordDir);
+            transport = new RecordingTransport(transport, new File(StringUtils.expandUserHome(recordDir)));
+        }
+        initDrive(transport, credential);
+        mTiming.end();
+    }
+
+    /**
+     * Sets up the global Drive instance and the rate limiters of each class of endpoints.
+     * Tests use a fake transport and no credential.
+     */
+    @VisibleForTesting
+    void initDrive(@NonNull HttpTransport transport, @Null HttpRequestInitializer credential) {
+        mDrive = new Drive.Builder(transport, mJsonFactory, credential)
                 .setApplicationName(APPLICATION_NAME)
                 .build();
-        mTiming.end();
+        mMetadataLimiter = new RateLimiter("Metadata", mClock, mLogger, mFlags.getInt(GDOC_RATE_METADATA));
+        mExportLimiter = new RateLimiter("Export", mClock, mLogger, mFlags.getInt(GDOC_RATE_EXPORT));
+        mDownloadLimiter = new RateLimiter("Download", mClock, mLogger, mFlags.getInt(GDOC_RATE_DOWNLOAD));
     }
 
     /**
@@ -157,57 +267,174 @@ public class GDocReader {
         // https://developers.google.com/drive/v3/web/manage-downloads
         mTiming.start();
         try {
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            mDrive.files().export(fileId, mimeType).executeAndDownloadTo(baos);
-            return baos.toByteArray();
+            return mRetryPolicy.run("readFileById " + fileId, mExportLimiter.limit(attempt -> {
+                ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                mDrive.files().export(fileId, mimeType).executeAndDownloadTo(baos);
+                return baos.toByteArray();
+            }));
         } finally {
             mTiming.end();
         }
     }
 
+    /**
+     * When the changes feed is enabled, retrieves the list of files changed since the last
+     * successful run. {@link #getMetadataById} then returns the metadata cached in the
+     * {@link BlobStore} for all the other files instead of asking Drive.
+     * <p/>
+     * On the first run there is no page token yet: the current one is requested and all files
+     * are considered changed.
+     * <p/>
+     * This must be called before any metadata is read, and {@link #commitChanges()} at the end
+     * of a successful run.
+     */
+    public void readChanges() throws IOException {
+        if (!mFlags.getBool(GDOC_CHANGES_FEED)) {
+            return;
+        }
+        mTiming.start();
+        try {
+            String pageToken = mHashStore.getString(CHANGES_PAGE_TOKEN_KEY);
+            if (pageToken == null) {
+                mNextPageToken = mRetryPolicy.run("getStartPageToken", mMetadataLimiter.limit(
+                        attempt -> mDrive.changes().getStartPageToken().execute().getStartPageToken()));
+                mLogger.d(TAG, "Changes feed: no page token, checking all files");
+                return;
+            }
+
+            Set<String> changed = ConcurrentHashMap.newKeySet();
+            while (pageToken != null) {
+                String listToken = pageToken;
+                ChangeList changes = mRetryPolicy.run("listChanges " + listToken, mMetadataLimiter.limit(
+                        attempt -> mDrive.changes()
+                                .list(listToken)
+                                .setFields("nextPageToken,newStartPageToken,changes(fileId)")
+                                .setPageSize(1000)
+                                .execute()));
+                if (changes.getChanges() != null) {
+                    for (Change change : changes.getChanges()) {
+                        changed.add(change.getFileId());
+                    }
+                }
+                // The last page has no next page token but the token for the next run.
+                pageToken = changes.getNextPageToken();
+                if (pageToken == null) {
+                    mNextPageToken = changes.getNewStartPageToken();
+                }
+            }
+            mChangedFileIds = changed;
+            mLogger.d(TAG, "Changes feed: " + changed.size() + " files changed since the last run");
+        } finally {
+            mTiming.end();
+        }
+    }
+
+    /**
+     * Persists the changes feed page token obtained by {@link #readChanges()}, so that the next
+     * run only looks at the changes from this point on. This should only be called at the end
+     * of a successful run: otherwise the next run gets the same changes again.
+     */
+    public void commitChanges() throws IOException {
+        if (mNextPageToken != null) {
+            mHashStore.putString(CHANGES_PAGE_TOKEN_KEY, mNextPageToken);
+        }
+    }
+
+    /**
+     * Fetches the metadata of all the given files concurrently, instead of one round-trip at
+     * a time when each document is processed.
+     * <p/>
+     * The {@link #getMetadataById} calls for these files then return the prefetched metadata,
+     * or wait for it if it's still being fetched. Failures are only logged: the metadata is then
+     * fetched again when requested.
+     */
+    public void prefetchMetadata(@NonNull Collection<String> fileIds) {
+        int threads = mFlags.getInt(GDOC_PREFETCH_THREADS);
+        if (threads <= 0 || fileIds.isEmpty()) {
+            return;
+        }
+        mPrefetchTiming.start();
+        AtomicInteger prefetched = new AtomicInteger();
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (String fileId : new LinkedHashSet<>(fileIds)) {
+            tasks.add(() -> {
+                try {
+                    getMetadataById(fileId);
+                    prefetched.incrementAndGet();
+                } catch (Exception e) {
+                    mLogger.d(TAG, "Prefetch metadata failed for " + fileId + ": " + e);
+                }
+                return null;
+            });
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, tasks.size()));
+        try {
+            executor.invokeAll(tasks);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            executor.shutdownNow();
+            mPrefetchTiming.end();
+        }
+        mLogger.d(TAG, "Prefetched metadata for " + prefetched.get() + " documents");
+    }
+
     /**
      * Retrieve a SHA1 hash that indicates whether the content as changed.
+     * <p/>
+     * The metadata is only fetched once per run: the same document is typically requested
+     * by several generators, possibly concurrently.
      */
     @NonNull
     public GDocMetadata getMetadataById(String fileId) throws IOException {
+        return mMetadata.get(fileId, () -> loadMetadataById(fileId));
+    }
+
+    /**
+     * Returns the cached metadata if the changes feed says the file has not changed,
+     * otherwise fetches it from Drive.
+     */
+    @NonNull
+    private GDocMetadata loadMetadataById(String fileId) throws IOException {
+        if (!mFlags.getBool(GDOC_CHANGES_FEED)) {
+            return fetchMetadataById(fileId);
+        }
+        String cacheKey = METADATA_KEY_PREFIX + fileId;
+        Set<String> changedFileIds = mChangedFileIds;
+        if (changedFileIds != null && !changedFileIds.contains(fileId)) {
+            GDocMetadata cached = mBlobStore.getJson(cacheKey, GDocMetadata.class);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        GDocMetadata metadata = fetchMetadataById(fileId);
+        mBlobStore.putJson(cacheKey, metadata);
+        return metadata;
+    }
+
+    @NonNull
+    private GDocMetadata fetchMetadataById(String fileId) throws IOException {
         // We need to explicitely tell which fields we want, otherwsie the response
         // contains nothing useful. This is still a hint and some fields might just
         // be missing (e.g. the md5 checksum on a gdoc).
         mTiming.start();
         try {
-            int timeoutSeconds = 60;
-            int retry = 0;
-            while (true) {
-                try {
-                    Drive.Files.Get get = mDrive.files()
-                            .get(fileId)
-                            .setFields("md5Checksum,modifiedTime,version,name,exportLinks");
-                    com.google.api.services.drive.model.File gfile = get.execute();
+            return mRetryPolicy.run("getMetadataById " + fileId, mMetadataLimiter.limit(attempt -> {
+                Drive.Files.Get get = mDrive.files()
+                        .get(fileId)
+                        .setFields("md5Checksum,modifiedTime,version,name,exportLinks");
+                com.google.api.services.drive.model.File gfile = get.execute();
 
-                    Long version = gfile.getVersion();
-                    String checksum = gfile.getMd5Checksum();
-                    DateTime dateTime = gfile.getModifiedTime();
-                    Map<String, String> exportLinks = gfile.getExportLinks();
+                Long version = gfile.getVersion();
+                String checksum = gfile.getMd5Checksum();
+                DateTime dateTime = gfile.getModifiedTime();
+                Map<String, String> exportLinks = gfile.getExportLinks();
 
-                    String hash = String.format("v:%s|d:%s|c:%s", version, dateTime, checksum);
-                    hash = DigestUtils.sha256Hex(hash);
+                String hash = String.format("v:%s|d:%s|c:%s", version, dateTime, checksum);
+                hash = DigestUtils.sha256Hex(hash);
 
-                    return GDocMetadata.create(gfile.getName(), hash, exportLinks);
-                } catch (Exception e) {
-                    if (retry > 3) {
-                        throw e;
-                    }
-                    mLogger.d(TAG,
-                            "getMetadataById " + e.getClass().getSimpleName()
-                                    + " retry: " + retry
-                                    + ", timeout:" + timeoutSeconds + " seconds");
-                    try {
-                        Thread.sleep(1000L * (timeoutSeconds / 2));
-                    } catch (InterruptedException ignore) {}
-                    timeoutSeconds *= 2;
-                    retry++;
-                }
-            }
+                return GDocMetadata.create(gfile.getName(), hash, exportLinks);
+            }));
         } finally {
             mTiming.end();
         }
@@ -216,38 +443,60 @@ public class GDocReader {
     /**
      * Fetches data from a GDrive URL.
      * <p>
-     * This handles reties with increasing timeouts and should handle 403 auth access.
+     * This handles retries with increasing timeouts using the {@link RetryPolicy} and should
+     * handle 403 auth access. This is used for document exports and is rate-limited as such.
      */
     public InputStream getDataByUrl(URL url) throws IOException {
+        return getDataByUrl(url, null);
+    }
+
+    /**
+     * Fetches data from a GDrive URL with a conditional request.
+     * <p/>
+     * When the validators are not empty, they are sent as If-None-Match / If-Modified-Since.
+     * The validators of the response then replace them so that the caller can store them with
+     * its cached result.
+     * <p/>
+     * This is used for images and drawings, which are rate-limited separately from the
+     * document exports.
+     *
+     * @param validators Null for a plain document export request.
+     * @return The response stream, or null if the server replied 304 Not Modified, in which case
+     *  the validators are left unchanged.
+     */
+    @Null
+    public InputStream getDataByUrl(URL url, @Null HttpValidators validators) throws IOException {
         mTiming.start();
         try {
-            // Only large pages with lots of images inlined as data: URIs, GDoc export now
-            // regularly takes 30-60 seconds.
-            int timeoutSeconds = 60;
-            int retry = 0;
-            while (true) {
-                try {
-                    HttpRequest request = mDrive.getRequestFactory().buildGetRequest(new GenericUrl(url));
-                    request.setReadTimeout(1000 * timeoutSeconds); // read timeout in milliseconds
+            RateLimiter limiter = validators == null ? mExportLimiter : mDownloadLimiter;
+            return mRetryPolicy.run("getDataByUrl " + url, limiter.limit(attempt -> {
+                // Only large pages with lots of images inlined as data: URIs, GDoc export now
+                // regularly takes 30-60 seconds.
+                int timeoutSeconds = 60 << Math.min(attempt, 4);
+                HttpRequest request = mDrive.getRequestFactory().buildGetRequest(new GenericUrl(url));
+                request.setReadTimeout(1000 * timeoutSeconds); // read timeout in milliseconds
+                if (validators == null) {
                     request.setThrowExceptionOnExecuteError(true);
-                    HttpResponse response = request.execute();
-                    return response.getContent();
-                } catch (Exception e) {
-                    if (retry > 3) {
-                        throw e;
-                    }
-                    mLogger.d(TAG,
-                            "getDataByUrl " + e.getClass().getSimpleName()
-                                    + " retry: " + retry
-                                    + ", timeout:" + timeoutSeconds + " seconds"
-                                    + ", URL:" + url.toString());
-                    try {
-                        Thread.sleep(1000L * (timeoutSeconds / 2));
-                    } catch (InterruptedException ignore) {}
-                    timeoutSeconds *= 2;
-                    retry++;
+                    return request.execute().getContent();
                 }
-            }
+
+                request.getHeaders()
+                        .setIfNoneMatch(validators.getETag())
+                        .setIfModifiedSince(validators.getLastModified());
+                request.setThrowExceptionOnExecuteError(false);
+                HttpResponse response = request.execute();
+                if (response.getStatusCode() == HttpStatusCodes.STATUS_CODE_NOT_MODIFIED) {
+                    response.disconnect();
+                    return null;
+                }
+                if (!response.isSuccessStatusCode()) {
+                    HttpResponseException e = new HttpResponseException(response);
+                    response.disconnect();
+                    throw e;
+                }
+                validators.set(response.getHeaders().getETag(), response.getHeaders().getLastModified());
+                return response.getContent();
+            }));
         } finally {
             mTiming.end();
         }
@@ -0,0 +1,62 @@
+package com.alflabs.rig4.gdoc;
+
+import com.alflabs.annotations.NonNull;
+import com.alflabs.annotations.Null;
+
+/**
+ * The validators of an HTTP response (ETag and Last-Modified) used to send a conditional
+ * request the next time the same URL is fetched.
+ * <p/>
+ * Validators are kept in the {@link com.alflabs.rig4.HashStore} next to the cached result,
+ * in the form returned by {@link #toString()}.
+ */
+public class HttpValidators {
+    private static final String SEPARATOR = "\n";
+
+    private String mETag;
+    private String mLastModified;
+
+    public HttpValidators() {}
+
+    public HttpValidators(@Null String eTag, @Null String lastModified) {
+        set(eTag, lastModified);
+    }
+
+    /** Parses validators stored with {@link #toString()}. A null or invalid value gives empty validators. */
+    @NonNull
+    public static HttpValidators parse(@Null String stored) {
+        HttpValidators validators = new HttpValidators();
+        if (stored != null) {
+            int pos = stored.indexOf(SEPARATOR);
+            if (pos >= 0) {
+                validators.set(stored.substring(0, pos), stored.substring(pos + SEPARATOR.length()));
+            }
+        }
+        return validators;
+    }
+
+    @Null
+    public String getETag() {
+        return mETag;
+    }
+
+    @Null
+    public String getLastModified() {
+        return mLastModified;
+    }
+
+    public boolean isEmpty() {
+        return mETag == null && mLastModified == null;
+    }
+
+    /** Sets the validators. Empty strings are treated as missing validators. */
+    public void set(@Null String eTag, @Null String lastModified) {
+        mETag = eTag == null || eTag.isEmpty() ? null : eTag;
+        mLastModified = lastModified == null || lastModified.isEmpty() ? null : lastModified;
+    }
+
+    @Override
+    public String toString() {
+        return (mETag == null ? "" : mETag) + SEPARATOR + (mLastModified == null ? "" : mLastModified);
+    }
+}
@@ -0,0 +1,201 @@
+package com.alflabs.rig4.gdoc;
+
+import com.alflabs.annotations.NonNull;
+import com.alflabs.rig4.Timing;
+import com.alflabs.rig4.flags.Flags;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.awt.image.BufferedImage;
+import java.awt.image.WritableRaster;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Predicts whether an image is more compact as PNG or JPG from cheap statistics computed on
+ * a grid of sampled pixels, instead of encoding it in both formats to compare the sizes.
+ * <p/>
+ * Drawings, diagrams and screenshots use few colors and large flat areas, which PNG compresses
+ * well. Photos use many colors with noisy gradients, which JPG compresses well. Images with
+ * transparency are always PNG since JPG has no alpha channel.
+ * <p/>
+ * Encoding both formats can still be requested when the prediction is uncertain, or for all
+ * images to measure how often the prediction matches the smaller format.
+ */
+@Singleton
+public class ImageFormatPredictor {
+    private static final String GDOC_IMAGE_FORMAT_FALLBACK = "gdoc-image-format-fallback";
+    private static final String GDOC_IMAGE_FORMAT_AUDIT = "gdoc-image-format-audit";
+
+    public static final String PNG = "png";
+    public static final String JPG = "jpg";
+
+    /** Maximum number of pixels sampled in an image. */
+    private static final int MAX_SAMPLES = 128 * 128;
+    /** Number of distinct colors counted, after which an image is considered to have "many". */
+    private static final int MAX_COLORS = 1024;
+    /** Number of buckets of the histogram of the differences between adjacent pixels. */
+    private static final int EDGE_BUCKETS = 32;
+
+    private final Flags mFlags;
+    private final Timing mTiming;
+
+    /** The predicted format of an image. */
+    public static class Prediction {
+        private final String mFormat;
+        private final boolean mConfident;
+
+        Prediction(@NonNull String format, boolean confident) {
+            mFormat = format;
+            mConfident = confident;
+        }
+
+        /** The predicted format, either {@link #PNG} or {@link #JPG}. */
+        @NonNull
+        public String getFormat() {
+            return mFormat;
+        }
+
+        /** False when the statistics do not clearly favor one format. */
+        public boolean isConfident() {
+            return mConfident;
+        }
+
+        @Override
+        public String toString() {
+            return mFormat + (mConfident ? "" : "?");
+        }
+    }
+
+    @Inject
+    public ImageFormatPredictor(Flags flags, Timing timing) {
+        mFlags = flags;
+        mTiming = timing;
+    }
+
+    public void declareFlags() {
+        mFlags.addBool(GDOC_IMAGE_FORMAT_FALLBACK,
+                false,
+                "Encodes images as both PNG and JPG and keeps the smaller one when the predicted format is uncertain.");
+        mFlags.addBool(GDOC_IMAGE_FORMAT_AUDIT,
+                false,
+                "Encodes all images as both PNG and JPG to report how often the predicted format is the smaller one.");
+    }
+
+    /** Returns true if the image should be encoded in both formats to keep the smaller one. */
+    public boolean shouldEncodeBoth(@NonNull Prediction prediction) {
+        return mFlags.getBool(GDOC_IMAGE_FORMAT_AUDIT)
+                || (!prediction.isConfident() && mFlags.getBool(GDOC_IMAGE_FORMAT_FALLBACK));
+    }
+
+    /**
+     * Counts whether the prediction matches the smaller format, when both formats have been encoded.
+     * The counts are printed with the timings.
+     */
+    public void report(@NonNull Prediction prediction, @NonNull String smallerFormat) {
+        boolean match = prediction.getFormat().equals(smallerFormat);
+        String confidence = prediction.isConfident() ? "Confident" : "Uncertain";
+        mTiming.getCounter("ImageFormat." + confidence + (match ? ".Match" : ".Mismatch")).increment();
+    }
+
+    /** Predicts the more compact format of the image. */
+    @NonNull
+    public Prediction predict(@NonNull BufferedImage image) {
+        mTiming.getCounter("ImageFormat.Predicted").increment();
+        return computePrediction(image);
+    }
+
+    @NonNull
+    static Prediction computePrediction(@NonNull BufferedImage image) {
+        if (hasTransparency(image)) {
+            return new Prediction(PNG, true);
+        }
+
+        int w = image.getWidth();
+        int h = image.getHeight();
+        int step = Math.max(1, (int) Math.ceil(Math.sqrt((double) w * h / MAX_SAMPLES)));
+        Set<Integer> colors = new HashSet<>();
+        int[] edges = new int[EDGE_BUCKETS];
+        int numEdges = 0;
+        for (int y = 0; y < h; y += step) {
+            for (int x = 0; x < w; x += step) {
+                int argb = image.getRGB(x, y);
+                if (colors.size() < MAX_COLORS) {
+                    colors.add(argb & 0x00FFFFFF);
+                }
+                // Differences with the adjacent pixels, not the adjacent samples.
+                if (x + 1 < w) {
+                    edges[edgeBucket(argb, image.getRGB(x + 1, y))]++;
+                    numEdges++;
+                }
+                if (y + 1 < h) {
+                    edges[edgeBucket(argb, image.getRGB(x, y + 1))]++;
+                    numEdges++;
+                }
+            }
+        }
+
+        if (numEdges == 0) {
+            return new Prediction(PNG, true);
+        }
+        double flat = (double) edges[0] / numEdges;
+        double entropy = 0;
+        for (int count : edges) {
+            if (count > 0) {
+                double p = (double) count / numEdges;
+                entropy -= p * Math.log(p) / Math.log(2);
+            }
+        }
+
+        int numColors = colors.size();
+        if (numColors <= 256) {
+            // Palette-like images: drawings, diagrams, text.
+            return new Prediction(PNG, numColors <= 64 || flat > 0.5);
+        }
+        if (flat > 0.6) {
+            // Many colors but mostly flat areas, e.g. screenshots with a few gradients.
+            return new Prediction(PNG, flat > 0.8);
+        }
+        if (numColors >= MAX_COLORS && flat < 0.1 && entropy > 2) {
+            // Photo-like images: noisy gradients everywhere.
+            return new Prediction(JPG, true);
+        }
+        return new Prediction(flat < 0.3 && entropy > 2 ? JPG : PNG, false);
+    }
+
+    /**
+     * Returns true if any pixel is not opaque. Unlike the other statistics, all the pixels are
+     * checked: a single transparent pixel would be lost in JPG.
+     */
+    private static boolean hasTransparency(@NonNull BufferedImage image) {
+        WritableRaster alpha = image.getAlphaRaster();
+        if (alpha == null) {
+            return false;
+        }
+        int w = alpha.getWidth();
+        int h = alpha.getHeight();
+        int opaque = (1 << alpha.getSampleModel().getSampleSize(0)) - 1;
+        int[] row = new int[w];
+        for (int y = 0; y < h; y++) {
+            alpha.getSamples(0, y, w, 1, 0, row);
+            for (int a : row) {
+                if (a != opaque) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /** Returns the histogram bucket of the difference between 2 RGB colors, 0 when identical. */
+    private static int edgeBucket(int rgb1, int rgb2) {
+        int diff = Math.abs(((rgb1 >> 16) & 0xFF) - ((rgb2 >> 16) & 0xFF))
+                + Math.abs(((rgb1 >> 8) & 0xFF) - ((rgb2 >> 8) & 0xFF))
+                + Math.abs((rgb1 & 0xFF) - (rgb2 & 0xFF));
+        if (diff == 0) {
+            return 0;
+        }
+        // Diffs range from 1 to 765: use finer buckets for the small ones.
+        return Math.min(EDGE_BUCKETS - 1, 1 + (int) Math.sqrt(diff * 1.25));
+    }
+}
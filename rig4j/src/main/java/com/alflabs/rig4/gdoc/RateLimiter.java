@@ -0,0 +1,138 @@
+package com.alflabs.rig4.gdoc;
+
+import com.alflabs.annotations.NonNull;
+import com.alflabs.utils.IClock;
+import com.alflabs.utils.ILogger;
+import com.google.api.client.http.HttpResponseException;
+
+import java.util.Locale;
+
+/**
+ * A token bucket limiting the rate of the requests sent to one class of Drive endpoints,
+ * so that concurrent fetches stay under the quota instead of getting rate-limited errors.
+ * <p/>
+ * The bucket holds one second worth of requests. The rate adapts to the server: it is halved
+ * each time a request is rate-limited (403 rateLimitExceeded or 429), and then slowly grows
+ * back to the configured rate as requests succeed.
+ * <p/>
+ * A rate of zero disables the limiter.
+ */
+public class RateLimiter {
+    private static final String TAG = RateLimiter.class.getSimpleName();
+
+    /** The rate never drops below this fraction of the configured rate. */
+    private static final int MIN_RATE_DIVIDER = 16;
+    /** Each success grows the rate by this fraction of the configured rate. */
+    private static final int RECOVERY_DIVIDER = 50;
+
+    private final String mName;
+    private final IClock mClock;
+    private final ILogger mLogger;
+    private final double mMaxRate;
+    private double mRate;
+    private double mTokens;
+    private long mLastRefillMs;
+
+    /**
+     * @param name Name of the endpoint class, for logs.
+     * @param ratePerSecond Maximum number of requests per second. 0 to disable the limiter.
+     */
+    public RateLimiter(@NonNull String name, IClock clock, ILogger logger, int ratePerSecond) {
+        mName = name;
+        mClock = clock;
+        mLogger = logger;
+        mMaxRate = Math.max(0, ratePerSecond);
+        mRate = mMaxRate;
+        mTokens = getCapacity();
+        mLastRefillMs = clock.elapsedRealtime();
+    }
+
+    /** Returns the current rate in requests per second. */
+    public synchronized double getRate() {
+        return mRate;
+    }
+
+    /**
+     * Takes a token, waiting for one if the bucket is empty.
+     * Concurrent callers are queued: each one reserves its token before waiting.
+     */
+    public void acquire() {
+        long waitMs;
+        synchronized (this) {
+            if (mMaxRate <= 0) {
+                return;
+            }
+            refill();
+            mTokens -= 1;
+            waitMs = mTokens >= 0 ? 0 : (long) Math.ceil(-mTokens * 1000 / mRate);
+        }
+        if (waitMs > 0) {
+            mClock.sleep(waitMs);
+        }
+    }
+
+    /** Slowly grows the rate back to the configured one. */
+    public synchronized void onSuccess() {
+        if (mRate < mMaxRate) {
+            refill();
+            mRate = Math.min(mMaxRate, mRate + mMaxRate / RECOVERY_DIVIDER);
+        }
+    }
+
+    /** Halves the rate, and drops the burst the bucket had accumulated. */
+    public synchronized void onRateLimited() {
+        if (mMaxRate <= 0) {
+            return;
+        }
+        refill();
+        mRate = Math.max(mMaxRate / MIN_RATE_DIVIDER, mRate / 2);
+        mTokens = Math.min(mTokens, 0);
+        mLogger.d(TAG, mName + " rate-limited, slowing down to " + String.format("%.1f", mRate) + " requests/s");
+    }
+
+    /**
+     * Wraps a request so that it takes a token before each attempt and adapts the rate to its
+     * outcome. Errors are rethrown as-is.
+     */
+    @NonNull
+    public <T> RetryPolicy.Operation<T> limit(@NonNull RetryPolicy.Operation<T> operation) {
+        return attempt -> {
+            acquire();
+            try {
+                T result = operation.run(attempt);
+                onSuccess();
+                return result;
+            } catch (HttpResponseException e) {
+                if (isRateLimited(e)) {
+                    onRateLimited();
+                }
+                throw e;
+            }
+        };
+    }
+
+    /** Returns true if the error indicates the server is rate-limiting us. */
+    public static boolean isRateLimited(@NonNull HttpResponseException e) {
+        int status = e.getStatusCode();
+        if (status == 429) {
+            return true;
+        }
+        if (status == 403) {
+            // Drive uses 403 both for permissions and rate limits (userRateLimitExceeded,
+            // rateLimitExceeded) so look at the reason.
+            String content = e.getContent();
+            return content != null && content.toLowerCase(Locale.ROOT).contains("ratelimitexceeded");
+        }
+        return false;
+    }
+
+    private double getCapacity() {
+        return Math.max(1, mRate);
+    }
+
+    private void refill() {
+        long now = mClock.elapsedRealtime();
+        mTokens = Math.min(getCapacity(), mTokens + (now - mLastRefillMs) * mRate / 1000);
+        mLastRefillMs = now;
+    }
+}
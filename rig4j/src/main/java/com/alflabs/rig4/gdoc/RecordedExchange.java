@@ -0,0 +1,175 @@
+package com.alflabs.rig4.gdoc;
+
+import com.alflabs.annotations.NonNull;
+import com.alflabs.annotations.Null;
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.auto.value.AutoValue;
+import com.google.common.base.Strings;
+import org.apache.commons.codec.digest.DigestUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.List;
+
+/**
+ * One HTTP request and its response, as recorded by {@link RecordingTransport} and served by
+ * {@link ReplayTransport}.
+ * <p/>
+ * Each exchange is stored as 2 files in the recording directory: "key-N.json" for the status
+ * and headers, and "key-N.body" for the raw response content. The key is a hash of the method
+ * and URL, and N counts the requests with the same key so that they are replayed in order.
+ */
+@AutoValue
+abstract class RecordedExchange {
+    private static final ObjectMapper sObjectMapper = new ObjectMapper();
+
+    @NonNull
+    @JsonCreator
+    public static RecordedExchange create(
+            @JsonProperty("method") @NonNull String method,
+            @JsonProperty("url") @NonNull String url,
+            @JsonProperty("statusCode") int statusCode,
+            @JsonProperty("reasonPhrase") @Null String reasonPhrase,
+            @JsonProperty("contentType") @Null String contentType,
+            @JsonProperty("contentEncoding") @Null String contentEncoding,
+            @JsonProperty("headerNames") @NonNull List<String> headerNames,
+            @JsonProperty("headerValues") @NonNull List<String> headerValues) {
+        return new AutoValue_RecordedExchange(
+                method,
+                url,
+                statusCode,
+                Strings.nullToEmpty(reasonPhrase),
+                Strings.nullToEmpty(contentType),
+                Strings.nullToEmpty(contentEncoding),
+                headerNames,
+                headerValues);
+    }
+
+    @NonNull
+    @JsonProperty("method")
+    public abstract String getMethod();
+
+    @NonNull
+    @JsonProperty("url")
+    public abstract String getUrl();
+
+    @JsonProperty("statusCode")
+    public abstract int getStatusCode();
+
+    /** The reason phrase, or an empty string if there was none. */
+    @NonNull
+    @JsonProperty("reasonPhrase")
+    public abstract String getReasonPhrase();
+
+    /** The content type, or an empty string if there was none. */
+    @NonNull
+    @JsonProperty("contentType")
+    public abstract String getContentType();
+
+    /** The content encoding, or an empty string if there was none. */
+    @NonNull
+    @JsonProperty("contentEncoding")
+    public abstract String getContentEncoding();
+
+    @NonNull
+    @JsonProperty("headerNames")
+    public abstract List<String> getHeaderNames();
+
+    @NonNull
+    @JsonProperty("headerValues")
+    public abstract List<String> getHeaderValues();
+
+    /** Returns the key identifying the requests for the same method and URL. */
+    @NonNull
+    public static String getKey(@NonNull String method, @NonNull String url) {
+        return DigestUtils.sha256Hex(method + " " + url);
+    }
+
+    @NonNull
+    public static File getJsonFile(@NonNull File dir, @NonNull String key, int index) {
+        return new File(dir, key + "-" + index + ".json");
+    }
+
+    @NonNull
+    public static File getBodyFile(@NonNull File dir, @NonNull String key, int index) {
+        return new File(dir, key + "-" + index + ".body");
+    }
+
+    public void write(@NonNull File dir, @NonNull String key, int index, @NonNull byte[] body) throws IOException {
+        Files.write(getBodyFile(dir, key, index).toPath(), body);
+        sObjectMapper.writerWithDefaultPrettyPrinter().writeValue(getJsonFile(dir, key, index), this);
+    }
+
+    @NonNull
+    public static RecordedExchange read(@NonNull File dir, @NonNull String key, int index) throws IOException {
+        return sObjectMapper.readValue(getJsonFile(dir, key, index), RecordedExchange.class);
+    }
+
+    @NonNull
+    public static byte[] readBody(@NonNull File dir, @NonNull String key, int index) throws IOException {
+        return Files.readAllBytes(getBodyFile(dir, key, index).toPath());
+    }
+
+    /** Returns a response serving this exchange's status, headers and the given content. */
+    @NonNull
+    public LowLevelHttpResponse toResponse(@NonNull byte[] body) {
+        return new LowLevelHttpResponse() {
+            @Override
+            public InputStream getContent() {
+                return new ByteArrayInputStream(body);
+            }
+
+            @Override
+            public String getContentEncoding() {
+                return Strings.emptyToNull(RecordedExchange.this.getContentEncoding());
+            }
+
+            @Override
+            public long getContentLength() {
+                return body.length;
+            }
+
+            @Override
+            public String getContentType() {
+                return Strings.emptyToNull(RecordedExchange.this.getContentType());
+            }
+
+            @Override
+            public String getStatusLine() {
+                String reason = RecordedExchange.this.getReasonPhrase();
+                return "HTTP/1.1 " + getStatusCode() + (reason.isEmpty() ? "" : " " + reason);
+            }
+
+            @Override
+            public int getStatusCode() {
+                return RecordedExchange.this.getStatusCode();
+            }
+
+            @Override
+            public String getReasonPhrase() {
+                return Strings.emptyToNull(RecordedExchange.this.getReasonPhrase());
+            }
+
+            @Override
+            public int getHeaderCount() {
+                return getHeaderNames().size();
+            }
+
+            @Override
+            public String getHeaderName(int index) {
+                return getHeaderNames().get(index);
+            }
+
+            @Override
+            public String getHeaderValue(int index) {
+                return getHeaderValues().get(index);
+            }
+        };
+    }
+}
@@ -0,0 +1,130 @@
+package com.alflabs.rig4.gdoc;
+
+import com.alflabs.annotations.NonNull;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.common.io.ByteStreams;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A transport forwarding all the requests to another transport and recording every request and
+ * response in a directory, so that a run can later be replayed offline by {@link ReplayTransport}.
+ * <p/>
+ * Responses are read fully in memory to be recorded. This is only meant to capture benchmark
+ * data, not for normal runs.
+ */
+public class RecordingTransport extends HttpTransport {
+    private final HttpTransport mDelegate;
+    private final File mDir;
+    private final Map<String, AtomicInteger> mCounts = new ConcurrentHashMap<>();
+    private final Method mBuildRequest;
+
+    public RecordingTransport(@NonNull HttpTransport delegate, @NonNull File dir) throws IOException {
+        mDelegate = delegate;
+        mDir = dir;
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Failed to create recording directory " + dir);
+        }
+        try {
+            // The low-level buildRequest is protected: there is no public way to wrap it.
+            mBuildRequest = HttpTransport.class.getDeclaredMethod("buildRequest", String.class, String.class);
+            mBuildRequest.setAccessible(true);
+        } catch (NoSuchMethodException e) {
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    public boolean supportsMethod(String method) throws IOException {
+        return mDelegate.supportsMethod(method);
+    }
+
+    @Override
+    public void shutdown() throws IOException {
+        mDelegate.shutdown();
+    }
+
+    @Override
+    protected LowLevelHttpRequest buildRequest(String method, String url) throws IOException {
+        LowLevelHttpRequest request;
+        try {
+            request = (LowLevelHttpRequest) mBuildRequest.invoke(mDelegate, method, url);
+        } catch (IllegalAccessException e) {
+            throw new IOException(e);
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+
+        return new LowLevelHttpRequest() {
+            @Override
+            public void addHeader(String name, String value) throws IOException {
+                request.addHeader(name, value);
+            }
+
+            @Override
+            public void setTimeout(int connectTimeout, int readTimeout) throws IOException {
+                request.setTimeout(connectTimeout, readTimeout);
+            }
+
+            @Override
+            public void setWriteTimeout(int writeTimeout) throws IOException {
+                request.setWriteTimeout(writeTimeout);
+            }
+
+            @Override
+            public LowLevelHttpResponse execute() throws IOException {
+                request.setContentType(getContentType());
+                request.setContentEncoding(getContentEncoding());
+                request.setContentLength(getContentLength());
+                request.setStreamingContent(getStreamingContent());
+                return record(method, url, request.execute());
+            }
+        };
+    }
+
+    @NonNull
+    private LowLevelHttpResponse record(String method, String url, LowLevelHttpResponse response)
+            throws IOException {
+        byte[] body;
+        try (InputStream content = response.getContent()) {
+            body = content == null ? new byte[0] : ByteStreams.toByteArray(content);
+        } finally {
+            response.disconnect();
+        }
+
+        List<String> headerNames = new ArrayList<>();
+        List<String> headerValues = new ArrayList<>();
+        for (int i = 0, n = response.getHeaderCount(); i < n; i++) {
+            headerNames.add(response.getHeaderName(i));
+            headerValues.add(response.getHeaderValue(i));
+        }
+
+        RecordedExchange exchange = RecordedExchange.create(
+                method,
+                url,
+                response.getStatusCode(),
+                response.getReasonPhrase(),
+                response.getContentType(),
+                response.getContentEncoding(),
+                headerNames,
+                headerValues);
+        String key = RecordedExchange.getKey(method, url);
+        int index = mCounts.computeIfAbsent(key, k -> new AtomicInteger()).getAndIncrement();
+        exchange.write(mDir, key, index, body);
+        return exchange.toResponse(body);
+    }
+}
@@ -0,0 +1,71 @@
+package com.alflabs.rig4.gdoc;
+
+import com.alflabs.annotations.NonNull;
+import com.alflabs.utils.IClock;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.common.base.Charsets;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A transport serving the requests recorded by {@link RecordingTransport}, without any network
+ * access or credentials, so that a whole run can be benchmarked offline.
+ * <p/>
+ * Requests for the same method and URL get the recorded responses in the order they were
+ * recorded, the last one being repeated once they are exhausted. Requests which were never
+ * recorded get a 404. An optional latency is added to each request to simulate the network.
+ */
+public class ReplayTransport extends HttpTransport {
+    private final File mDir;
+    private final IClock mClock;
+    private final int mLatencyMs;
+    private final Map<String, AtomicInteger> mCounts = new ConcurrentHashMap<>();
+
+    public ReplayTransport(@NonNull File dir, @NonNull IClock clock, int latencyMs) throws IOException {
+        if (!dir.isDirectory()) {
+            throw new IOException("Missing replay directory " + dir);
+        }
+        mDir = dir;
+        mClock = clock;
+        mLatencyMs = latencyMs;
+    }
+
+    @Override
+    protected LowLevelHttpRequest buildRequest(String method, String url) {
+        return new LowLevelHttpRequest() {
+            @Override
+            public void addHeader(String name, String value) {}
+
+            @Override
+            public LowLevelHttpResponse execute() throws IOException {
+                if (mLatencyMs > 0) {
+                    mClock.sleep(mLatencyMs);
+                }
+                return replay(method, url);
+            }
+        };
+    }
+
+    @NonNull
+    private LowLevelHttpResponse replay(String method, String url) throws IOException {
+        String key = RecordedExchange.getKey(method, url);
+        int index = mCounts.computeIfAbsent(key, k -> new AtomicInteger()).getAndIncrement();
+        while (index > 0 && !RecordedExchange.getJsonFile(mDir, key, index).isFile()) {
+            index--;
+        }
+        if (!RecordedExchange.getJsonFile(mDir, key, index).isFile()) {
+            RecordedExchange notFound = RecordedExchange.create(
+                    method, url, 404, "Not Recorded", "text/plain", null /* contentEncoding */,
+                    Collections.emptyList(), Collections.emptyList());
+            return notFound.toResponse(("Not recorded: " + method + " " + url).getBytes(Charsets.UTF_8));
+        }
+        return RecordedExchange.read(mDir, key, index).toResponse(RecordedExchange.readBody(mDir, key, index));
+    }
+}
@@ -0,0 +1,208 @@
+package com.alflabs.rig4.gdoc;
+
+import com.alflabs.annotations.NonNull;
+import com.alflabs.rig4.flags.Flags;
+import com.alflabs.utils.IClock;
+import com.alflabs.utils.ILogger;
+import com.google.api.client.http.HttpResponseException;
+import com.google.common.annotations.VisibleForTesting;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import javax.net.ssl.SSLException;
+import java.io.IOException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The retry policy shared by all the Drive requests.
+ * <p/>
+ * Failed operations are retried with a jittered exponential backoff. The total number of
+ * retries of a run is bounded by a global budget, so that a degraded server can't stall the
+ * run for long.
+ * <p/>
+ * The backoff waits on the calling thread, which may be a {@link com.alflabs.rig4.exp.DownloadPool}
+ * thread. All the callers expect a synchronous result, so scheduling the retries on a timer
+ * would only move the wait to them. The waits are instead bounded by the maximum delay and the
+ * retry budget, and the other hosts of the pool keep their own threads in the meantime.
+ * <p/>
+ * A circuit breaker opens after a number of consecutive failures: operations then fail fast
+ * with a {@link CircuitOpenException} and callers fall back on their cache, till a trial
+ * operation succeeds once the circuit has been open for a while.
+ * <p/>
+ * Retries only happen at the outermost level: an operation run from within another one (e.g. a
+ * download within an image fetch) is only attempted once and its failure is retried by the
+ * enclosing operation.
+ * <p/>
+ * Only transient errors are retried: server errors, timeouts, rate limits and network failures
+ * (timeouts, refused or reset connections, DNS and TLS errors). Client errors (4xx except 408,
+ * 429 and rate-limited 403) and any other I/O error, e.g. a missing file or an undecodable
+ * image, fail right away without using the retry budget nor counting against the circuit.
+ */
+@Singleton
+public class RetryPolicy {
+    private static final String TAG = RetryPolicy.class.getSimpleName();
+
+    private static final String GDOC_RETRY_MAX_ATTEMPTS = "gdoc-retry-max-attempts";
+    private static final String GDOC_RETRY_BASE_DELAY_MS = "gdoc-retry-base-delay-ms";
+    private static final String GDOC_RETRY_MAX_DELAY_MS = "gdoc-retry-max-delay-ms";
+    private static final String GDOC_RETRY_BUDGET = "gdoc-retry-budget";
+    private static final String GDOC_CIRCUIT_FAILURES = "gdoc-circuit-failures";
+    private static final String GDOC_CIRCUIT_OPEN_SECONDS = "gdoc-circuit-open-seconds";
+
+    private final Flags mFlags;
+    private final IClock mClock;
+    private final ILogger mLogger;
+    private final Random mRandom = new Random();
+    private final ThreadLocal<Integer> mCurrentAttempt = new ThreadLocal<>();
+    private final AtomicInteger mRetries = new AtomicInteger();
+    private int mConsecutiveFailures;
+    private long mCircuitOpenUntil;
+
+    /** An operation which can be retried. */
+    public interface Operation<T> {
+        /**
+         * @param attempt The attempt number, starting at 0. Operations can use it to extend
+         *                their timeouts.
+         */
+        T run(int attempt) throws IOException;
+    }
+
+    /** Thrown without even trying the operation when the circuit breaker is open. */
+    public static class CircuitOpenException extends IOException {
+        public CircuitOpenException(String message) {
+            super(message);
+        }
+    }
+
+    @Inject
+    public RetryPolicy(Flags flags, IClock clock, ILogger logger) {
+        mFlags = flags;
+        mClock = clock;
+        mLogger = logger;
+    }
+
+    public void declareFlags() {
+        mFlags.addInt(GDOC_RETRY_MAX_ATTEMPTS,
+                4,
+                "Maximum number of attempts of a Drive request.");
+        mFlags.addInt(GDOC_RETRY_BASE_DELAY_MS,
+                1000,
+                "Delay in milliseconds before the first retry of a Drive request, doubled at each retry.");
+        mFlags.addInt(GDOC_RETRY_MAX_DELAY_MS,
+                30000,
+                "Maximum delay in milliseconds between two retries of a Drive request.");
+        mFlags.addInt(GDOC_RETRY_BUDGET,
+                50,
+                "Maximum number of Drive request retries in a run.");
+        mFlags.addInt(GDOC_CIRCUIT_FAILURES,
+                5,
+                "Number of consecutive Drive failures which make requests fail fast. 0 to disable.");
+        mFlags.addInt(GDOC_CIRCUIT_OPEN_SECONDS,
+                60,
+                "Delay in seconds during which Drive requests fail fast before being tried again.");
+    }
+
+    /**
+     * Runs the operation, retrying it on I/O errors as allowed by the policy.
+     * The last error is thrown when the operation can't be retried anymore.
+     */
+    public <T> T run(@NonNull String name, @NonNull Operation<T> operation) throws IOException {
+        Integer outerAttempt = mCurrentAttempt.get();
+        if (outerAttempt != null) {
+            // Nested: the enclosing operation handles the retries and the circuit breaker.
+            return operation.run(outerAttempt);
+        }
+
+        int maxAttempts = Math.max(1, mFlags.getInt(GDOC_RETRY_MAX_ATTEMPTS));
+        for (int attempt = 0; ; attempt++) {
+            checkCircuit(name);
+            mCurrentAttempt.set(attempt);
+            try {
+                T result = operation.run(attempt);
+                onSuccess();
+                return result;
+            } catch (IOException e) {
+                if (!isTransient(e)) {
+                    throw e;
+                }
+                boolean open = onFailure();
+                if (open || attempt + 1 >= maxAttempts || !takeRetry()) {
+                    throw e;
+                }
+                long delayMs = getDelayMs(attempt);
+                mLogger.d(TAG, name + " " + e.getClass().getSimpleName()
+                        + " retry: " + (attempt + 1) + ", in " + delayMs + " ms");
+                // Blocks the caller, see the class comment.
+                mClock.sleep(delayMs);
+            } finally {
+                mCurrentAttempt.remove();
+            }
+        }
+    }
+
+    private synchronized void checkCircuit(@NonNull String name) throws CircuitOpenException {
+        if (mCircuitOpenUntil > 0 && mClock.elapsedRealtime() < mCircuitOpenUntil) {
+            throw new CircuitOpenException("Drive requests are failing, skipping " + name);
+        }
+    }
+
+    private synchronized void onSuccess() {
+        mConsecutiveFailures = 0;
+        mCircuitOpenUntil = 0;
+    }
+
+    /** Returns true if this failure opens the circuit. */
+    private synchronized boolean onFailure() {
+        mConsecutiveFailures++;
+        int threshold = mFlags.getInt(GDOC_CIRCUIT_FAILURES);
+        if (threshold > 0 && mConsecutiveFailures >= threshold) {
+            // Once the delay expires, a single failure reopens the circuit.
+            mConsecutiveFailures = threshold - 1;
+            mCircuitOpenUntil = mClock.elapsedRealtime() + 1000L * mFlags.getInt(GDOC_CIRCUIT_OPEN_SECONDS);
+            mLogger.d(TAG, "Too many Drive failures, failing fast for "
+                    + mFlags.getInt(GDOC_CIRCUIT_OPEN_SECONDS) + " seconds");
+            return true;
+        }
+        return false;
+    }
+
+    private boolean takeRetry() {
+        int budget = mFlags.getInt(GDOC_RETRY_BUDGET);
+        if (mRetries.incrementAndGet() > budget) {
+            if (mRetries.get() == budget + 1) {
+                mLogger.d(TAG, "Drive retry budget of " + budget + " exhausted, not retrying anymore");
+            }
+            return false;
+        }
+        return true;
+    }
+
+    /** "Equal jitter": half of the exponential delay plus a random part of the other half. */
+    private long getDelayMs(int attempt) {
+        long base = mFlags.getInt(GDOC_RETRY_BASE_DELAY_MS);
+        long max = mFlags.getInt(GDOC_RETRY_MAX_DELAY_MS);
+        long delay = Math.min(max, base << Math.min(attempt, 20));
+        if (delay <= 0) {
+            return 0;
+        }
+        long half = delay / 2;
+        return half + (long) (mRandom.nextDouble() * (delay - half));
+    }
+
+    @VisibleForTesting
+    static boolean isTransient(@NonNull IOException e) {
+        if (e instanceof HttpResponseException) {
+            int status = ((HttpResponseException) e).getStatusCode();
+            return status >= 500 || status == 408 || RateLimiter.isRateLimited((HttpResponseException) e);
+        }
+        // SocketException covers ConnectException and connection resets.
+        return e instanceof SocketTimeoutException
+                || e instanceof SocketException
+                || e instanceof UnknownHostException
+                || e instanceof SSLException;
+    }
+}
@@ -0,0 +1,133 @@
+package com.alflabs.rig4.gdoc;
+
+import com.alflabs.annotations.NonNull;
+import com.alflabs.annotations.Null;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.function.ToLongFunction;
+
+/**
+ * Coalesces the requests for the same key: concurrent callers wait for the single load in
+ * flight instead of each doing their own.
+ * <p/>
+ * Successful results are also retained for the following callers, up to a maximum total weight
+ * after which the least recently used ones are dropped. By default each result weighs 1, which
+ * bounds the number of results. Failures are never retained:
+ * all the callers waiting on a failed load get its exception and the next caller loads again.
+ */
+public class SingleFlight<K, V> {
+    private final long mMaxWeight;
+    private final ToLongFunction<V> mWeigher;
+    private final Map<K, CompletableFuture<V>> mInFlight = new HashMap<>();
+    private final LinkedHashMap<K, V> mRetained = new LinkedHashMap<>(16, 0.75f, /*accessOrder=*/ true);
+    private long mRetainedWeight;
+
+    /** A load which result is shared by all the callers requesting the same key. */
+    public interface Loader<V> {
+        V load() throws IOException;
+    }
+
+    /**
+     * @param maxRetained Maximum number of results kept once loaded. 0 to only coalesce the
+     *                    loads in flight.
+     */
+    public SingleFlight(int maxRetained) {
+        this(maxRetained, value -> 1);
+    }
+
+    /**
+     * @param maxWeight Maximum total weight of the results kept once loaded. A result heavier
+     *                  than this is never retained.
+     * @param weigher   Computes the weight of a result. It must not change once loaded.
+     */
+    public SingleFlight(long maxWeight, @NonNull ToLongFunction<V> weigher) {
+        mMaxWeight = maxWeight;
+        mWeigher = weigher;
+    }
+
+    /**
+     * Returns the retained result for the key, joins the load in flight for the key, or else
+     * loads it using the loader on the caller's thread.
+     */
+    @Null
+    public V get(@NonNull K key, @NonNull Loader<V> loader) throws IOException {
+        CompletableFuture<V> future;
+        boolean owner = false;
+        synchronized (this) {
+            if (mRetained.containsKey(key)) {
+                return mRetained.get(key);
+            }
+            future = mInFlight.get(key);
+            if (future == null) {
+                future = new CompletableFuture<>();
+                mInFlight.put(key, future);
+                owner = true;
+            }
+        }
+
+        if (owner) {
+            try {
+                V value = loader.load();
+                synchronized (this) {
+                    mInFlight.remove(key);
+                    retain(key, value);
+                }
+                future.complete(value);
+                return value;
+            } catch (IOException | RuntimeException | Error e) {
+                synchronized (this) {
+                    mInFlight.remove(key);
+                }
+                future.completeExceptionally(e);
+                throw e;
+            }
+        }
+
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /** Forgets all the retained results. Loads in flight are not affected. */
+    public synchronized void clear() {
+        mRetained.clear();
+        mRetainedWeight = 0;
+    }
+
+    /** Retains the result then drops the least recently used ones till under the maximum weight. */
+    private void retain(@NonNull K key, @Null V value) {
+        long weight = mWeigher.applyAsLong(value);
+        if (weight > mMaxWeight) {
+            return;
+        }
+        V old = mRetained.put(key, value);
+        if (old != null) {
+            mRetainedWeight -= mWeigher.applyAsLong(old);
+        }
+        mRetainedWeight += weight;
+        Iterator<V> eldest = mRetained.values().iterator();
+        while (mRetainedWeight > mMaxWeight && eldest.hasNext()) {
+            mRetainedWeight -= mWeigher.applyAsLong(eldest.next());
+            eldest.remove();
+        }
+    }
+}
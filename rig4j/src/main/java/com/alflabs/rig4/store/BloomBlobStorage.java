@@ -0,0 +1,232 @@
+package com.alflabs.rig4.store;
+
+import com.alflabs.annotations.NonNull;
+import com.alflabs.annotations.Null;
+import com.alflabs.rig4.Timing;
+import com.alflabs.utils.ILogger;
+import com.google.common.base.Charsets;
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Set;
+
+/**
+ * An existence filter on top of another {@link IBlobStorage}.
+ * <p/>
+ * A Bloom filter of all the keys in the underlying storage answers definite misses without
+ * touching the file system. Only keys which may be present are looked up.
+ * <p/>
+ * The filter is saved on {@link #flush()}. The saved file is deleted as soon as the filter
+ * changes, so after a crash there is no saved filter and it is rebuilt from the key directory
+ * of the underlying storage: a stale filter could otherwise hide existing blobs.
+ * Blobs can also be written without going through the filter, e.g. by a run with the filter
+ * disabled or by an older version. The saved filter records the number of keys it was built
+ * for and is rebuilt when the key directory does not have that many keys anymore.
+ * Deleted keys are not removed from the filter; they only cause false positives till the
+ * filter is rebuilt, which happens when it gets too full.
+ */
+public class BloomBlobStorage implements IBlobStorage {
+    private static final String TAG = BloomBlobStorage.class.getSimpleName();
+    private final boolean DEBUG = false;
+
+    private static final int MAGIC = 0x5234424C; // "R4BL"
+    private static final int VERSION = 2;
+    private static final double FALSE_POSITIVE_RATE = 0.01;
+    private static final int MIN_EXPECTED_KEYS = 10000;
+
+    private final StoreFileOps mFileOps;
+    private final ILogger mLogger;
+    private final IBlobStorage mStorage;
+    private final File mFile;
+    private final Timing.Counter mAvoidedLookups;
+    private final Timing.Counter mFalsePositives;
+    private volatile BloomFilter<CharSequence> mFilter;
+    private int mExpectedKeys;
+    private boolean mDirty;
+
+    public BloomBlobStorage(
+            @NonNull StoreFileOps fileOps,
+            @NonNull ILogger logger,
+            @NonNull IBlobStorage storage,
+            @NonNull File file,
+            @NonNull Timing.Counter avoidedLookups,
+            @NonNull Timing.Counter falsePositives) throws IOException {
+        mFileOps = fileOps;
+        mLogger = logger;
+        mStorage = storage;
+        mFile = file;
+        mAvoidedLookups = avoidedLookups;
+        mFalsePositives = falsePositives;
+        Set<String> keys = mStorage.keys();
+        if (!load(keys.size())) {
+            rebuild(keys);
+        }
+    }
+
+    @Null
+    @Override
+    public byte[] read(@NonNull String key) throws IOException {
+        if (isDefiniteMiss(key)) return null;
+        byte[] content = mStorage.read(key);
+        if (content == null) mFalsePositives.increment();
+        return content;
+    }
+
+    @Null
+    @Override
+    public ByteBuffer map(@NonNull String key) throws IOException {
+        if (isDefiniteMiss(key)) return null;
+        ByteBuffer content = mStorage.map(key);
+        if (content == null) mFalsePositives.increment();
+        return content;
+    }
+
+    @Null
+    @Override
+    public InputStream openRead(@NonNull String key) throws IOException {
+        if (isDefiniteMiss(key)) return null;
+        InputStream content = mStorage.openRead(key);
+        if (content == null) mFalsePositives.increment();
+        return content;
+    }
+
+    @Override
+    public void write(@NonNull String key, @NonNull byte[] content) throws IOException {
+        add(key);
+        mStorage.write(key, content);
+    }
+
+    @Override
+    public void write(@NonNull String key, @NonNull InputStream content) throws IOException {
+        add(key);
+        mStorage.write(key, content);
+    }
+
+    @Override
+    public long size(@NonNull String key) throws IOException {
+        if (isDefiniteMiss(key)) return 0;
+        return mStorage.size(key);
+    }
+
+    @Override
+    public boolean contains(@NonNull String key) throws IOException {
+        if (isDefiniteMiss(key)) return false;
+        boolean contains = mStorage.contains(key);
+        if (!contains) mFalsePositives.increment();
+        return contains;
+    }
+
+    @Override
+    public boolean delete(@NonNull String key) throws IOException {
+        if (isDefiniteMiss(key)) return false;
+        return mStorage.delete(key);
+    }
+
+    @NonNull
+    @Override
+    public Set<String> keys() throws IOException {
+        return mStorage.keys();
+    }
+
+    @Override
+    public synchronized void flush() throws IOException {
+        mStorage.flush();
+        if (mDirty) {
+            Set<String> keys = mStorage.keys();
+            if (mFilter.approximateElementCount() > mExpectedKeys) {
+                // Too full for the target false positive rate.
+                rebuild(keys);
+            }
+            save(keys.size());
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        mStorage.close();
+    }
+
+    // ---
+
+    private boolean isDefiniteMiss(@NonNull String key) {
+        if (mFilter.mightContain(key)) {
+            return false;
+        }
+        mAvoidedLookups.increment();
+        return true;
+    }
+
+    /** Adds a key to the filter. This must happen before the blob is written. */
+    private synchronized void add(@NonNull String key) throws IOException {
+        if (!mDirty) {
+            // The saved filter won't know about this key anymore.
+            mFileOps.delete(mFile);
+            mDirty = true;
+        }
+        mFilter.put(key);
+    }
+
+    /**
+     * Recreates the filter from the key directory of the underlying storage.
+     * This must not run concurrently with writes, which is why it only happens at startup
+     * and on {@link #flush()}.
+     */
+    private synchronized void rebuild(@NonNull Set<String> keys) {
+        mExpectedKeys = Math.max(MIN_EXPECTED_KEYS, 2 * keys.size());
+        BloomFilter<CharSequence> filter =
+                BloomFilter.create(Funnels.stringFunnel(Charsets.UTF_8), mExpectedKeys, FALSE_POSITIVE_RATE);
+        for (String key : keys) {
+            filter.put(key);
+        }
+        mFilter = filter;
+        mDirty = true;
+        mLogger.d(TAG, "Rebuilt filter with " + keys.size() + " keys");
+    }
+
+    /** Loads the saved filter, unless it was saved for a different number of keys. */
+    private boolean load(int numKeys) throws IOException {
+        if (!mFileOps.isFile(mFile)) {
+            return false;
+        }
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(mFileOps.readBytes(mFile)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return false;
+            }
+            int savedNumKeys = in.readInt();
+            if (savedNumKeys != numKeys) {
+                mLogger.d(TAG, "Ignoring filter saved for " + savedNumKeys + " keys, found " + numKeys);
+                return false;
+            }
+            mExpectedKeys = in.readInt();
+            mFilter = BloomFilter.readFrom(in, Funnels.stringFunnel(Charsets.UTF_8));
+            if (DEBUG) mLogger.d(TAG, "Loaded filter with ~" + mFilter.approximateElementCount() + " keys");
+            return true;
+        } catch (EOFException e) {
+            mLogger.d(TAG, "Ignoring truncated filter " + mFile.getPath());
+            return false;
+        }
+    }
+
+    private void save(int numKeys) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(baos)) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(numKeys);
+            out.writeInt(mExpectedKeys);
+            mFilter.writeTo(out);
+        }
+        mFileOps.createParentDirs(mFile);
+        mFileOps.writeAtomically(baos.toByteArray(), mFile, true /* sync */);
+        mDirty = false;
+    }
+}
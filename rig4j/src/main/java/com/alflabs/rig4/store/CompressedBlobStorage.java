@@ -0,0 +1,232 @@
+package com.alflabs.rig4.store;
+
+import com.alflabs.annotations.NonNull;
+import com.alflabs.annotations.Null;
+import com.google.common.io.ByteStreams;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * A compression layer on top of another {@link IBlobStorage}.
+ * <p/>
+ * Payloads are deflated when it makes them smaller. Compressed payloads start with a short
+ * header recording the codec; payloads without that header are read as-is, which keeps the
+ * entries written before this layer was enabled readable, as well as the small payloads which
+ * are not worth compressing.
+ * <p/>
+ * Streamed payloads are stored as-is: they are large blobs meant to be read back as streams or
+ * memory-mapped buffers, and a compressed payload can only be mapped by inflating it on the heap.
+ * <p/>
+ * {@link #size(String)} returns the stored size, i.e. the number of bytes used on disk.
+ */
+public class CompressedBlobStorage implements IBlobStorage {
+    private static final String TAG = CompressedBlobStorage.class.getSimpleName();
+    private final boolean DEBUG = false;
+
+    /**
+     * Starts with a byte which never appears in UTF-8, so it can't start the string and JSON
+     * payloads stored before this layer was enabled, nor the image and archive byte payloads.
+     */
+    private static final byte[] MAGIC = { (byte) 0xC1, 'R', '4', 'Z' };
+    private static final int HEADER_SIZE = MAGIC.length + 1;
+    private static final byte CODEC_NONE = 0;
+    private static final byte CODEC_DEFLATE = 1;
+
+    private final IBlobStorage mStorage;
+    private final int mMinSize;
+
+    /**
+     * @param storage The underlying storage.
+     * @param minSize Payloads smaller than this are stored uncompressed.
+     */
+    public CompressedBlobStorage(@NonNull IBlobStorage storage, int minSize) {
+        mStorage = storage;
+        mMinSize = minSize;
+    }
+
+    @Null
+    @Override
+    public byte[] read(@NonNull String key) throws IOException {
+        byte[] stored = mStorage.read(key);
+        if (stored == null || !hasHeader(stored)) {
+            return stored;
+        }
+        byte codec = stored[MAGIC.length];
+        if (codec == CODEC_NONE) {
+            return Arrays.copyOfRange(stored, HEADER_SIZE, stored.length);
+        } else if (codec == CODEC_DEFLATE) {
+            InputStream in = new ByteArrayInputStream(stored, HEADER_SIZE, stored.length - HEADER_SIZE);
+            try (InflaterInputStream iis = new InflaterInputStream(in)) {
+                return ByteStreams.toByteArray(iis);
+            }
+        }
+        throw unknownCodec(key, codec);
+    }
+
+    @Override
+    public void write(@NonNull String key, @NonNull byte[] content) throws IOException {
+        if (content.length >= mMinSize) {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream(content.length / 2);
+            baos.write(MAGIC);
+            baos.write(CODEC_DEFLATE);
+            Deflater deflater = new Deflater();
+            try (DeflaterOutputStream dos = new DeflaterOutputStream(baos, deflater)) {
+                dos.write(content);
+            } finally {
+                deflater.end();
+            }
+            if (baos.size() < content.length) {
+                mStorage.write(key, baos.toByteArray());
+                return;
+            }
+        }
+
+        if (hasHeader(content)) {
+            // Rare case of a raw payload which would be mistaken for a compressed one.
+            byte[] stored = new byte[HEADER_SIZE + content.length];
+            System.arraycopy(MAGIC, 0, stored, 0, MAGIC.length);
+            stored[MAGIC.length] = CODEC_NONE;
+            System.arraycopy(content, 0, stored, HEADER_SIZE, content.length);
+            mStorage.write(key, stored);
+        } else {
+            mStorage.write(key, content);
+        }
+    }
+
+    /** Streamed content is never compressed, so that the underlying storage can map it. */
+    @Override
+    public void write(@NonNull String key, @NonNull InputStream content) throws IOException {
+        // The pushback stream is not closed as this must not close the source stream.
+        PushbackInputStream in = new PushbackInputStream(content, HEADER_SIZE);
+        byte[] start = new byte[HEADER_SIZE];
+        int n = ByteStreams.read(in, start, 0, HEADER_SIZE);
+        in.unread(start, 0, n);
+        if (n == HEADER_SIZE && hasHeader(start)) {
+            // Rare case of a raw payload which would be mistaken for a compressed one.
+            byte[] header = Arrays.copyOf(MAGIC, HEADER_SIZE);
+            header[MAGIC.length] = CODEC_NONE;
+            mStorage.write(key, new SequenceInputStream(new ByteArrayInputStream(header), in));
+        } else {
+            mStorage.write(key, in);
+        }
+    }
+
+    @Null
+    @Override
+    public ByteBuffer map(@NonNull String key) throws IOException {
+        ByteBuffer stored = mStorage.map(key);
+        if (stored == null || !hasHeader(stored)) {
+            return stored;
+        }
+        byte codec = stored.get(stored.position() + MAGIC.length);
+        ByteBuffer payload = stored.duplicate();
+        payload.position(payload.position() + HEADER_SIZE);
+        if (codec == CODEC_NONE) {
+            return payload.slice();
+        } else if (codec == CODEC_DEFLATE) {
+            // There's no way to map compressed content; it has to be inflated on the heap.
+            try (InputStream in = new InflaterInputStream(new ByteBufferInputStream(payload))) {
+                return ByteBuffer.wrap(ByteStreams.toByteArray(in)).asReadOnlyBuffer();
+            }
+        }
+        throw unknownCodec(key, codec);
+    }
+
+    @Null
+    @Override
+    public InputStream openRead(@NonNull String key) throws IOException {
+        InputStream stored = mStorage.openRead(key);
+        if (stored == null) {
+            return null;
+        }
+        PushbackInputStream in = new PushbackInputStream(stored, HEADER_SIZE);
+        byte[] header = new byte[HEADER_SIZE];
+        int n = ByteStreams.read(in, header, 0, HEADER_SIZE);
+        if (n < HEADER_SIZE || !hasHeader(header)) {
+            in.unread(header, 0, n);
+            return in;
+        }
+        byte codec = header[MAGIC.length];
+        if (codec == CODEC_NONE) {
+            return in;
+        } else if (codec == CODEC_DEFLATE) {
+            return new InflaterInputStream(in);
+        }
+        in.close();
+        throw unknownCodec(key, codec);
+    }
+
+    @Override
+    public long size(@NonNull String key) throws IOException {
+        return mStorage.size(key);
+    }
+
+    @Override
+    public boolean contains(@NonNull String key) throws IOException {
+        return mStorage.contains(key);
+    }
+
+    @Override
+    public boolean delete(@NonNull String key) throws IOException {
+        return mStorage.delete(key);
+    }
+
+    @NonNull
+    @Override
+    public Set<String> keys() throws IOException {
+        return mStorage.keys();
+    }
+
+    @Override
+    public void flush() throws IOException {
+        mStorage.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        mStorage.close();
+    }
+
+    // ---
+
+    private static boolean hasHeader(@NonNull byte[] content) {
+        if (content.length < HEADER_SIZE) {
+            return false;
+        }
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (content[i] != MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean hasHeader(@NonNull ByteBuffer content) {
+        if (content.remaining() < HEADER_SIZE) {
+            return false;
+        }
+        int start = content.position();
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (content.get(start + i) != MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @NonNull
+    private static IOException unknownCodec(@NonNull String key, byte codec) {
+        return new IOException("Unknown codec " + codec + " for blob " + key);
+    }
+}
@@ -0,0 +1,302 @@
+package com.alflabs.rig4.store;
+
+import com.alflabs.annotations.NonNull;
+import com.alflabs.annotations.Null;
+import com.alflabs.utils.ILogger;
+import org.apache.commons.codec.digest.DigestUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * A content-addressed layer on top of another {@link IBlobStorage}.
+ * <p/>
+ * Each key is mapped to the SHA256 of its content and the payload is stored only once in the
+ * underlying storage, under that content hash. Payloads are reference counted and deleted
+ * from the underlying storage once no key refers to them anymore, but only after the table
+ * below has been saved: the saved table must never refer to a deleted payload.
+ * <p/>
+ * Writing the same content again under the same key does not write anything.
+ * <p/>
+ * The key-to-content table is saved in the underlying storage on {@link #flush()}. If the
+ * run is interrupted before that, some keys are simply missing on the next run; a key can
+ * never return the wrong content since payloads are addressed by their own hash. Payloads
+ * left unreferenced by an interrupted run are deleted when the table is loaded.
+ * Keys written before this layer was enabled are still read from the underlying storage, and
+ * their old copy is only deleted once the table referring to their new payload has been saved.
+ * <p/>
+ * The lock only guards the table: reads and writes of the underlying storage happen outside of
+ * it so that concurrent callers don't wait on each other's I/O. Only {@link #flush()} holds
+ * it while deleting payloads, so that none gets referenced again meanwhile.
+ * <p/>
+ * Streamed writes go through a byte array since the content hash is needed before the payload
+ * can be stored; streamed reads come directly from the underlying storage.
+ */
+public class DedupBlobStorage implements IBlobStorage {
+    private static final String TAG = DedupBlobStorage.class.getSimpleName();
+    private final boolean DEBUG = false;
+
+    /** Suffix of the payloads keys in the underlying storage. */
+    private static final String PAYLOAD_SUFFIX = "c";
+    /** Key of the key-to-content table in the underlying storage. */
+    private static final String REFS_KEY = DigestUtils.sha256Hex("dedup-refs") + "r";
+    private static final int REFS_VERSION = 1;
+
+    private final ILogger mLogger;
+    private final IBlobStorage mStorage;
+    private final Map<String, String> mRefs = new HashMap<>();
+    private final Map<String, Integer> mRefCounts = new HashMap<>();
+    /** Payloads not referenced anymore, deleted once the table has been saved. */
+    private final Set<String> mUnusedPayloads = new HashSet<>();
+    /** Keys written before deduplication, which old copy is deleted once the table has been saved. */
+    private final Set<String> mLegacyKeys = new HashSet<>();
+    /** Incremented each time {@link #flush()} deletes payloads. */
+    private int mDeleteGeneration;
+    private boolean mRefsDirty;
+
+    public DedupBlobStorage(@NonNull ILogger logger, @NonNull IBlobStorage storage) throws IOException {
+        mLogger = logger;
+        mStorage = storage;
+        if (loadRefs()) {
+            deleteOrphanPayloads();
+        }
+    }
+
+    @Null
+    @Override
+    public byte[] read(@NonNull String key) throws IOException {
+        String storageKey = getStorageKey(key);
+        return storageKey == null ? null : mStorage.read(storageKey);
+    }
+
+    @Override
+    public void write(@NonNull String key, @NonNull byte[] content) throws IOException {
+        String hash = DigestUtils.sha256Hex(content);
+        String payloadKey = hash + PAYLOAD_SUFFIX;
+        boolean isNew;
+        int generation;
+        synchronized (this) {
+            if (hash.equals(mRefs.get(key))) {
+                if (DEBUG) mLogger.d(TAG, "DEDUP == Unchanged " + key);
+                return;
+            }
+            isNew = !mRefCounts.containsKey(hash) && !mUnusedPayloads.contains(hash);
+            generation = mDeleteGeneration;
+        }
+
+        // The payload is stored before the table refers to it. Concurrent writes of the
+        // same content store the same bytes under the same key.
+        if (isNew) {
+            mStorage.write(payloadKey, content);
+        }
+
+        synchronized (this) {
+            if (retain(hash) && (!isNew || generation != mDeleteGeneration)) {
+                // The payload was deleted by a flush since it was checked: store it again.
+                mStorage.write(payloadKey, content);
+            } else if (!isNew) {
+                if (DEBUG) mLogger.d(TAG, "DEDUP == Shared " + key + " -> " + hash);
+            }
+            String oldHash = mRefs.put(key, hash);
+            mRefsDirty = true;
+            if (oldHash == null) {
+                // Drop any version of that key written before deduplication was enabled.
+                mLegacyKeys.add(key);
+            } else {
+                release(oldHash);
+            }
+        }
+    }
+
+    @Null
+    @Override
+    public ByteBuffer map(@NonNull String key) throws IOException {
+        String storageKey = getStorageKey(key);
+        return storageKey == null ? null : mStorage.map(storageKey);
+    }
+
+    @Null
+    @Override
+    public InputStream openRead(@NonNull String key) throws IOException {
+        String storageKey = getStorageKey(key);
+        return storageKey == null ? null : mStorage.openRead(storageKey);
+    }
+
+    @Override
+    public long size(@NonNull String key) throws IOException {
+        String storageKey = getStorageKey(key);
+        return storageKey == null ? 0 : mStorage.size(storageKey);
+    }
+
+    @Override
+    public boolean contains(@NonNull String key) throws IOException {
+        String storageKey = getStorageKey(key);
+        return storageKey != null && mStorage.contains(storageKey);
+    }
+
+    @Override
+    public boolean delete(@NonNull String key) throws IOException {
+        synchronized (this) {
+            String hash = mRefs.remove(key);
+            if (hash != null) {
+                mRefsDirty = true;
+                release(hash);
+                return true;
+            }
+            if (mLegacyKeys.contains(key)) {
+                // Already replaced by a deleted payload, the old copy goes away on flush.
+                return false;
+            }
+        }
+        return mStorage.delete(key);
+    }
+
+    @NonNull
+    @Override
+    public Set<String> keys() throws IOException {
+        Set<String> storageKeys = mStorage.keys();
+        synchronized (this) {
+            Set<String> keys = new TreeSet<>(mRefs.keySet());
+            for (String key : storageKeys) {
+                if (!key.endsWith(PAYLOAD_SUFFIX) && !key.equals(REFS_KEY) && !mLegacyKeys.contains(key)) {
+                    keys.add(key);
+                }
+            }
+            return keys;
+        }
+    }
+
+    @Override
+    public synchronized void flush() throws IOException {
+        if (mRefsDirty) {
+            saveRefs();
+        }
+        if (!mUnusedPayloads.isEmpty()) {
+            mDeleteGeneration++;
+        }
+        for (String hash : mUnusedPayloads) {
+            mStorage.delete(hash + PAYLOAD_SUFFIX);
+            if (DEBUG) mLogger.d(TAG, "DEDUP -- Deleted payload " + hash);
+        }
+        mUnusedPayloads.clear();
+        for (String key : mLegacyKeys) {
+            mStorage.delete(key);
+        }
+        mLegacyKeys.clear();
+        mStorage.flush();
+    }
+
+    /** Number of distinct payloads currently referenced. */
+    public synchronized int getPayloadCount() {
+        return mRefCounts.size();
+    }
+
+    @Override
+    public void close() throws IOException {
+        mStorage.close();
+    }
+
+    // ---
+
+    /** Adds a reference to the payload. Returns true if it's a new payload which must be stored. */
+    private boolean retain(@NonNull String hash) {
+        Integer count = mRefCounts.get(hash);
+        mRefCounts.put(hash, count == null ? 1 : count + 1);
+        // A payload waiting to be deleted is still in the underlying storage.
+        return count == null && !mUnusedPayloads.remove(hash);
+    }
+
+    /**
+     * Removes a reference to the payload. Once it's not used anymore, it's deleted on the next
+     * {@link #flush()} after the table has been saved.
+     */
+    private void release(@NonNull String hash) {
+        Integer count = mRefCounts.get(hash);
+        if (count == null || count <= 1) {
+            mRefCounts.remove(hash);
+            mUnusedPayloads.add(hash);
+        } else {
+            mRefCounts.put(hash, count - 1);
+        }
+    }
+
+    /**
+     * Returns the key of the content in the underlying storage: its payload, else the key itself
+     * for keys written before deduplication. Returns null for a legacy key which was replaced
+     * then deleted, till its old copy is deleted by {@link #flush()}.
+     */
+    @Null
+    private synchronized String getStorageKey(@NonNull String key) {
+        String hash = mRefs.get(key);
+        if (hash != null) {
+            return hash + PAYLOAD_SUFFIX;
+        }
+        return mLegacyKeys.contains(key) ? null : key;
+    }
+
+    /** Loads the table. Returns false if it exists in an unknown format. */
+    private boolean loadRefs() throws IOException {
+        byte[] bytes = mStorage.read(REFS_KEY);
+        if (bytes == null) {
+            return true;
+        }
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes))) {
+            if (in.readInt() != REFS_VERSION) {
+                mLogger.d(TAG, "Ignoring unknown dedup table format");
+                return false;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String key = in.readUTF();
+                String hash = in.readUTF();
+                mRefs.put(key, hash);
+                retain(hash);
+            }
+        }
+        mLogger.d(TAG, "Loaded " + mRefs.size() + " keys for " + mRefCounts.size() + " payloads");
+        return true;
+    }
+
+    /**
+     * Deletes the payloads which the saved table doesn't refer to, e.g. the ones written by a
+     * run interrupted before its {@link #flush()}. These are hidden from {@link #keys()} so the
+     * blob store garbage collection would never see them.
+     */
+    private void deleteOrphanPayloads() throws IOException {
+        int deleted = 0;
+        for (String key : mStorage.keys()) {
+            if (key.endsWith(PAYLOAD_SUFFIX)
+                    && !mRefCounts.containsKey(key.substring(0, key.length() - PAYLOAD_SUFFIX.length()))) {
+                mStorage.delete(key);
+                deleted++;
+            }
+        }
+        if (deleted > 0) {
+            mLogger.d(TAG, "Deleted " + deleted + " orphan payloads");
+        }
+    }
+
+    private void saveRefs() throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(baos)) {
+            out.writeInt(REFS_VERSION);
+            out.writeInt(mRefs.size());
+            for (Map.Entry<String, String> entry : mRefs.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeUTF(entry.getValue());
+            }
+        }
+        mStorage.write(REFS_KEY, baos.toByteArray());
+        mRefsDirty = false;
+    }
+}
@@ -0,0 +1,122 @@
+package com.alflabs.rig4.store;
+
+import com.alflabs.annotations.NonNull;
+import com.alflabs.annotations.Null;
+import com.alflabs.utils.ILogger;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
+
+/**
+ * The original blob storage engine: each blob is stored in its own file named after its key,
+ * directly in the blob store directory.
+ * <p/>
+ * Blobs are written to a temp file which is then atomically renamed, so a concurrent reader
+ * (or a crash) never sees a partially written blob.
+ */
+public class FileBlobStorage implements IBlobStorage {
+    private static final String TAG = FileBlobStorage.class.getSimpleName();
+    private final boolean DEBUG = false;
+
+    /** Keys are a SHA256 hex string followed by a short type suffix. */
+    private static final Pattern KEY_PATTERN = Pattern.compile("^[0-9a-f]{64}[a-z]+$");
+    /** Blobs smaller than this are read on the heap since mapping them costs more than copying. */
+    private static final int MAP_THRESHOLD = 64 * 1024;
+
+    private final StoreFileOps mFileOps;
+    private final ILogger mLogger;
+    private final String mDirPath;
+
+    public FileBlobStorage(@NonNull StoreFileOps fileOps, @NonNull ILogger logger, String dirPath) {
+        mFileOps = fileOps;
+        mLogger = logger;
+        mDirPath = dirPath;
+    }
+
+    @Null
+    @Override
+    public byte[] read(@NonNull String key) throws IOException {
+        File file = new File(mDirPath, key);
+        if (!mFileOps.isFile(file)) return null;
+        byte[] content = mFileOps.readBytes(file);
+        if (DEBUG) mLogger.d(TAG, "BLOB << Read  " + content.length + " bytes from " + file.getPath());
+        return content;
+    }
+
+    @Override
+    public void write(@NonNull String key, @NonNull byte[] content) throws IOException {
+        File file = new File(mDirPath, key);
+        mFileOps.createParentDirs(file);
+        mFileOps.writeAtomically(content, file, false /* sync */);
+        if (DEBUG) mLogger.d(TAG, "BLOB >> Store " + content.length + " bytes to " + file.getPath());
+    }
+
+    @Null
+    @Override
+    public ByteBuffer map(@NonNull String key) throws IOException {
+        File file = new File(mDirPath, key);
+        if (!mFileOps.isFile(file)) return null;
+        if (mFileOps.length(file) < MAP_THRESHOLD) {
+            return ByteBuffer.wrap(mFileOps.readBytes(file)).asReadOnlyBuffer();
+        }
+        return mFileOps.map(file);
+    }
+
+    @Null
+    @Override
+    public InputStream openRead(@NonNull String key) throws IOException {
+        File file = new File(mDirPath, key);
+        if (!mFileOps.isFile(file)) return null;
+        if (mFileOps.length(file) < MAP_THRESHOLD) {
+            return new ByteArrayInputStream(mFileOps.readBytes(file));
+        }
+        return mFileOps.openRead(file);
+    }
+
+    @Override
+    public void write(@NonNull String key, @NonNull InputStream content) throws IOException {
+        File file = new File(mDirPath, key);
+        mFileOps.createParentDirs(file);
+        long length = mFileOps.writeAtomically(content, file);
+        if (DEBUG) mLogger.d(TAG, "BLOB >> Spool " + length + " bytes to " + file.getPath());
+    }
+
+    @Override
+    public long size(@NonNull String key) throws IOException {
+        File file = new File(mDirPath, key);
+        return mFileOps.length(file);
+    }
+
+    @Override
+    public boolean contains(@NonNull String key) {
+        return mFileOps.isFile(new File(mDirPath, key));
+    }
+
+    @Override
+    public boolean delete(@NonNull String key) throws IOException {
+        return mFileOps.delete(new File(mDirPath, key));
+    }
+
+    @NonNull
+    @Override
+    public Set<String> keys() throws IOException {
+        Set<String> keys = new TreeSet<>();
+        for (String name : mFileOps.list(new File(mDirPath))) {
+            if (KEY_PATTERN.matcher(name).matches()) {
+                keys.add(name);
+            }
+        }
+        return keys;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        // No-op: every write goes directly to its own file.
+    }
+}
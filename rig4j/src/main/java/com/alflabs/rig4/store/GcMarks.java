@@ -0,0 +1,136 @@
+package com.alflabs.rig4.store;
+
+import com.alflabs.annotations.NonNull;
+import com.alflabs.utils.ILogger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Mark-and-sweep bookkeeping for a store: remembers the last run in which each key was
+ * touched, so that keys not touched in the last N runs can be swept.
+ * <p/>
+ * Each call to {@link #collect} starts a new run. Keys seen for the first time are considered
+ * touched in that run, which gives entries created before the garbage collection was enabled
+ * the same grace period as any other entry.
+ * <p/>
+ * The marks are saved in a single file, written to a temp file then atomically renamed.
+ */
+public class GcMarks {
+    private static final String TAG = GcMarks.class.getSimpleName();
+
+    private static final int MAGIC = 0x52344743; // "R4GC"
+    private static final int VERSION = 1;
+
+    private final ILogger mLogger;
+    private final File mFile;
+    private final Map<String, Integer> mLastRuns = new HashMap<>();
+    private boolean mLoaded;
+    private int mRun;
+
+    public GcMarks(@NonNull ILogger logger, @NonNull File file) {
+        mLogger = logger;
+        mFile = file;
+    }
+
+    /**
+     * Starts a new run: marks the touched keys, forgets keys which are not present anymore and
+     * returns the present keys which have not been touched in the last {@code keepRuns} runs,
+     * including this one.
+     */
+    @NonNull
+    public synchronized List<String> collect(
+            @NonNull Collection<String> touchedKeys,
+            @NonNull Collection<String> presentKeys,
+            int keepRuns) throws IOException {
+        load();
+        mRun++;
+        keepRuns = Math.max(1, keepRuns);
+
+        for (String key : touchedKeys) {
+            mLastRuns.put(key, mRun);
+        }
+
+        Map<String, Integer> present = new HashMap<>();
+        List<String> stale = new ArrayList<>();
+        for (String key : presentKeys) {
+            Integer lastRun = mLastRuns.get(key);
+            if (lastRun == null) {
+                lastRun = mRun;
+            }
+            present.put(key, lastRun);
+            if (mRun - lastRun >= keepRuns) {
+                stale.add(key);
+            }
+        }
+        mLastRuns.clear();
+        mLastRuns.putAll(present);
+        return stale;
+    }
+
+    /** Forgets a key that has been swept. */
+    public synchronized void forget(@NonNull String key) {
+        mLastRuns.remove(key);
+    }
+
+    public synchronized void save() throws IOException {
+        File tmp = new File(mFile.getPath() + ".tmp");
+        Files.createDirectories(mFile.getAbsoluteFile().getParentFile().toPath());
+        try (FileOutputStream fos = new FileOutputStream(tmp);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(mRun);
+            out.writeInt(mLastRuns.size());
+            for (Map.Entry<String, Integer> entry : mLastRuns.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeInt(entry.getValue());
+            }
+            out.flush();
+            fos.getFD().sync();
+        }
+        Files.move(tmp.toPath(), mFile.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void load() throws IOException {
+        if (mLoaded) {
+            return;
+        }
+        mLoaded = true;
+        if (!mFile.isFile()) {
+            return;
+        }
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                mLogger.d(TAG, "Ignoring unknown GC marks format in " + mFile.getPath());
+                return;
+            }
+            mRun = in.readInt();
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String key = in.readUTF();
+                mLastRuns.put(key, in.readInt());
+            }
+        } catch (EOFException e) {
+            // This can't happen with the atomic rename, unless the file was modified externally.
+            mLogger.d(TAG, "Ignoring truncated GC marks " + mFile.getPath());
+            mLastRuns.clear();
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package com.alflabs.rig4.store;
+
+import com.alflabs.annotations.NonNull;
+import com.alflabs.annotations.Null;
+import com.google.common.io.ByteStreams;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Set;
+
+/**
+ * A storage engine for the {@link com.alflabs.rig4.BlobStore}.
+ * <p/>
+ * The blob store computes the keys (a hash of the descriptor plus a type suffix) so the storage
+ * engine only deals with short opaque filename-safe keys and their raw byte content.
+ * <p/>
+ * The streaming methods have default implementations going through a byte array; engines
+ * override them to avoid holding the whole content on the heap.
+ */
+public interface IBlobStorage extends Closeable {
+
+    /** Returns the content for the given key, or null if there is no such blob. */
+    @Null
+    byte[] read(@NonNull String key) throws IOException;
+
+    /** Stores the content for the given key, replacing any previous content. */
+    void write(@NonNull String key, @NonNull byte[] content) throws IOException;
+
+    /**
+     * Returns a read-only buffer on the content for the given key, or null if there is no such
+     * blob. Engines backed by files return a memory-mapped buffer.
+     */
+    @Null
+    default ByteBuffer map(@NonNull String key) throws IOException {
+        byte[] content = read(key);
+        return content == null ? null : ByteBuffer.wrap(content).asReadOnlyBuffer();
+    }
+
+    /** Returns a stream on the content for the given key, or null if there is no such blob. */
+    @Null
+    default InputStream openRead(@NonNull String key) throws IOException {
+        byte[] content = read(key);
+        return content == null ? null : new ByteArrayInputStream(content);
+    }
+
+    /**
+     * Stores the content read from the given stream till its end, replacing any previous content.
+     * The stream is not closed.
+     */
+    default void write(@NonNull String key, @NonNull InputStream content) throws IOException {
+        write(key, ByteStreams.toByteArray(content));
+    }
+
+    /** Returns the size in bytes of the content for the given key, or 0 if there is no such blob. */
+    long size(@NonNull String key) throws IOException;
+
+    /** Returns true if there is a blob for the given key, without reading its content. */
+    default boolean contains(@NonNull String key) throws IOException {
+        // Only an empty blob needs to be read to tell it apart from a missing one.
+        return size(key) > 0 || read(key) != null;
+    }
+
+    /** Removes the given key. Returns true if the key existed. */
+    boolean delete(@NonNull String key) throws IOException;
+
+    /** Returns a snapshot of all the keys currently present in the storage. */
+    @NonNull
+    Set<String> keys() throws IOException;
+
+    /**
+     * Persists any pending state (e.g. indexes) to disk.
+     * This is called once at the end of a run and is a no-op for engines that write through.
+     */
+    void flush() throws IOException;
+
+    /**
+     * Releases any open file or thread. The storage can't be used anymore afterwards.
+     * This does not flush pending state.
+     */
+    @Override
+    default void close() throws IOException {}
+}
@@ -0,0 +1,720 @@
+package com.alflabs.rig4.store;
+
+import com.alflabs.annotations.NonNull;
+import com.alflabs.annotations.Null;
+import com.alflabs.utils.ILogger;
+import com.google.common.base.Charsets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+/**
+ * A log-structured blob storage engine.
+ * <p/>
+ * Instead of one file per blob, blobs are appended to large segment files. An in-memory index
+ * maps each key to its location in the segments. That index is saved in a compact index file
+ * on {@link #flush()} and loaded back at startup; any record appended after the last saved
+ * index (e.g. after a crash) is recovered by scanning the tail of the segments.
+ * <p/>
+ * Overwritten and deleted blobs leave dead records behind. Once a sealed segment is mostly
+ * dead, it is compacted in the background: its live records are copied to the active segment
+ * and the old segment file is deleted.
+ * <p/>
+ * A deletion tombstone is live as long as an older segment may still hold a record of its key,
+ * which a scan without index would otherwise bring back. Each location remembers the oldest
+ * segment which may hold a record of its key for that purpose. Live tombstones are counted in
+ * the live bytes of their segment and copied forward by compactions; the others are dropped.
+ * <p/>
+ * Record format: key length (int), key (UTF-8), data length (int, -1 for a deletion), data,
+ * and a CRC32 of everything before it (int). The CRC lets the tail scan detect a torn write.
+ * <p/>
+ * Large blobs can be read as memory-mapped buffers of their segment, and streamed writes are
+ * spooled to a temp file outside of the lock before being appended.
+ */
+public class SegmentBlobStorage implements IBlobStorage {
+    private static final String TAG = SegmentBlobStorage.class.getSimpleName();
+    private final boolean DEBUG = false;
+
+    public static final long DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    private static final Pattern SEGMENT_NAME = Pattern.compile("^seg-([0-9]+)\\.dat$");
+    private static final String INDEX_NAME = "index.dat";
+    private static final int INDEX_MAGIC = 0x52344958; // "R4IX"
+    private static final int INDEX_VERSION = 2;
+    private static final int TOMBSTONE = -1;
+    private static final int MAX_KEY_LENGTH = 1024;
+    private static final String SPOOL_PREFIX = "spool-";
+    /** Blobs smaller than this are read on the heap since mapping them costs more than copying. */
+    private static final int MAP_THRESHOLD = 64 * 1024;
+    /** Sealed segments with at least this ratio of dead bytes get compacted. */
+    private static final double COMPACTION_DEAD_RATIO = 0.5;
+
+    private final StoreFileOps mFileOps;
+    private final ILogger mLogger;
+    private final File mDir;
+    private final long mMaxSegmentSize;
+    private final Map<String, Location> mIndex = new HashMap<>();
+    /** The live tombstones, see {@link #isTombstoneLive}. */
+    private final Map<String, Location> mTombstones = new HashMap<>();
+    private final TreeMap<Integer, Segment> mSegments = new TreeMap<>();
+    private final ExecutorService mCompactor;
+    private Future<?> mPendingCompaction;
+    private Segment mActive;
+    private boolean mIndexDirty;
+
+    public SegmentBlobStorage(@NonNull StoreFileOps fileOps, @NonNull ILogger logger, @NonNull File dir)
+            throws IOException {
+        this(fileOps, logger, dir, DEFAULT_SEGMENT_SIZE);
+    }
+
+    public SegmentBlobStorage(
+            @NonNull StoreFileOps fileOps,
+            @NonNull ILogger logger,
+            @NonNull File dir,
+            long maxSegmentSize)
+            throws IOException {
+        mFileOps = fileOps;
+        mLogger = logger;
+        mDir = dir;
+        mMaxSegmentSize = maxSegmentSize;
+        mCompactor = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("BlobCompaction-%d")
+                .setDaemon(true)
+                .build());
+        open();
+    }
+
+    @Null
+    @Override
+    public synchronized byte[] read(@NonNull String key) throws IOException {
+        Location location = mIndex.get(key);
+        if (location == null) return null;
+        byte[] content = readData(mSegments.get(location.mSegmentId), location);
+        if (DEBUG) mLogger.d(TAG, "BLOB << Read  " + content.length + " bytes from segment " + location.mSegmentId);
+        return content;
+    }
+
+    @Override
+    public synchronized void write(@NonNull String key, @NonNull byte[] content) throws IOException {
+        Location location = append(key, ByteBuffer.wrap(content));
+        put(key, location);
+        mIndexDirty = true;
+        if (DEBUG) mLogger.d(TAG, "BLOB >> Store " + content.length + " bytes to segment " + location.mSegmentId);
+        maybeScheduleCompaction();
+    }
+
+    @Null
+    @Override
+    public synchronized ByteBuffer map(@NonNull String key) throws IOException {
+        Location location = mIndex.get(key);
+        if (location == null) return null;
+        Segment segment = mSegments.get(location.mSegmentId);
+        if (location.mLength < MAP_THRESHOLD) {
+            return ByteBuffer.wrap(readData(segment, location)).asReadOnlyBuffer();
+        }
+        // The mapping stays valid even if the segment gets compacted and deleted later.
+        return mFileOps.map(segment.mChannel, location.mDataOffset, location.mLength);
+    }
+
+    @Null
+    @Override
+    public InputStream openRead(@NonNull String key) throws IOException {
+        ByteBuffer buffer = map(key);
+        return buffer == null ? null : new ByteBufferInputStream(buffer);
+    }
+
+    @Override
+    public void write(@NonNull String key, @NonNull InputStream content) throws IOException {
+        // Spool outside of the lock so that a slow stream does not block the other callers.
+        // The spool file is unique to the calling thread, so that concurrent writes don't collide.
+        File spool = new File(mDir, SPOOL_PREFIX + Thread.currentThread().getId() + ".tmp");
+        try {
+            long length = mFileOps.writeAtomically(content, spool);
+            if (length > Integer.MAX_VALUE) {
+                throw new IOException("Blob too large for a segment: " + length + " bytes");
+            }
+            ByteBuffer buffer = mFileOps.map(spool);
+            synchronized (this) {
+                Location location = append(key, buffer);
+                put(key, location);
+                mIndexDirty = true;
+                if (DEBUG) mLogger.d(TAG, "BLOB >> Spool " + location.mLength + " bytes to segment " + location.mSegmentId);
+                maybeScheduleCompaction();
+            }
+        } finally {
+            mFileOps.delete(spool);
+        }
+    }
+
+    @Override
+    public synchronized long size(@NonNull String key) {
+        Location location = mIndex.get(key);
+        return location == null ? 0 : location.mLength;
+    }
+
+    @Override
+    public synchronized boolean contains(@NonNull String key) {
+        return mIndex.containsKey(key);
+    }
+
+    @Override
+    public synchronized boolean delete(@NonNull String key) throws IOException {
+        Location location = mIndex.get(key);
+        if (location == null) {
+            return false;
+        }
+        Location tombstone = append(key, null /* tombstone */);
+        markDead(mIndex.remove(key));
+        addTombstone(key, tombstone, location.mOldestSegmentId);
+        mIndexDirty = true;
+        maybeScheduleCompaction();
+        return true;
+    }
+
+    @NonNull
+    @Override
+    public synchronized Set<String> keys() {
+        return new TreeSet<>(mIndex.keySet());
+    }
+
+    @Override
+    public void flush() throws IOException {
+        waitForCompaction();
+        synchronized (this) {
+            if (mIndexDirty) {
+                writeIndex();
+            }
+        }
+    }
+
+    /** Waits for any background compaction then closes all the segment files. */
+    @Override
+    public void close() throws IOException {
+        mCompactor.shutdown();
+        waitForCompaction();
+        synchronized (this) {
+            for (Segment segment : mSegments.values()) {
+                segment.mChannel.close();
+            }
+            mSegments.clear();
+            mIndex.clear();
+            mTombstones.clear();
+        }
+    }
+
+    // ---
+
+    private void open() throws IOException {
+        mFileOps.createParentDirs(new File(mDir, INDEX_NAME));
+
+        for (String name : mFileOps.list(mDir)) {
+            if (name.startsWith(SPOOL_PREFIX)) {
+                // Leftover from an interrupted streamed write.
+                mFileOps.delete(new File(mDir, name));
+                continue;
+            }
+            Matcher matcher = SEGMENT_NAME.matcher(name);
+            if (matcher.matches()) {
+                int id = Integer.parseInt(matcher.group(1));
+                File file = new File(mDir, name);
+                mSegments.put(id, new Segment(id, file, mFileOps.openChannel(file)));
+            }
+        }
+
+        if (!loadIndex()) {
+            // No usable index: rebuild it by scanning all the segments in order.
+            mLogger.d(TAG, "Rebuilding index from " + mSegments.size() + " segments in " + mDir.getPath());
+            mIndex.clear();
+            mTombstones.clear();
+            for (Segment segment : mSegments.values()) {
+                segment.mLiveBytes = 0;
+            }
+            for (Segment segment : mSegments.values()) {
+                scan(segment, 0);
+            }
+            mIndexDirty = true;
+        }
+
+        if (mSegments.isEmpty()) {
+            mActive = createSegment(1);
+        } else {
+            mActive = mSegments.lastEntry().getValue();
+        }
+        dropDeadTombstones();
+    }
+
+    /**
+     * Loads the index file, if any, then scans whatever was appended after it was written.
+     * Returns false if there is no usable index, in which case the state is left untouched.
+     */
+    private boolean loadIndex() throws IOException {
+        File file = new File(mDir, INDEX_NAME);
+        if (!mFileOps.isFile(file)) {
+            return false;
+        }
+
+        Map<String, Location> index = new HashMap<>();
+        Map<String, Location> tombstones = new HashMap<>();
+        int activeId;
+        long activeSize;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(mFileOps.openRead(file)))) {
+            if (in.readInt() != INDEX_MAGIC || in.readInt() != INDEX_VERSION) {
+                return false;
+            }
+            activeId = in.readInt();
+            activeSize = in.readLong();
+            if (!readLocations(in, index) || !readLocations(in, tombstones)) {
+                return false;
+            }
+        } catch (EOFException e) {
+            mLogger.d(TAG, "Truncated index " + file.getPath());
+            return false;
+        }
+
+        Segment active = mSegments.get(activeId);
+        if (active == null || active.mChannel.size() < activeSize) {
+            return false;
+        }
+
+        mIndex.putAll(index);
+        mTombstones.putAll(tombstones);
+        for (Location location : index.values()) {
+            mSegments.get(location.mSegmentId).mLiveBytes += location.mRecordSize;
+        }
+        for (Location location : tombstones.values()) {
+            mSegments.get(location.mSegmentId).mLiveBytes += location.mRecordSize;
+        }
+        for (Segment segment : mSegments.values()) {
+            if (segment.mId < activeId) {
+                segment.mSize = segment.mChannel.size();
+            } else if (segment.mId == activeId) {
+                segment.mSize = activeSize;
+                scan(segment, activeSize);
+            } else {
+                scan(segment, 0);
+            }
+        }
+        return true;
+    }
+
+    private void writeIndex() throws IOException {
+        // Make sure all the records referenced by the index are on disk before the index is.
+        mActive.mChannel.force(false);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(INDEX_MAGIC);
+            out.writeInt(INDEX_VERSION);
+            out.writeInt(mActive.mId);
+            out.writeLong(mActive.mSize);
+            writeLocations(out, mIndex);
+            writeLocations(out, mTombstones);
+        }
+        mFileOps.writeAtomically(bytes.toByteArray(), new File(mDir, INDEX_NAME), false /* sync */);
+        mIndexDirty = false;
+        if (DEBUG) mLogger.d(TAG, "Index saved with " + mIndex.size() + " entries");
+    }
+
+    private static void writeLocations(@NonNull DataOutputStream out, @NonNull Map<String, Location> locations)
+            throws IOException {
+        out.writeInt(locations.size());
+        for (Map.Entry<String, Location> entry : locations.entrySet()) {
+            Location location = entry.getValue();
+            out.writeUTF(entry.getKey());
+            out.writeInt(location.mSegmentId);
+            out.writeLong(location.mDataOffset);
+            out.writeInt(location.mLength);
+            out.writeInt(location.mRecordSize);
+            out.writeInt(location.mOldestSegmentId);
+        }
+    }
+
+    /** Reads locations saved by {@link #writeLocations}. Returns false if one refers to a missing segment. */
+    private boolean readLocations(@NonNull DataInputStream in, @NonNull Map<String, Location> locations)
+            throws IOException {
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            String key = in.readUTF();
+            Location location = new Location(in.readInt(), in.readLong(), in.readInt(), in.readInt());
+            location.mOldestSegmentId = in.readInt();
+            if (!mSegments.containsKey(location.mSegmentId)) {
+                mLogger.d(TAG, "Index refers to missing segment " + location.mSegmentId);
+                return false;
+            }
+            locations.put(key, location);
+        }
+        return true;
+    }
+
+    /**
+     * Scans the records of a segment starting at the given offset and applies them to the index.
+     * A torn or corrupted record ends the scan; if it's in the last segment, its tail is
+     * truncated so that new records are appended after the last valid one.
+     */
+    private void scan(@NonNull Segment segment, long start) throws IOException {
+        long end = segment.mChannel.size();
+        long pos = readRecords(segment, start, (key, dataOffset, dataLength, recordSize) -> {
+            if (dataLength == TOMBSTONE) {
+                int oldest = segment.mId;
+                for (Location old : new Location[] { mIndex.remove(key), mTombstones.remove(key) }) {
+                    if (old != null) {
+                        markDead(old);
+                        oldest = Math.min(oldest, old.mOldestSegmentId);
+                    }
+                }
+                addTombstone(key, new Location(segment.mId, dataOffset, 0, recordSize), oldest);
+            } else {
+                segment.mLiveBytes += recordSize;
+                put(key, new Location(segment.mId, dataOffset, dataLength, recordSize));
+            }
+        });
+
+        segment.mSize = pos;
+        if (pos < end) {
+            mLogger.d(TAG, "Ignoring " + (end - pos) + " invalid bytes at the end of " + segment.mFile.getName());
+            if (segment.mId == mSegments.lastKey()) {
+                segment.mChannel.truncate(pos);
+            }
+        }
+    }
+
+    /**
+     * Reads the valid records of a segment starting at the given offset, till its end or till a
+     * torn or corrupted record. Returns the offset of the end of the last valid record.
+     */
+    private static long readRecords(@NonNull Segment segment, long start, @NonNull RecordVisitor visitor)
+            throws IOException {
+        long end = segment.mChannel.size();
+        long pos = start;
+        while (pos + 8 <= end) {
+            int keyLength = readInt(segment, pos);
+            if (keyLength <= 0 || keyLength > MAX_KEY_LENGTH || pos + 4 + keyLength + 4 > end) {
+                break;
+            }
+            int dataLength = readInt(segment, pos + 4 + keyLength);
+            int length = dataLength == TOMBSTONE ? 0 : dataLength;
+            if (length < 0) {
+                break;
+            }
+            long recordSize = 4L + keyLength + 4 + length + 4;
+            if (pos + recordSize > end) {
+                break;
+            }
+
+            ByteBuffer record = ByteBuffer.allocate((int) recordSize);
+            readFully(segment.mChannel, record, pos);
+            CRC32 crc = new CRC32();
+            crc.update(record.array(), 0, (int) recordSize - 4);
+            if ((int) crc.getValue() != record.getInt((int) recordSize - 4)) {
+                break;
+            }
+
+            String key = new String(record.array(), 4, keyLength, Charsets.UTF_8);
+            visitor.onRecord(key, pos + 4 + keyLength + 4, dataLength, (int) recordSize);
+            pos += recordSize;
+        }
+        return pos;
+    }
+
+    /**
+     * Appends a record to the active segment. A null content appends a deletion tombstone.
+     * The content buffer is not modified.
+     */
+    @NonNull
+    private Location append(@NonNull String key, @Null ByteBuffer content) throws IOException {
+        byte[] keyBytes = key.getBytes(Charsets.UTF_8);
+        int length = content == null ? 0 : content.remaining();
+        long recordSize = 4L + keyBytes.length + 4 + length + 4;
+        if (mActive.mSize > 0 && mActive.mSize + recordSize > mMaxSegmentSize) {
+            mActive.mChannel.force(false);
+            mActive = createSegment(mActive.mId + 1);
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(4 + keyBytes.length + 4);
+        header.putInt(keyBytes.length);
+        header.put(keyBytes);
+        header.putInt(content == null ? TOMBSTONE : length);
+        CRC32 crc = new CRC32();
+        crc.update(header.array());
+        if (content != null) {
+            crc.update(content.duplicate());
+        }
+        ByteBuffer footer = ByteBuffer.allocate(4);
+        footer.putInt((int) crc.getValue());
+        header.flip();
+        footer.flip();
+
+        // Write the content buffer directly, without copying it into a larger record buffer.
+        long offset = mActive.mSize;
+        FileChannel channel = mActive.mChannel;
+        channel.position(offset);
+        ByteBuffer[] buffers = content == null
+                ? new ByteBuffer[] { header, footer }
+                : new ByteBuffer[] { header, content.duplicate(), footer };
+        long remaining = recordSize;
+        while (remaining > 0) {
+            remaining -= channel.write(buffers);
+        }
+
+        mActive.mSize += recordSize;
+        if (content != null) {
+            mActive.mLiveBytes += recordSize;
+        }
+        return new Location(mActive.mId, offset + keyBytes.length + 8, length, (int) recordSize);
+    }
+
+    /** Updates the index with a new record for the key, which makes any tombstone of the key dead. */
+    private void put(@NonNull String key, @NonNull Location location) {
+        Location old = mIndex.put(key, location);
+        if (old == null) {
+            old = mTombstones.remove(key);
+        }
+        if (old != null) {
+            markDead(old);
+            location.mOldestSegmentId = Math.min(location.mOldestSegmentId, old.mOldestSegmentId);
+        }
+    }
+
+    /**
+     * Records a tombstone appended for a key which oldest record may be in the given segment.
+     * The tombstone is only kept and counted as live bytes if it is live.
+     */
+    private void addTombstone(@NonNull String key, @NonNull Location tombstone, int oldestSegmentId) {
+        tombstone.mOldestSegmentId = Math.min(tombstone.mSegmentId, oldestSegmentId);
+        if (isTombstoneLive(tombstone)) {
+            mTombstones.put(key, tombstone);
+            mSegments.get(tombstone.mSegmentId).mLiveBytes += tombstone.mRecordSize;
+        }
+    }
+
+    /**
+     * A tombstone is live while a segment older than its own may still hold a record of its key.
+     * This is conservative: such a segment may exist without holding a record of that key.
+     */
+    private boolean isTombstoneLive(@NonNull Location tombstone) {
+        Integer older = mSegments.ceilingKey(tombstone.mOldestSegmentId);
+        return older != null && older < tombstone.mSegmentId;
+    }
+
+    /** Drops the tombstones which became dead, e.g. once the older segments have been compacted. */
+    private void dropDeadTombstones() {
+        for (Iterator<Location> it = mTombstones.values().iterator(); it.hasNext(); ) {
+            Location tombstone = it.next();
+            if (!isTombstoneLive(tombstone)) {
+                markDead(tombstone);
+                it.remove();
+            }
+        }
+    }
+
+    private void markDead(@Null Location location) {
+        if (location != null) {
+            Segment segment = mSegments.get(location.mSegmentId);
+            if (segment != null) {
+                segment.mLiveBytes -= location.mRecordSize;
+            }
+        }
+    }
+
+    @NonNull
+    private Segment createSegment(int id) throws IOException {
+        File file = new File(mDir, String.format("seg-%06d.dat", id));
+        Segment segment = new Segment(id, file, mFileOps.openChannel(file));
+        mSegments.put(id, segment);
+        return segment;
+    }
+
+    @NonNull
+    private byte[] readData(@NonNull Segment segment, @NonNull Location location) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(location.mLength);
+        readFully(segment.mChannel, buffer, location.mDataOffset);
+        return buffer.array();
+    }
+
+    private static int readInt(@NonNull Segment segment, long position) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(4);
+        readFully(segment.mChannel, buffer, position);
+        return buffer.getInt(0);
+    }
+
+    private static void readFully(@NonNull FileChannel channel, @NonNull ByteBuffer buffer, long position)
+            throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position + buffer.position());
+            if (n < 0) {
+                throw new EOFException("Unexpected end of segment at " + position);
+            }
+        }
+    }
+
+    // --- Compaction
+
+    @Null
+    private Segment findCompactionCandidate() {
+        for (Segment segment : mSegments.values()) {
+            if (segment != mActive
+                    && segment.mLiveBytes <= segment.mSize * (1 - COMPACTION_DEAD_RATIO)) {
+                return segment;
+            }
+        }
+        return null;
+    }
+
+    /** Waits for any background compaction, outside of the lock since it needs the lock too. */
+    private void waitForCompaction() {
+        Future<?> pending;
+        synchronized (this) {
+            pending = mPendingCompaction;
+        }
+        if (pending != null) {
+            try {
+                pending.get();
+            } catch (InterruptedException | ExecutionException e) {
+                mLogger.d(TAG, "Compaction failed", e);
+            }
+        }
+    }
+
+    private void maybeScheduleCompaction() {
+        if (mPendingCompaction != null && !mPendingCompaction.isDone()) {
+            return;
+        }
+        if (findCompactionCandidate() != null) {
+            mPendingCompaction = mCompactor.submit(this::compact);
+        }
+    }
+
+    /** Runs on the compaction thread till there are no more segments worth compacting. */
+    private void compact() {
+        try {
+            while (true) {
+                Segment segment;
+                List<String> keys = new ArrayList<>();
+                List<String> tombstones = new ArrayList<>();
+                synchronized (this) {
+                    segment = findCompactionCandidate();
+                    if (segment == null) {
+                        return;
+                    }
+                    for (Map.Entry<String, Location> entry : mIndex.entrySet()) {
+                        if (entry.getValue().mSegmentId == segment.mId) {
+                            keys.add(entry.getKey());
+                        }
+                    }
+                    for (Map.Entry<String, Location> entry : mTombstones.entrySet()) {
+                        if (entry.getValue().mSegmentId == segment.mId) {
+                            tombstones.add(entry.getKey());
+                        }
+                    }
+                }
+
+                // Move the live records one at a time so that foreground calls are not blocked
+                // for the whole duration of the compaction.
+                for (String key : keys) {
+                    synchronized (this) {
+                        Location location = mIndex.get(key);
+                        if (location != null && location.mSegmentId == segment.mId) {
+                            ByteBuffer content = mFileOps.map(
+                                    segment.mChannel, location.mDataOffset, location.mLength);
+                            put(key, append(key, content));
+                            mIndexDirty = true;
+                        }
+                    }
+                }
+                int moved = 0;
+                for (String key : tombstones) {
+                    synchronized (this) {
+                        // Keys written again since then don't have their tombstone anymore.
+                        Location tombstone = mTombstones.get(key);
+                        if (tombstone != null && tombstone.mSegmentId == segment.mId) {
+                            mTombstones.remove(key);
+                            markDead(tombstone);
+                            if (isTombstoneLive(tombstone)) {
+                                addTombstone(key, append(key, null /* tombstone */), tombstone.mOldestSegmentId);
+                                moved++;
+                            }
+                            mIndexDirty = true;
+                        }
+                    }
+                }
+
+                synchronized (this) {
+                    // The index must not refer to the segment anymore before it gets deleted.
+                    writeIndex();
+                    mSegments.remove(segment.mId);
+                    segment.mChannel.close();
+                    mFileOps.delete(segment.mFile);
+                    dropDeadTombstones();
+                    mLogger.d(TAG, "Compacted " + segment.mFile.getName()
+                            + ", moved " + keys.size() + " live blobs and " + moved + " tombstones");
+                }
+            }
+        } catch (IOException e) {
+            mLogger.d(TAG, "Compaction failed", e);
+        }
+    }
+
+    // ---
+
+    private interface RecordVisitor {
+        /** Called for each valid record. The data length is {@link #TOMBSTONE} for a deletion. */
+        void onRecord(@NonNull String key, long dataOffset, int dataLength, int recordSize) throws IOException;
+    }
+
+    private static class Segment {
+        private final int mId;
+        private final File mFile;
+        private final FileChannel mChannel;
+        /** Offset of the end of the last valid record. */
+        private long mSize;
+        /** Bytes used by records which are still referenced by the index. */
+        private long mLiveBytes;
+
+        public Segment(int id, @NonNull File file, @NonNull FileChannel channel) {
+            mId = id;
+            mFile = file;
+            mChannel = channel;
+        }
+    }
+
+    private static class Location {
+        private final int mSegmentId;
+        private final long mDataOffset;
+        private final int mLength;
+        private final int mRecordSize;
+        /** The oldest segment which may hold a record of the same key, this one or an older one. */
+        private int mOldestSegmentId;
+
+        public Location(int segmentId, long dataOffset, int length, int recordSize) {
+            mSegmentId = segmentId;
+            mDataOffset = dataOffset;
+            mLength = length;
+            mRecordSize = recordSize;
+            mOldestSegmentId = segmentId;
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package com.alflabs.rig4.store;
+
+import com.alflabs.annotations.NonNull;
+import com.alflabs.utils.FileOps;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The file operations used by the blob store, on top of the generic {@link FileOps} ones.
+ * <p/>
+ * All the files of the blob store directory go through this class so that the stores can be
+ * tested against an in-memory file system.
+ */
+public class StoreFileOps extends FileOps {
+
+    /** Returns the size in bytes of the file, or 0 if it does not exist. */
+    public long length(@NonNull File file) {
+        return file.length();
+    }
+
+    /** Deletes the file. Returns true if it existed. */
+    public boolean delete(@NonNull File file) throws IOException {
+        return Files.deleteIfExists(file.toPath());
+    }
+
+    /**
+     * Writes the content to a temp file then atomically renames it, so that a reader or a crash
+     * never sees a partial file. With sync, the content is on disk before the rename.
+     */
+    public void writeAtomically(@NonNull byte[] content, @NonNull File file, boolean sync) throws IOException {
+        File tmp = tempFile(file);
+        try {
+            try (FileOutputStream fos = new FileOutputStream(tmp)) {
+                fos.write(content);
+                if (sync) {
+                    fos.getFD().sync();
+                }
+            }
+            Files.move(tmp.toPath(), file.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp.toPath());
+        }
+    }
+
+    /**
+     * Same as {@link #writeAtomically(byte[], File, boolean)} for the content read from the given
+     * stream till its end, without holding it all in memory. The stream is not closed.
+     * Returns the number of bytes written.
+     */
+    public long writeAtomically(@NonNull InputStream content, @NonNull File file) throws IOException {
+        File tmp = tempFile(file);
+        try {
+            long length = Files.copy(content, tmp.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            Files.move(tmp.toPath(), file.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return length;
+        } finally {
+            Files.deleteIfExists(tmp.toPath());
+        }
+    }
+
+    /** Returns a stream on the file content, read from the disk as it is consumed. */
+    @NonNull
+    public InputStream openRead(@NonNull File file) throws IOException {
+        return Files.newInputStream(file.toPath());
+    }
+
+    /** Returns a read-only memory-mapped buffer on the whole file. */
+    @NonNull
+    public ByteBuffer map(@NonNull File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            // The mapping stays valid once the channel is closed.
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    /** Opens the file for random reads and writes, creating it if it does not exist. */
+    @NonNull
+    public FileChannel openChannel(@NonNull File file) throws IOException {
+        return FileChannel.open(file.toPath(),
+                StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+    }
+
+    /**
+     * Returns a read-only memory-mapped buffer on a range of a channel opened by
+     * {@link #openChannel}. The mapping stays valid once the channel is closed.
+     */
+    @NonNull
+    public ByteBuffer map(@NonNull FileChannel channel, long position, int size) throws IOException {
+        return channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+    }
+
+    /** Returns the names of the entries of the directory, or an empty list if it does not exist. */
+    @NonNull
+    public List<String> list(@NonNull File dir) {
+        String[] names = dir.list();
+        return names == null ? Collections.emptyList() : Arrays.asList(names);
+    }
+
+    /** A temp file name unique to the calling thread, so that concurrent writes don't collide. */
+    @NonNull
+    private static File tempFile(@NonNull File file) {
+        return new File(file.getPath() + "-" + Thread.currentThread().getId() + ".tmp");
+    }
+}
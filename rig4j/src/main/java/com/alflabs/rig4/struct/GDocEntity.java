@@ -3,14 +3,29 @@ package com.alflabs.rig4.struct;
 import com.alflabs.annotations.NonNull;
 import com.alflabs.annotations.Null;
 import com.alflabs.rig4.gdoc.GDocMetadata;
+import com.google.common.io.ByteStreams;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
 
 public class GDocEntity {
     private final GDocMetadata mMetadata;
     private final boolean mUpdateToDate;
     private final ContentFetcher mFetcher;
+    private final StreamOpener mStreamOpener;
     private final Syncer mSyncToStore;
     private byte[] mContent;
     private boolean mContentFetched;
+    private boolean mPrefetchStarted;
+    /**
+     * The spooled stream started by {@link #fetchContentAsync} until it is taken by a reader.
+     * Completes with null when the content was fetched into {@link #mContent} instead.
+     */
+    private CompletableFuture<InputStream> mPrefetch;
 
     public GDocEntity(GDocMetadata metadata, boolean updateToDate, byte[] content) {
         mMetadata = metadata;
@@ -18,16 +33,25 @@ public class GDocEntity {
         mSyncToStore = null;
         mContent = content;
         mFetcher = null;
+        mStreamOpener = null;
     }
 
     public GDocEntity(GDocMetadata metadata, boolean updateToDate,
                       ContentFetcher contentFetcher,
                       Syncer syncToStore) {
+        this(metadata, updateToDate, contentFetcher, null /* streamOpener */, syncToStore);
+    }
+
+    public GDocEntity(GDocMetadata metadata, boolean updateToDate,
+                      ContentFetcher contentFetcher,
+                      StreamOpener streamOpener,
+                      Syncer syncToStore) {
         mMetadata = metadata;
         mUpdateToDate = updateToDate;
         mSyncToStore = syncToStore;
         mContent = null;
         mFetcher = contentFetcher;
+        mStreamOpener = streamOpener;
     }
 
     public GDocMetadata getMetadata() {
@@ -43,20 +67,126 @@ public class GDocEntity {
     }
 
     /**
-     * Fetches and caches the content.
+     * Starts getting the content in the background, so that the download overlaps with other
+     * work. Only the first call has an effect.
+     * <p/>
+     * If there is a {@link StreamOpener}, the background job calls it and keeps the
+     * {@link InputStream} it returns. For a GDoc export, the opener spools the download to the
+     * blob store and returns a stream reading it back, so nothing is held on the heap. The next
+     * {@link #openContentStream()} hands out that stream as-is; {@link #getContent()} reads it
+     * into memory instead. Content read from a spooled stream is not "fetched": it is already in
+     * the store so {@link #syncToStore()} only needs to update the hash.
+     * <p/>
+     * Without a {@link StreamOpener}, or if it returns null (e.g. legacy exports), the content
+     * is fetched into memory by the {@link ContentFetcher} as before.
+     * <p/>
+     * The next reader waits for the background job and throws its exception if it failed.
+     */
+    public synchronized void fetchContentAsync(@NonNull Executor executor) {
+        if (!mPrefetchStarted && mContent == null && mFetcher != null) {
+            mPrefetchStarted = true;
+            mPrefetch = CompletableFuture.supplyAsync(this::prefetchContent, executor);
+        }
+    }
+
+    /**
+     * Returns a stream on the spooled content, or null if the content was fetched by the
+     * {@link ContentFetcher} instead.
+     */
+    @Null
+    private InputStream prefetchContent() {
+        if (mStreamOpener != null) {
+            try {
+                InputStream stream = mStreamOpener.openContent(this);
+                if (stream != null) {
+                    return stream;
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        byte[] content = mFetcher.fetchContent(this);
+        synchronized (this) {
+            mContent = content;
+            mContentFetched = content != null;
+        }
+        return null;
+    }
+
+    /**
+     * Fetches and caches the content, or waits for the one being fetched by
+     * {@link #fetchContentAsync}.
      * <p/>
      * This may fail and return null if there is no associated {@link ContentFetcher}
      * or {@link ContentFetcher#fetchContent(GDocEntity)} failed.
      */
     @Null
     public byte[] getContent() {
-        if ((mContent == null || !mContentFetched) && mFetcher != null) {
+        InputStream spooled = takePrefetch();
+        if (spooled != null) {
+            // Read back what was spooled. It's not "fetched" since it needs no sync to the store.
+            try (InputStream is = spooled) {
+                mContent = ByteStreams.toByteArray(is);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        if (mContent == null && mFetcher != null) {
             mContent = mFetcher.fetchContent(this);
             mContentFetched = mContent != null;
         }
         return mContent;
     }
 
+    /**
+     * Opens a stream on the content. The caller must close it.
+     * <p/>
+     * If there is a {@link StreamOpener}, the content is streamed without being held in memory
+     * and is not cached by this entity; otherwise this wraps {@link #getContent()}.
+     * Content spooled by {@link #fetchContentAsync} is returned as-is the first time.
+     * Returns null if the content can't be retrieved.
+     */
+    @Null
+    public InputStream openContentStream() throws IOException {
+        InputStream spooled = takePrefetch();
+        if (spooled != null) {
+            return spooled;
+        }
+        if (mContent == null && mStreamOpener != null) {
+            InputStream stream = mStreamOpener.openContent(this);
+            if (stream != null) {
+                return stream;
+            }
+        }
+        byte[] content = getContent();
+        return content == null ? null : new ByteArrayInputStream(content);
+    }
+
+    /**
+     * Waits for the content started by {@link #fetchContentAsync}, if any and not taken yet.
+     * Returns the stream on the spooled content, or null if there is none.
+     */
+    @Null
+    private InputStream takePrefetch() {
+        CompletableFuture<InputStream> future;
+        synchronized (this) {
+            future = mPrefetch;
+            mPrefetch = null;
+        }
+        if (future == null) {
+            return null;
+        }
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            // Rethrow the fetcher's exception as if it had been called directly.
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
     public void syncToStore() {
         if (mSyncToStore != null) {
             mSyncToStore.sync(this);
@@ -71,4 +201,10 @@ public class GDocEntity {
         @NonNull
         byte[] fetchContent(GDocEntity entity);
     }
+
+    public interface StreamOpener {
+        /** Returns null if the content can only be retrieved by the {@link ContentFetcher}. */
+        @Null
+        InputStream openContent(GDocEntity entity) throws IOException;
+    }
 }
@@ -1,33 +1,55 @@
 package com.alflabs.rig4;
 
 import com.alflabs.rig4.flags.Flags;
-import com.alflabs.utils.FakeFileOps;
-import com.alflabs.utils.FileOps;
+import com.alflabs.rig4.store.FakeStoreFileOps;
+import com.alflabs.rig4.store.StoreFileOps;
 import com.alflabs.utils.ILogger;
 import com.alflabs.utils.MockClock;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+import org.apache.commons.codec.digest.DigestUtils;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.mockito.Mock;
 import org.mockito.junit.MockitoJUnit;
 import org.mockito.junit.MockitoRule;
 
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
 import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 
 public class BlobStoreTest {
     public @Rule MockitoRule mMockitoRule = MockitoJUnit.rule();
+    public @Rule TemporaryFolder mTempFolder = new TemporaryFolder();
 
     @Mock private Flags mFlags;
     @Mock private ILogger mLogger;
     private final Timing mTiming = new Timing(new MockClock(), mLogger);
 
-    private FileOps mFileOps;
+    private StoreFileOps mFileOps;
     private BlobStore mStore;
 
 
     @Before
     public void setUp() throws Exception {
-        mFileOps = new FakeFileOps();
+        mFileOps = new FakeStoreFileOps();
         mStore = new BlobStore(mFlags, mFileOps, mTiming, mLogger);
     }
 
@@ -43,9 +65,14 @@ public class BlobStoreTest {
     public void testBytes() throws Exception {
         byte[] actual = new byte[]{1, 2, 3, 4};;
         assertThat(mStore.getBytes("key")).isNull();
+        assertThat(mStore.containsBytes("key")).isFalse();
 
         mStore.putBytes("key", actual);
         assertThat(mStore.getBytes("key")).isEqualTo(actual);
+        assertThat(mStore.containsBytes("key")).isTrue();
+
+        mStore.putBytes("empty", new byte[0]);
+        assertThat(mStore.containsBytes("empty")).isTrue();
     }
 
     @Test
@@ -57,6 +84,176 @@ public class BlobStoreTest {
         assertThat(mStore.getJson("key", JsonStruct.class)).isEqualTo(actual);
     }
 
+    @Test
+    public void testJson_typeReference() throws Exception {
+        List<JsonStruct> actual = Arrays.asList(new JsonStruct("one", 1), new JsonStruct("two", 2));
+        TypeReference<List<JsonStruct>> type = new TypeReference<List<JsonStruct>>() {};
+        assertThat(mStore.getJson("key", type)).isNull();
+
+        mStore.putJson("key", actual);
+        assertThat(mStore.getJson("key", type)).isEqualTo(actual);
+    }
+
+    @Test
+    public void testJson_compact() throws Exception {
+        File dir = mTempFolder.newFolder();
+        when(mFlags.getString("blob-store-dir")).thenReturn(dir.getPath());
+        when(mFlags.getBool("blob-store-json-compact")).thenReturn(true);
+        mStore = new BlobStore(mFlags, new StoreFileOps(), mTiming, mLogger);
+
+        JsonStruct actual = new JsonStruct("The answer is", 42);
+        mStore.putJson("key", actual);
+        File file = new File(dir, DigestUtils.sha256Hex("key") + "j");
+        assertThat(new String(Files.readAllBytes(file.toPath()), Charsets.UTF_8))
+                .isEqualTo("{\"fieldA\":\"The answer is\",\"fieldB\":42}");
+        assertThat(mStore.getJson("key", JsonStruct.class)).isEqualTo(actual);
+    }
+
+    @Test
+    public void testStream_largeBlob() throws Exception {
+        // Large enough to be memory-mapped, which the fake file system must handle too.
+        byte[] content = new byte[200 * 1024];
+        new Random(42).nextBytes(content);
+        mStore.putStream("key", new ByteArrayInputStream(content));
+
+        ByteBuffer mapped = mStore.getMapped("key");
+        byte[] actual = new byte[mapped.remaining()];
+        mapped.get(actual);
+        assertThat(actual).isEqualTo(content);
+        try (InputStream in = mStore.getStream("key")) {
+            assertThat(ByteStreams.toByteArray(in)).isEqualTo(content);
+        }
+    }
+
+    @Test
+    public void testMemoryCache() throws Exception {
+        when(mFlags.getInt("blob-store-memory-cache-mb")).thenReturn(1);
+        Timing.Counter hits = mTiming.getCounter("BlobStore.memory.hits");
+        Timing.Counter misses = mTiming.getCounter("BlobStore.memory.misses");
+
+        mStore.putString("key", "content");
+        assertThat(mStore.getString("key")).isEqualTo("content");
+        assertThat(mStore.getString("key")).isEqualTo("content");
+        assertThat(hits.getCount()).isEqualTo(1);
+        assertThat(misses.getCount()).isEqualTo(1);
+
+        // Writes invalidate the memory tier.
+        mStore.putString("key", "new content");
+        assertThat(mStore.getString("key")).isEqualTo("new content");
+        assertThat(misses.getCount()).isEqualTo(2);
+
+        // Callers can't modify the cached bytes.
+        mStore.putBytes("bytes", new byte[] { 1, 2, 3 });
+        mStore.getBytes("bytes")[0] = 42;
+        assertThat(mStore.getBytes("bytes")).isEqualTo(new byte[] { 1, 2, 3 });
+
+        // Blobs too large for the tier are never kept in memory.
+        mStore.putBytes("large", new byte[512 * 1024]);
+        mStore.getBytes("large");
+        mStore.getBytes("large");
+        assertThat(misses.getCount()).isEqualTo(5);
+    }
+
+    @Test
+    public void testCollectGarbage() throws Exception {
+        File dir = mTempFolder.newFolder();
+        when(mFlags.getString("blob-store-dir")).thenReturn(dir.getPath());
+        when(mFlags.getString("blob-store-engine")).thenReturn("segment");
+        when(mFlags.getBool("blob-store-gc")).thenReturn(true);
+        when(mFlags.getInt("blob-store-gc-keep-runs")).thenReturn(2);
+
+        mStore.putString("used", "used content");
+        mStore.putString("kept", "kept content");
+        mStore.putString("unused", "unused content");
+        mStore.collectGarbage();
+
+        // Entries are kept till they have not been used for 2 runs.
+        mStore.getString("used");
+        mStore.keep("kept");
+        mStore.collectGarbage();
+        mStore.getString("used");
+        mStore.keep("kept");
+        mStore.collectGarbage();
+
+        assertThat(mStore.getString("used")).isEqualTo("used content");
+        assertThat(mStore.getString("kept")).isEqualTo("kept content");
+        assertThat(mStore.getString("unused")).isNull();
+    }
+
+    @Test
+    public void testCollectGarbage_dryRun() throws Exception {
+        File dir = mTempFolder.newFolder();
+        when(mFlags.getString("blob-store-dir")).thenReturn(dir.getPath());
+        when(mFlags.getString("blob-store-engine")).thenReturn("segment");
+        when(mFlags.getBool("blob-store-gc")).thenReturn(true);
+        when(mFlags.getBool("blob-store-gc-dry-run")).thenReturn(true);
+        when(mFlags.getInt("blob-store-gc-keep-runs")).thenReturn(1);
+
+        mStore.putString("unused", "unused content");
+        mStore.putString("used", "used content");
+        mStore.collectGarbage();
+        mStore.getString("used");
+        mStore.collectGarbage();
+
+        assertThat(mStore.getString("unused")).isEqualTo("unused content");
+        verify(mLogger).d("BlobStore", "GC: could reclaim 1 blobs, 14 bytes");
+    }
+
+    @Test
+    public void testConcurrentAccess_fileEngine() throws Exception {
+        File dir = mTempFolder.newFolder();
+        when(mFlags.getString("blob-store-dir")).thenReturn(dir.getPath());
+        mStore = new BlobStore(mFlags, new StoreFileOps(), mTiming, mLogger);
+
+        hammer(mStore);
+        assertThat(dir.list((d, name) -> name.endsWith(".tmp"))).isEmpty();
+    }
+
+    @Test
+    public void testConcurrentAccess_segmentEngine() throws Exception {
+        File dir = mTempFolder.newFolder();
+        when(mFlags.getString("blob-store-dir")).thenReturn(dir.getPath());
+        when(mFlags.getString("blob-store-engine")).thenReturn("segment");
+
+        hammer(mStore);
+    }
+
+    /**
+     * Many threads write and read the same few keys. Each blob is filled with a single byte
+     * value, so a torn or interleaved write would show up as a blob with mixed values.
+     */
+    private static void hammer(BlobStore store) throws Exception {
+        final int numThreads = 16;
+        final int numKeys = 4;
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        try {
+            List<Future<Void>> futures = new ArrayList<>();
+            for (int t = 0; t < numThreads; t++) {
+                final byte value = (byte) (t + 1);
+                futures.add(executor.submit((Callable<Void>) () -> {
+                    byte[] content = new byte[32 * 1024];
+                    Arrays.fill(content, value);
+                    for (int i = 0; i < 100; i++) {
+                        String key = "key" + (i % numKeys);
+                        store.putBytes(key, content);
+                        byte[] actual = store.getBytes(key);
+                        assertThat(actual).isNotNull();
+                        assertThat(actual.length).isEqualTo(content.length);
+                        for (byte b : actual) {
+                            assertThat(b).isEqualTo(actual[0]);
+                        }
+                    }
+                    return null;
+                }));
+            }
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
     public static class JsonStruct {
         public String fieldA;
         public int fieldB;
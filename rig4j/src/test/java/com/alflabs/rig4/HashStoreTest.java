@@ -2,33 +2,47 @@ package com.alflabs.rig4;
 
 
 import com.alflabs.rig4.flags.Flags;
-import com.alflabs.utils.FakeFileOps;
+import com.alflabs.rig4.store.FakeStoreFileOps;
 import com.alflabs.utils.ILogger;
 import com.alflabs.utils.MockClock;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.mockito.Mock;
 import org.mockito.junit.MockitoJUnit;
 import org.mockito.junit.MockitoRule;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
 import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.Mockito.when;
 
 public class HashStoreTest {
     public @Rule MockitoRule mMockitoRule = MockitoJUnit.rule();
+    public @Rule TemporaryFolder mTempFolder = new TemporaryFolder();
 
     @Mock private Flags mFlags;
     @Mock private ILogger mLogger;
 
+    private final MockClock mClock = new MockClock();
+    private FakeStoreFileOps mFileOps;
+    private BlobStore mBlobStore;
     private HashStore mStore;
 
     @Before
     public void setUp() throws Exception {
-        Timing timing = new Timing(new MockClock(), mLogger);
-        FakeFileOps fileOps = new FakeFileOps();
-        BlobStore blobStore = new BlobStore(mFlags, fileOps, timing, mLogger);
+        Timing timing = new Timing(mClock, mLogger);
+        mFileOps = new FakeStoreFileOps();
+        mBlobStore = new BlobStore(mFlags, mFileOps, timing, mLogger);
 
-        mStore = new HashStore(mLogger, blobStore);
+        mStore = new HashStore(mFlags, mClock, mLogger, mBlobStore);
     }
 
     @Test
@@ -38,4 +52,155 @@ public class HashStoreTest {
         mStore.putString("key", "content");
         assertThat(mStore.getString("key")).isEqualTo("content");
     }
+
+    @Test
+    public void testSnapshot() throws Exception {
+        File dir = mTempFolder.newFolder();
+        when(mFlags.getString("blob-store-dir")).thenReturn(dir.getPath());
+        when(mFlags.getBool("hash-store-snapshot")).thenReturn(true);
+        when(mFlags.getInt("hash-store-flush-count")).thenReturn(1000);
+        when(mFlags.getInt("hash-store-flush-seconds")).thenReturn(60);
+
+        mStore.putString("key1", "content 1");
+        mStore.putString("key2", "content 2");
+        assertThat(mStore.getString("key1")).isEqualTo("content 1");
+
+        // Changes are buffered: nothing is written to the blob store nor to the snapshot.
+        assertThat(mBlobStore.getString("key1")).isNull();
+        assertThat(mFileOps.isFile(new File(dir, "hash_store.snapshot"))).isFalse();
+        HashStore store2 = new HashStore(mFlags, mClock, mLogger, mBlobStore);
+        assertThat(store2.getString("key1")).isNull();
+
+        mStore.flush();
+        assertThat(mFileOps.list(dir)).containsExactly("hash_store.snapshot");
+
+        HashStore store3 = new HashStore(mFlags, mClock, mLogger, mBlobStore);
+        assertThat(store3.getString("key1")).isEqualTo("content 1");
+        assertThat(store3.getString("key2")).isEqualTo("content 2");
+    }
+
+    @Test
+    public void testSnapshot_flushThresholds() throws Exception {
+        File dir = mTempFolder.newFolder();
+        File snapshot = new File(dir, "hash_store.snapshot");
+        when(mFlags.getString("blob-store-dir")).thenReturn(dir.getPath());
+        when(mFlags.getBool("hash-store-snapshot")).thenReturn(true);
+        when(mFlags.getInt("hash-store-flush-count")).thenReturn(3);
+        when(mFlags.getInt("hash-store-flush-seconds")).thenReturn(60);
+
+        mStore.putString("key1", "content 1");
+        mStore.putString("key2", "content 2");
+        assertThat(mFileOps.isFile(snapshot)).isFalse();
+        mStore.putString("key3", "content 3");
+        assertThat(mFileOps.isFile(snapshot)).isTrue();
+        mFileOps.delete(snapshot);
+
+        mStore.putString("key4", "content 4");
+        assertThat(mFileOps.isFile(snapshot)).isFalse();
+        mClock.sleep(61 * 1000);
+        mStore.putString("key5", "content 5");
+        assertThat(mFileOps.isFile(snapshot)).isTrue();
+    }
+
+    @Test
+    public void testSnapshot_concurrentAccess() throws Exception {
+        File dir = mTempFolder.newFolder();
+        when(mFlags.getString("blob-store-dir")).thenReturn(dir.getPath());
+        when(mFlags.getBool("hash-store-snapshot")).thenReturn(true);
+        // Low threshold so that snapshots get written while other threads update the store.
+        when(mFlags.getInt("hash-store-flush-count")).thenReturn(50);
+        when(mFlags.getInt("hash-store-flush-seconds")).thenReturn(60);
+
+        final int numThreads = 16;
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        try {
+            List<Future<Void>> futures = new ArrayList<>();
+            for (int t = 0; t < numThreads; t++) {
+                final int thread = t;
+                futures.add(executor.submit((Callable<Void>) () -> {
+                    for (int i = 0; i < 500; i++) {
+                        mStore.putString("shared" + (i % 8), "value " + thread + " " + i);
+                        mStore.putString("own" + thread, "value " + i);
+                        assertThat(mStore.getString("shared" + (i % 8))).startsWith("value ");
+                        assertThat(mStore.getString("own" + thread)).isEqualTo("value " + i);
+                    }
+                    return null;
+                }));
+            }
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        mStore.flush();
+
+        HashStore store2 = new HashStore(mFlags, mClock, mLogger, mBlobStore);
+        for (int t = 0; t < numThreads; t++) {
+            assertThat(store2.getString("own" + t)).isEqualTo("value 499");
+        }
+        for (int k = 0; k < 8; k++) {
+            assertThat(store2.getString("shared" + k)).isEqualTo(mStore.getString("shared" + k));
+        }
+    }
+
+    @Test
+    public void testSnapshot_collectGarbage() throws Exception {
+        File dir = mTempFolder.newFolder();
+        when(mFlags.getString("blob-store-dir")).thenReturn(dir.getPath());
+        when(mFlags.getBool("hash-store-snapshot")).thenReturn(true);
+        when(mFlags.getInt("hash-store-flush-count")).thenReturn(1000);
+        when(mFlags.getInt("hash-store-flush-seconds")).thenReturn(60);
+        when(mFlags.getBool("blob-store-gc")).thenReturn(true);
+        when(mFlags.getInt("blob-store-gc-keep-runs")).thenReturn(1);
+
+        mStore.putString("used", "used content");
+        mStore.putString("unused", "unused content");
+        mStore.collectGarbage();
+        mStore.flush();
+
+        HashStore store2 = new HashStore(mFlags, mClock, mLogger, mBlobStore);
+        assertThat(store2.getString("used")).isEqualTo("used content");
+        store2.collectGarbage();
+        store2.flush();
+
+        HashStore store3 = new HashStore(mFlags, mClock, mLogger, mBlobStore);
+        assertThat(store3.getString("used")).isEqualTo("used content");
+        assertThat(store3.getString("unused")).isNull();
+    }
+
+    @Test
+    public void testSnapshot_migratesLegacyEntries() throws Exception {
+        File dir = mTempFolder.newFolder();
+        when(mFlags.getString("blob-store-dir")).thenReturn(dir.getPath());
+        mBlobStore.putString("legacy", "legacy content");
+
+        when(mFlags.getBool("hash-store-snapshot")).thenReturn(true);
+        when(mFlags.getInt("hash-store-flush-count")).thenReturn(1000);
+        when(mFlags.getInt("hash-store-flush-seconds")).thenReturn(60);
+        assertThat(mStore.getString("legacy")).isEqualTo("legacy content");
+        mStore.flush();
+
+        // The entry is now read from the snapshot.
+        mBlobStore.remove("legacy");
+        HashStore store2 = new HashStore(mFlags, mClock, mLogger, mBlobStore);
+        assertThat(store2.getString("legacy")).isEqualTo("legacy content");
+    }
+
+    @Test
+    public void testSnapshot_missIsAuthoritative() throws Exception {
+        File dir = mTempFolder.newFolder();
+        when(mFlags.getString("blob-store-dir")).thenReturn(dir.getPath());
+        when(mFlags.getBool("hash-store-snapshot")).thenReturn(true);
+        when(mFlags.getInt("hash-store-flush-count")).thenReturn(1000);
+        when(mFlags.getInt("hash-store-flush-seconds")).thenReturn(60);
+        mStore.putString("key", "content");
+        mStore.flush();
+
+        // Once a snapshot exists, misses don't look up the legacy per-blob entries anymore.
+        mBlobStore.putString("legacy", "legacy content");
+        HashStore store2 = new HashStore(mFlags, mClock, mLogger, mBlobStore);
+        assertThat(store2.getString("key")).isEqualTo("content");
+        assertThat(store2.getString("legacy")).isNull();
+    }
 }
@@ -49,4 +49,39 @@ public class TimingTest {
                 "Timing: name1 = 1.002 s\n" +
                 "Timing: name2 = 0.901 s\n");
     }
+
+    @Test
+    public void testCounters() throws Exception {
+        Timing.Counter counter = mTiming.getCounter("counter");
+        assertThat(mTiming.getCounter("counter")).isSameAs(counter);
+        counter.increment();
+        counter.add(41);
+        assertThat(counter.getCount()).isEqualTo(42);
+
+        mTiming.get("name").start().end();
+        mTiming.printToLog();
+        assertThat(mLogger.getString()).isEqualTo(
+                "Timing: name = 0.000 s\n" +
+                "Timing: counter = 42\n");
+    }
+
+    @Test
+    public void testTiming_threads() throws Exception {
+        Timing.TimeAccumulator acc = mTiming.get("name");
+
+        // Each thread tracks its own start time and their elapsed times are summed.
+        acc.start();
+        mClock.sleep(100);
+        Thread thread = new Thread(() -> {
+            acc.start();
+            mClock.sleep(10);
+            acc.end();
+        });
+        thread.start();
+        thread.join();
+        mClock.sleep(100);
+        acc.end();
+
+        assertThat(acc.getAccumulator()).isEqualTo(210 + 10);
+    }
 }
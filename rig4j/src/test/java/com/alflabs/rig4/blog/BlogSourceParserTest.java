@@ -2,6 +2,7 @@ package com.alflabs.rig4.blog;
 
 import com.alflabs.rig4.HashStore;
 import com.alflabs.rig4.Timing;
+import com.alflabs.rig4.exp.DownloadPool;
 import com.alflabs.rig4.exp.HtmlTransformer;
 import com.alflabs.rig4.flags.Flags;
 import com.alflabs.utils.FileOps;
@@ -37,7 +38,8 @@ public class BlogSourceParserTest {
     @Before
     public void setUp() throws Exception {
         when(mTiming.get("HtmlTransformer")).thenReturn(mTimeAccumulator);
-        mHtmlTransformer = new HtmlTransformer(new Flags(mFileOps, mLogger), mTiming, mHashStore);
+        Flags flags = new Flags(mFileOps, mLogger);
+        mHtmlTransformer = new HtmlTransformer(flags, mTiming, mHashStore, new DownloadPool(flags));
         mBlogSourceParser = new BlogSourceParser(mHtmlTransformer);
     }
 
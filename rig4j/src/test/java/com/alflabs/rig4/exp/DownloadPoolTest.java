@@ -0,0 +1,97 @@
+package com.alflabs.rig4.exp;
+
+import com.alflabs.rig4.flags.Flags;
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnit;
+import org.mockito.junit.MockitoRule;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.when;
+
+public class DownloadPoolTest {
+    public @Rule MockitoRule mMockitoRule = MockitoJUnit.rule();
+
+    @Mock private Flags mFlags;
+
+    @Test
+    public void testSynchronous() throws Exception {
+        DownloadPool pool = new DownloadPool(mFlags);
+        Thread caller = Thread.currentThread();
+
+        Future<Thread> future = pool.submit("host", Thread::currentThread);
+        assertThat(future.isDone()).isTrue();
+        assertThat(future.get()).isSameAs(caller);
+
+        Future<String> failed = pool.submit("host", () -> { throw new IOException("failed"); });
+        try {
+            failed.get();
+            fail("Expected ExecutionException");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause()).isInstanceOf(IOException.class);
+        }
+    }
+
+    @Test
+    public void testPerHostLimit() throws Exception {
+        when(mFlags.getInt(ExpFlags.EXP_DOWNLOAD_THREADS)).thenReturn(8);
+        when(mFlags.getInt(ExpFlags.EXP_DOWNLOAD_THREADS_PER_HOST)).thenReturn(2);
+        DownloadPool pool = new DownloadPool(mFlags);
+
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        List<Future<Integer>> futures = new ArrayList<>();
+        for (int i = 0; i < 16; i++) {
+            int n = i;
+            futures.add(pool.submit("host", () -> {
+                maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                Thread.sleep(10);
+                running.decrementAndGet();
+                return n;
+            }));
+        }
+        for (int i = 0; i < futures.size(); i++) {
+            assertThat(futures.get(i).get()).isEqualTo(i);
+        }
+        assertThat(maxRunning.get()).isAtMost(2);
+    }
+
+    @Test
+    public void testBusyHostDoesNotStarveOthers() throws Exception {
+        when(mFlags.getInt(ExpFlags.EXP_DOWNLOAD_THREADS)).thenReturn(4);
+        when(mFlags.getInt(ExpFlags.EXP_DOWNLOAD_THREADS_PER_HOST)).thenReturn(1);
+        DownloadPool pool = new DownloadPool(mFlags);
+
+        CountDownLatch blocked = new CountDownLatch(1);
+        List<Future<Void>> slow = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            slow.add(pool.submit("slow", () -> {
+                blocked.await();
+                return null;
+            }));
+        }
+
+        // The queued "slow" jobs don't hold the other threads.
+        assertThat(pool.submit("fast", () -> "done").get(5, TimeUnit.SECONDS)).isEqualTo("done");
+
+        // A cancelled job never runs but still hands its turn over.
+        assertThat(slow.get(1).cancel(false)).isTrue();
+        blocked.countDown();
+        for (Future<Void> future : slow) {
+            if (!future.isCancelled()) {
+                future.get(5, TimeUnit.SECONDS);
+            }
+        }
+    }
+}
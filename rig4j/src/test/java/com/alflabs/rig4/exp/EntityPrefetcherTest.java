@@ -0,0 +1,118 @@
+package com.alflabs.rig4.exp;
+
+import com.alflabs.rig4.flags.Flags;
+import com.alflabs.rig4.gdoc.GDocHelper;
+import com.alflabs.rig4.gdoc.GDocMetadata;
+import com.alflabs.rig4.struct.GDocEntity;
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnit;
+import org.mockito.junit.MockitoRule;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.when;
+
+public class EntityPrefetcherTest {
+    public @Rule MockitoRule mMockitoRule = MockitoJUnit.rule();
+
+    @Mock private Flags mFlags;
+    @Mock private GDocHelper mGDocHelper;
+
+    private final List<String> mFetched = Collections.synchronizedList(new ArrayList<>());
+
+    @Before
+    public void setUp() throws Exception {
+        when(mGDocHelper.getGDocHtmlAsync(anyString(), anyBoolean())).thenAnswer(invocation -> {
+            String fileId = invocation.getArgument(0);
+            GDocMetadata metadata = GDocMetadata.create(fileId, "hash", Collections.emptyMap());
+            return new GDocEntity(metadata, fileId.startsWith("fresh"),
+                    entity -> {
+                        mFetched.add(fileId);
+                        return fileId.getBytes(Charsets.UTF_8);
+                    },
+                    entity -> {});
+        });
+    }
+
+    @Test
+    public void testPrefetchesStaleEntriesAhead() throws Exception {
+        // Without download threads, the prefetch happens synchronously.
+        EntityPrefetcher prefetcher = new EntityPrefetcher(mGDocHelper, new DownloadPool(mFlags),
+                Arrays.asList("doc0", "fresh1", "doc2", "doc3", "doc4", "doc5", "doc6"),
+                false /* zipExport */);
+
+        GDocEntity entity = prefetcher.get(0);
+        assertThat(mFetched).containsExactly("doc0", "doc2", "doc3", "doc4").inOrder();
+        assertThat(new String(entity.getContent(), Charsets.UTF_8)).isEqualTo("doc0");
+
+        prefetcher.get(1);
+        assertThat(mFetched).containsExactly("doc0", "doc2", "doc3", "doc4", "doc5").inOrder();
+
+        // The content is not fetched again.
+        assertThat(new String(prefetcher.get(2).getContent(), Charsets.UTF_8)).isEqualTo("doc2");
+        assertThat(mFetched).containsExactly("doc0", "doc2", "doc3", "doc4", "doc5", "doc6").inOrder();
+    }
+
+    @Test
+    public void testPrefetchInBackground() throws Exception {
+        when(mFlags.getInt(ExpFlags.EXP_DOWNLOAD_THREADS)).thenReturn(2);
+        when(mFlags.getInt(ExpFlags.EXP_DOWNLOAD_THREADS_PER_HOST)).thenReturn(2);
+        EntityPrefetcher prefetcher = new EntityPrefetcher(mGDocHelper, new DownloadPool(mFlags),
+                Arrays.asList("doc0", "doc1", "doc2"),
+                false /* zipExport */);
+
+        for (int i = 0; i < 3; i++) {
+            GDocEntity entity = prefetcher.get(i);
+            assertThat(new String(entity.getContent(), Charsets.UTF_8)).isEqualTo("doc" + i);
+            assertThat(entity.isContentFetched()).isTrue();
+        }
+        assertThat(mFetched).containsExactly("doc0", "doc1", "doc2");
+    }
+
+    @Test
+    public void testPrefetchSpoolsStreams() throws Exception {
+        List<String> opened = Collections.synchronizedList(new ArrayList<>());
+        when(mGDocHelper.getGDocHtmlAsync(anyString(), anyBoolean())).thenAnswer(invocation -> {
+            String fileId = invocation.getArgument(0);
+            GDocMetadata metadata = GDocMetadata.create(fileId, "hash", Collections.emptyMap());
+            return new GDocEntity(metadata, false /* updateToDate */,
+                    entity -> {
+                        mFetched.add(fileId);
+                        return fileId.getBytes(Charsets.UTF_8);
+                    },
+                    entity -> {
+                        opened.add(fileId);
+                        return new ByteArrayInputStream(fileId.getBytes(Charsets.UTF_8));
+                    },
+                    entity -> {});
+        });
+        EntityPrefetcher prefetcher = new EntityPrefetcher(mGDocHelper, new DownloadPool(mFlags),
+                Arrays.asList("doc0", "doc1"),
+                false /* zipExport */);
+
+        GDocEntity entity = prefetcher.get(0);
+        assertThat(opened).containsExactly("doc0", "doc1").inOrder();
+
+        // The spooled stream is used as-is, without fetching the content in memory.
+        try (InputStream stream = entity.openContentStream()) {
+            assertThat(new String(ByteStreams.toByteArray(stream), Charsets.UTF_8)).isEqualTo("doc0");
+        }
+        assertThat(new String(prefetcher.get(1).getContent(), Charsets.UTF_8)).isEqualTo("doc1");
+        assertThat(opened).containsExactly("doc0", "doc1").inOrder();
+        assertThat(mFetched).isEmpty();
+        assertThat(entity.isContentFetched()).isFalse();
+    }
+}
@@ -4,8 +4,8 @@ import com.alflabs.rig4.BlobStore;
 import com.alflabs.rig4.HashStore;
 import com.alflabs.rig4.Timing;
 import com.alflabs.rig4.flags.Flags;
-import com.alflabs.utils.FakeFileOps;
-import com.alflabs.utils.FileOps;
+import com.alflabs.rig4.store.FakeStoreFileOps;
+import com.alflabs.rig4.store.StoreFileOps;
 import com.alflabs.utils.ILogger;
 import com.alflabs.utils.MockClock;
 import com.alflabs.utils.StringLogger;
@@ -29,23 +29,24 @@ public class HtmlTransformerTest {
     public @Rule MockitoRule mMockitoRule = MockitoJUnit.rule();
 
     private ILogger mLogger = new StringLogger();
-    private FileOps mFileOps = new FakeFileOps();
+    private StoreFileOps mFileOps = new FakeStoreFileOps();
     private Flags mFlags = new Flags(mFileOps, mLogger);
     private Timing mTiming = new Timing(new MockClock(), mLogger);
     private BlobStore mBlobStore = new BlobStore(mFlags, mFileOps, mTiming, mLogger);
-    private HashStore mHashStore = new HashStore(mLogger, mBlobStore);
+    private HashStore mHashStore = new HashStore(mFlags, new MockClock(), mLogger, mBlobStore);
 
     private HtmlTransformer mTransformer;
 
     @Before
     public void setUp() throws Exception {
         mBlobStore.declareFlags();
+        mHashStore.declareFlags();
         new ExpFlags(mFlags).declareFlags();
         mFlags.parseCommandLine(new String[] {
                 "--blob-store-dir=/tmp/blog-store-dir",
                 "--exp-rewritten-url=http://example.com/"
         });
-        mTransformer = new HtmlTransformer(mFlags, mTiming, mHashStore);
+        mTransformer = new HtmlTransformer(mFlags, mTiming, mHashStore, new DownloadPool(mFlags));
     }
 
     private Element transform(Element intermediary) throws IOException, URISyntaxException {
@@ -0,0 +1,96 @@
+package com.alflabs.rig4.gdoc;
+
+import org.junit.Test;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+
+import static com.google.common.truth.Truth.assertThat;
+
+public class AlphaBoundsTest {
+
+    @Test
+    public void testFind_intArgb() throws Exception {
+        BufferedImage image = new BufferedImage(200, 100, BufferedImage.TYPE_INT_ARGB);
+        drawShapes(image);
+        assertThat(AlphaBounds.find(image)).isEqualTo(new Rectangle(10, 5, 171, 86));
+        assertThat(AlphaBounds.find(image)).isEqualTo(findSlow(image));
+    }
+
+    @Test
+    public void testFind_4ByteAbgr() throws Exception {
+        BufferedImage image = new BufferedImage(200, 100, BufferedImage.TYPE_4BYTE_ABGR);
+        drawShapes(image);
+        assertThat(AlphaBounds.find(image)).isEqualTo(new Rectangle(10, 5, 171, 86));
+    }
+
+    @Test
+    public void testFind_subimage() throws Exception {
+        BufferedImage image = new BufferedImage(200, 100, BufferedImage.TYPE_4BYTE_ABGR);
+        drawShapes(image);
+        BufferedImage sub = image.getSubimage(20, 10, 150, 70);
+        assertThat(AlphaBounds.find(sub)).isEqualTo(findSlow(sub));
+
+        image = new BufferedImage(200, 100, BufferedImage.TYPE_INT_ARGB);
+        drawShapes(image);
+        sub = image.getSubimage(20, 10, 150, 70);
+        assertThat(AlphaBounds.find(sub)).isEqualTo(findSlow(sub));
+    }
+
+    @Test
+    public void testFind_indexed() throws Exception {
+        // Uses the generic path.
+        byte[] gray = { 0, (byte) 0x80 };
+        IndexColorModel model = new IndexColorModel(1, 2, gray, gray, gray, 0 /* transparent index */);
+        BufferedImage image = new BufferedImage(64, 32, BufferedImage.TYPE_BYTE_BINARY, model);
+        image.getRaster().setSample(3, 7, 0, 1);
+        image.getRaster().setSample(40, 20, 0, 1);
+        assertThat(AlphaBounds.find(image)).isEqualTo(new Rectangle(3, 7, 38, 14));
+    }
+
+    @Test
+    public void testFind_singlePixel() throws Exception {
+        BufferedImage image = new BufferedImage(50, 50, BufferedImage.TYPE_4BYTE_ABGR);
+        image.setRGB(49, 0, 0x01000000);
+        assertThat(AlphaBounds.find(image)).isEqualTo(new Rectangle(49, 0, 1, 1));
+    }
+
+    @Test
+    public void testFind_transparent() throws Exception {
+        assertThat(AlphaBounds.find(new BufferedImage(50, 50, BufferedImage.TYPE_INT_ARGB))).isNull();
+    }
+
+    @Test
+    public void testFind_opaque() throws Exception {
+        assertThat(AlphaBounds.find(new BufferedImage(50, 40, BufferedImage.TYPE_INT_RGB)))
+                .isEqualTo(new Rectangle(0, 0, 50, 40));
+    }
+
+    /** Draws shapes in the box (10,5)-(180,90), with the bottom-right pixel on a row above the bottom one. */
+    private static void drawShapes(BufferedImage image) {
+        Graphics2D g = image.createGraphics();
+        g.setColor(Color.RED);
+        g.fillRect(10, 40, 20, 20);
+        g.fillRect(100, 5, 5, 86);
+        g.fillRect(180, 60, 1, 1);
+        g.dispose();
+    }
+
+    private static Rectangle findSlow(BufferedImage image) {
+        int x1 = Integer.MAX_VALUE, y1 = Integer.MAX_VALUE, x2 = -1, y2 = -1;
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                if ((image.getRGB(x, y) >>> 24) != 0) {
+                    x1 = Math.min(x1, x);
+                    y1 = Math.min(y1, y);
+                    x2 = Math.max(x2, x);
+                    y2 = Math.max(y2, y);
+                }
+            }
+        }
+        return x2 < 0 ? null : new Rectangle(x1, y1, x2 - x1 + 1, y2 - y1 + 1);
+    }
+}
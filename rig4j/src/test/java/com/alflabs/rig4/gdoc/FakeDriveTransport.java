@@ -0,0 +1,102 @@
+package com.alflabs.rig4.gdoc;
+
+import com.alflabs.annotations.NonNull;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.api.client.json.Json;
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A local fake of the Drive v3 endpoint serving canned JSON responses.
+ * <p/>
+ * Responses are registered by path relative to the Drive API root, e.g. "files/id" or
+ * "changes/startPageToken". The "changes" list is keyed by its page token as "changes?pageToken=N".
+ * Unknown paths get a 404. All requests are recorded in the same form.
+ * <p/>
+ * Paths given an ETag reply 304 Not Modified to requests sending it in If-None-Match.
+ * Paths given failures reply 503 Service Unavailable that many times before their response.
+ */
+public class FakeDriveTransport extends MockHttpTransport {
+    private static final String DRIVE_ROOT = "/drive/v3/";
+
+    private final Map<String, String> mResponses = new HashMap<>();
+    private final Map<String, String> mETags = new HashMap<>();
+    private final Map<String, Integer> mFailures = new HashMap<>();
+    private final List<String> mRequests = new ArrayList<>();
+
+    public void setResponse(@NonNull String path, @NonNull String json) {
+        mResponses.put(path, json);
+    }
+
+    public void setETag(@NonNull String path, @NonNull String eTag) {
+        mETags.put(path, eTag);
+    }
+
+    public synchronized void setFailures(@NonNull String path, int failures) {
+        mFailures.put(path, failures);
+    }
+
+    @NonNull
+    public synchronized List<String> getRequests() {
+        return new ArrayList<>(mRequests);
+    }
+
+    public synchronized void clearRequests() {
+        mRequests.clear();
+    }
+
+    @Override
+    public LowLevelHttpRequest buildRequest(String method, String url) {
+        GenericUrl genericUrl = new GenericUrl(url);
+        String path = genericUrl.getRawPath();
+        if (path.startsWith(DRIVE_ROOT)) {
+            path = path.substring(DRIVE_ROOT.length());
+        }
+        Object pageToken = genericUrl.getFirst("pageToken");
+        if (pageToken != null) {
+            path += "?pageToken=" + pageToken;
+        }
+        boolean fail;
+        synchronized (this) {
+            mRequests.add(path);
+            int failures = mFailures.getOrDefault(path, 0);
+            fail = failures > 0;
+            if (fail) {
+                mFailures.put(path, failures - 1);
+            }
+        }
+
+        String json = mResponses.get(path);
+        String eTag = mETags.get(path);
+        return new MockLowLevelHttpRequest(url) {
+            @Override
+            public LowLevelHttpResponse execute() {
+                MockLowLevelHttpResponse response = new MockLowLevelHttpResponse();
+                response.setContentType(Json.MEDIA_TYPE);
+                if (eTag != null) {
+                    response.addHeader("ETag", eTag);
+                }
+                if (fail) {
+                    response.setStatusCode(503);
+                    response.setContent("{\"error\":{\"code\":503,\"message\":\"Unavailable\"}}");
+                } else if (json != null && eTag != null && eTag.equals(getFirstHeaderValue("If-None-Match"))) {
+                    response.setStatusCode(304);
+                } else if (json == null) {
+                    response.setStatusCode(404);
+                    response.setContent("{\"error\":{\"code\":404,\"message\":\"Not found\"}}");
+                } else {
+                    response.setContent(json);
+                }
+                return response;
+            }
+        };
+    }
+}
@@ -3,30 +3,55 @@ package com.alflabs.rig4.gdoc;
 import com.alflabs.rig4.BlobStore;
 import com.alflabs.rig4.HashStore;
 import com.alflabs.rig4.Timing;
+import com.alflabs.rig4.flags.Flags;
+import com.alflabs.rig4.store.FakeStoreFileOps;
 import com.alflabs.rig4.struct.GDocEntity;
 import com.alflabs.utils.FileOps;
 import com.alflabs.utils.ILogger;
+import com.alflabs.utils.MockClock;
 import com.google.common.base.Charsets;
+import com.google.common.io.BaseEncoding;
+import com.google.common.io.ByteStreams;
+import org.apache.commons.codec.digest.DigestUtils;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.mockito.Mock;
 import org.mockito.junit.MockitoJUnit;
 import org.mockito.junit.MockitoRule;
 
+import javax.imageio.ImageIO;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URL;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
 import static com.google.common.truth.Truth.assertThat;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 public class GDocHelperTest {
     public @Rule MockitoRule mMockitoRule = MockitoJUnit.rule();
+    public @Rule TemporaryFolder mTempFolder = new TemporaryFolder();
 
+    @Mock private Flags mFlags;
     @Mock private ILogger mLogger;
     @Mock private FileOps mFileOps;
     @Mock private Timing mTiming;
@@ -38,7 +63,8 @@ public class GDocHelperTest {
 
     @Before
     public void setUp() throws Exception {
-        mHelper = new GDocHelper(mLogger, mFileOps, mTiming, mGDocReader, mBlobStore, mHashStore);
+        mHelper = new GDocHelper(mLogger, mFileOps, mTiming, mGDocReader, mBlobStore, mHashStore,
+                new RetryPolicy(mFlags, new MockClock(), mLogger), new ImageFormatPredictor(mFlags, mTiming));
     }
 
 
@@ -199,4 +225,196 @@ public class GDocHelperTest {
         verify(mHashStore).putString("gdoc-hash-gdoc id", "gdoc content hash");
         verify(mBlobStore).putBytes("gdoc-content-gdoc id-text/html", contentBytes);
     }
+
+    @Test
+    public void testGetGDocAsync_streamed() throws Exception {
+        GDocMetadata gDocMetadata = GDocMetadata.create("gdoc title", "gdoc content hash",
+                Collections.singletonMap("text/html", "http://example.com/export"));
+        byte[] contentBytes = "GDoc File SourceContent".getBytes(Charsets.UTF_8);
+
+        when(mGDocReader.getMetadataById("gdoc id")).thenReturn(gDocMetadata);
+        when(mGDocReader.getDataByUrl(new URL("http://example.com/export")))
+                .thenReturn(new ByteArrayInputStream(contentBytes));
+        when(mBlobStore.getStream("gdoc-content-gdoc id-text/html"))
+                .thenReturn(new ByteArrayInputStream(contentBytes));
+
+        GDocEntity entity = mHelper.getGDocAsync("gdoc id", "text/html");
+        assertThat(entity).isNotNull();
+        assertThat(entity.isUpdateToDate()).isFalse();
+
+        // The export is spooled to the store then read back from there.
+        try (InputStream stream = entity.openContentStream()) {
+            assertThat(ByteStreams.toByteArray(stream)).isEqualTo(contentBytes);
+        }
+        verify(mBlobStore).putStream(eq("gdoc-content-gdoc id-text/html"), any());
+        verify(mHashStore, never()).putString(anyString(), anyString());
+
+        // Syncing only needs to update the hash.
+        entity.syncToStore();
+        verify(mHashStore).putString("gdoc-hash-gdoc id", "gdoc content hash");
+        verify(mBlobStore, never()).putBytes(anyString(), any());
+    }
+
+    // --- Zip export
+
+    @Test
+    public void testUnpackZipExport() throws Exception {
+        byte[] image1 = new byte[] { 1, 2, 3, 4 };
+        byte[] image2 = new byte[] { 5, 6, 7, 8 };
+        ByteArrayOutputStream zip = new ByteArrayOutputStream();
+        try (ZipOutputStream zos = new ZipOutputStream(zip)) {
+            zos.putNextEntry(new ZipEntry("images/image1.png"));
+            zos.write(image1);
+            zos.putNextEntry(new ZipEntry("images/image2.png"));
+            zos.write(image2);
+            zos.putNextEntry(new ZipEntry("Doc.html"));
+            zos.write(("<p><img src=\"images/image1.png\"><img src=\"images/image2.png\">"
+                    + "<img src=\"images/image1.png\"><img src=\"other.png\"></p>").getBytes(Charsets.UTF_8));
+        }
+
+        // The images are spooled next to the blobs, then streamed to the store if new.
+        FakeStoreFileOps storeFileOps = new FakeStoreFileOps();
+        when(mBlobStore.getFileOps()).thenReturn(storeFileOps);
+        when(mBlobStore.getStoreFile(anyString())).thenAnswer(
+                invocation -> new File("blobs", invocation.<String>getArgument(0)));
+        String hash1 = DigestUtils.sha256Hex(image1);
+        String hash2 = DigestUtils.sha256Hex(image2);
+        when(mBlobStore.containsBytes("gdoc-zip-image-" + hash2)).thenReturn(true);
+        Map<String, byte[]> stored = new HashMap<>();
+        doAnswer(invocation -> stored.put(invocation.getArgument(0),
+                ByteStreams.toByteArray(invocation.<InputStream>getArgument(1))))
+                .when(mBlobStore).putStream(anyString(), any());
+
+        // Use a real timing: the mocked one has no accumulators.
+        Timing timing = new Timing(new MockClock(), mLogger);
+        GDocHelper helper = new GDocHelper(mLogger, mFileOps, timing,
+                mGDocReader, mBlobStore, mHashStore, new RetryPolicy(mFlags, new MockClock(), mLogger),
+                new ImageFormatPredictor(mFlags, timing));
+        String html;
+        try (InputStream stream = helper.unpackZipExport(new ByteArrayInputStream(zip.toByteArray()))) {
+            html = new String(ByteStreams.toByteArray(stream), Charsets.UTF_8);
+        }
+
+        assertThat(html).isEqualTo("<p><img src=\"rig4-zip-image:" + hash1 + "\">"
+                + "<img src=\"rig4-zip-image:" + hash2 + "\">"
+                + "<img src=\"rig4-zip-image:" + hash1 + "\"><img src=\"other.png\"></p>");
+        assertThat(stored.keySet()).containsExactly("gdoc-zip-image-" + hash1);
+        assertThat(stored.get("gdoc-zip-image-" + hash1)).isEqualTo(image1);
+        verify(mBlobStore, never()).putBytes(anyString(), any());
+        assertThat(storeFileOps.list(new File("blobs"))).isEmpty();
+    }
+
+    // --- Images
+
+    @Test
+    public void testDownloadImage_derivedOnce() throws Exception {
+        stubFiles();
+        BufferedImage image = new BufferedImage(40, 30, BufferedImage.TYPE_4BYTE_ABGR);
+        image.setRGB(5, 5, 0xFFFF0000);
+        URI uri = createDataUri(image);
+        File destFile = new File(mTempFolder.getRoot(), "image");
+
+        Timing timing = new Timing(new MockClock(), mLogger);
+        GDocHelper helper = new GDocHelper(mLogger, mFileOps, timing,
+                mGDocReader, mBlobStore, mHashStore, new RetryPolicy(mFlags, new MockClock(), mLogger),
+                new ImageFormatPredictor(mFlags, timing));
+        String name = helper.downloadImage(uri, destFile, 0, 0, false /* useCache */);
+        assertThat(new File(mTempFolder.getRoot(), name).isFile()).isTrue();
+        assertThat(timing.getCounter("ImageFormat.Predicted").getCount()).isEqualTo(1);
+
+        // The same source bytes are not decoded nor encoded again.
+        assertThat(helper.downloadImage(uri, destFile, 0, 0, false /* useCache */)).isEqualTo(name);
+        assertThat(timing.getCounter("Html.Image.UnchangedSource").getCount()).isEqualTo(1);
+        assertThat(timing.getCounter("ImageFormat.Predicted").getCount()).isEqualTo(1);
+
+        // Another destination directory gets a link to the same file.
+        File otherDestFile = new File(mTempFolder.getRoot(), "other/image");
+        assertThat(helper.downloadImage(uri, otherDestFile, 0, 0, false /* useCache */)).isEqualTo(name);
+        assertThat(new File(otherDestFile.getParentFile(), name).isFile()).isTrue();
+        assertThat(timing.getCounter("Html.Image.Linked").getCount()).isEqualTo(1);
+        assertThat(timing.getCounter("ImageFormat.Predicted").getCount()).isEqualTo(1);
+
+        // Another size needs another file.
+        assertThat(helper.downloadImage(uri, destFile, 20, 15, false /* useCache */)).isNotEqualTo(name);
+        assertThat(timing.getCounter("ImageFormat.Predicted").getCount()).isEqualTo(2);
+    }
+
+    @Test
+    public void testDownloadDrawing_sameBytes() throws Exception {
+        stubFiles();
+        BufferedImage image = new BufferedImage(40, 30, BufferedImage.TYPE_4BYTE_ABGR);
+        image.setRGB(5, 5, 0xFFFF0000);
+        ByteArrayOutputStream png = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", png);
+        when(mGDocReader.getDataByUrl(any(URL.class), any(HttpValidators.class)))
+                .thenAnswer(invocation -> new ByteArrayInputStream(png.toByteArray()));
+        File destFile = new File(mTempFolder.getRoot(), "drawing");
+
+        Timing timing = new Timing(new MockClock(), mLogger);
+        GDocHelper helper = new GDocHelper(mLogger, mFileOps, timing,
+                mGDocReader, mBlobStore, mHashStore, new RetryPolicy(mFlags, new MockClock(), mLogger),
+                new ImageFormatPredictor(mFlags, timing));
+        String name1 = helper.downloadDrawing("id1", destFile, 0, 0, false /* useCache */);
+        String name2 = helper.downloadDrawing("id2", destFile, 0, 0, false /* useCache */);
+
+        // Each drawing gets its own file even though their bytes are the same.
+        assertThat(name2).isNotEqualTo(name1);
+        assertThat(new File(mTempFolder.getRoot(), name1).isFile()).isTrue();
+        assertThat(new File(mTempFolder.getRoot(), name2).isFile()).isTrue();
+        assertThat(timing.getCounter("Html.Image.UnchangedSource").getCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void testDownloadImage_subsampled() throws Exception {
+        stubFiles();
+        BufferedImage image = new BufferedImage(800, 600, BufferedImage.TYPE_3BYTE_BGR);
+        Graphics2D g = image.createGraphics();
+        g.setColor(Color.GREEN);
+        g.fillOval(100, 100, 600, 400);
+        g.dispose();
+        URI uri = createDataUri(image);
+        File destFile = new File(mTempFolder.getRoot(), "image");
+
+        Timing timing = new Timing(new MockClock(), mLogger);
+        GDocHelper helper = new GDocHelper(mLogger, mFileOps, timing,
+                mGDocReader, mBlobStore, mHashStore, new RetryPolicy(mFlags, new MockClock(), mLogger),
+                new ImageFormatPredictor(mFlags, timing));
+        String name = helper.downloadImage(uri, destFile, 100, 75, false /* useCache */);
+        BufferedImage result = ImageIO.read(new File(mTempFolder.getRoot(), name));
+        assertThat(result.getWidth()).isEqualTo(100);
+        assertThat(result.getHeight()).isEqualTo(75);
+    }
+
+    @Test
+    public void testGetSubsampling() throws Exception {
+        // No target size or no larger than the target.
+        assertThat(GDocHelper.getSubsampling(4000, 3000, 0, 0)).isEqualTo(1);
+        assertThat(GDocHelper.getSubsampling(400, 300, 400, 300)).isEqualTo(1);
+        assertThat(GDocHelper.getSubsampling(400, 300, 800, 0)).isEqualTo(1);
+        assertThat(GDocHelper.getSubsampling(700, 500, 400, 300)).isEqualTo(1);
+        // Keeps at least twice the target pixels.
+        assertThat(GDocHelper.getSubsampling(4000, 3000, 400, 300)).isEqualTo(5);
+        assertThat(GDocHelper.getSubsampling(4000, 3000, 400, 0)).isEqualTo(5);
+        assertThat(GDocHelper.getSubsampling(4000, 3000, 0, 300)).isEqualTo(5);
+        assertThat(GDocHelper.getSubsampling(4000, 3000, 1000, 1000)).isEqualTo(2);
+        assertThat(GDocHelper.getSubsampling(4000, 3000, 1100, 1000)).isEqualTo(1);
+    }
+
+    /** Stubs the hash store in memory and the file operations on the actual files. */
+    private void stubFiles() throws Exception {
+        Map<String, String> hashes = new HashMap<>();
+        when(mHashStore.getString(anyString())).thenAnswer(invocation -> hashes.get(invocation.<String>getArgument(0)));
+        doAnswer(invocation -> hashes.put(invocation.getArgument(0), invocation.getArgument(1)))
+                .when(mHashStore).putString(anyString(), anyString());
+        when(mFileOps.isFile(any())).thenAnswer(invocation -> invocation.<File>getArgument(0).isFile());
+        when(mFileOps.isDir(any())).thenAnswer(invocation -> invocation.<File>getArgument(0).isDirectory());
+        doAnswer(invocation -> invocation.<File>getArgument(0).getParentFile().mkdirs())
+                .when(mFileOps).createParentDirs(any());
+    }
+
+    private static URI createDataUri(BufferedImage image) throws Exception {
+        ByteArrayOutputStream png = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", png);
+        return new URI("data:image/png;base64," + BaseEncoding.base64().encode(png.toByteArray()));
+    }
 }
@@ -0,0 +1,256 @@
+package com.alflabs.rig4.gdoc;
+
+import com.alflabs.rig4.BlobStore;
+import com.alflabs.rig4.HashStore;
+import com.alflabs.rig4.Timing;
+import com.alflabs.rig4.flags.Flags;
+import com.alflabs.rig4.store.FakeStoreFileOps;
+import com.alflabs.utils.ILogger;
+import com.alflabs.utils.MockClock;
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnit;
+import org.mockito.junit.MockitoRule;
+
+import java.io.File;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.Arrays;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.when;
+
+public class GDocReaderTest {
+    public @Rule MockitoRule mMockitoRule = MockitoJUnit.rule();
+    public @Rule TemporaryFolder mTempFolder = new TemporaryFolder();
+
+    @Mock private Flags mFlags;
+    @Mock private ILogger mLogger;
+    @Mock private HashStore mHashStore;
+
+    private final FakeDriveTransport mTransport = new FakeDriveTransport();
+    private final MockClock mClock = new MockClock();
+    private Timing mTiming;
+    private BlobStore mBlobStore;
+
+    @Before
+    public void setUp() throws Exception {
+        mTiming = new Timing(mClock, mLogger);
+        mBlobStore = new BlobStore(mFlags, new FakeStoreFileOps(), mTiming, mLogger);
+
+        mTransport.setResponse("files/doc1",
+                "{\"name\":\"Doc 1\",\"version\":\"1\",\"exportLinks\":{\"text/html\":\"https://example.com/doc1\"}}");
+        mTransport.setResponse("files/doc2",
+                "{\"name\":\"Doc 2\",\"version\":\"5\",\"exportLinks\":{}}");
+    }
+
+    @Test
+    public void testGetMetadataById() throws Exception {
+        GDocReader reader = newReader();
+        GDocMetadata metadata = reader.getMetadataById("doc1");
+
+        assertThat(metadata.getTitle()).isEqualTo("Doc 1");
+        assertThat(metadata.getExportLinks()).containsEntry("text/html", "https://example.com/doc1");
+        assertThat(metadata.getContentHash()).isNotEqualTo(reader.getMetadataById("doc2").getContentHash());
+        assertThat(mTransport.getRequests()).containsExactly("files/doc1", "files/doc2").inOrder();
+    }
+
+    @Test
+    public void testGetMetadataById_fetchedOnce() throws Exception {
+        when(mFlags.getInt("gdoc-prefetch-threads")).thenReturn(2);
+        GDocReader reader = newReader();
+        reader.prefetchMetadata(Arrays.asList("doc1", "doc2"));
+        GDocMetadata metadata = reader.getMetadataById("doc1");
+
+        assertThat(reader.getMetadataById("doc1")).isSameAs(metadata);
+        reader.getMetadataById("doc2");
+        assertThat(mTransport.getRequests()).containsExactly("files/doc1", "files/doc2");
+    }
+
+    @Test
+    public void testPrefetchMetadata() throws Exception {
+        when(mFlags.getInt("gdoc-prefetch-threads")).thenReturn(4);
+        GDocReader reader = newReader();
+        reader.prefetchMetadata(Arrays.asList("doc1", "doc2", "doc1", "missing"));
+        assertThat(mTransport.getRequests()).containsExactly("files/doc1", "files/doc2", "files/missing");
+
+        // The prefetched metadata is returned without any other request, as many times as needed.
+        mTransport.clearRequests();
+        assertThat(reader.getMetadataById("doc1").getTitle()).isEqualTo("Doc 1");
+        assertThat(reader.getMetadataById("doc2").getTitle()).isEqualTo("Doc 2");
+        assertThat(reader.getMetadataById("doc1").getTitle()).isEqualTo("Doc 1");
+        assertThat(mTransport.getRequests()).isEmpty();
+
+        // A failed prefetch is only logged and fetched again when requested.
+        try {
+            reader.getMetadataById("missing");
+            fail("Expected HttpResponseException");
+        } catch (HttpResponseException e) {
+            assertThat(e.getStatusCode()).isEqualTo(404);
+        }
+        assertThat(mTransport.getRequests()).containsExactly("files/missing");
+    }
+
+    @Test
+    public void testPrefetchMetadata_disabled() throws Exception {
+        GDocReader reader = newReader();
+        reader.prefetchMetadata(Arrays.asList("doc1", "doc2"));
+        assertThat(mTransport.getRequests()).isEmpty();
+
+        reader.getMetadataById("doc1");
+        assertThat(mTransport.getRequests()).containsExactly("files/doc1");
+    }
+
+    @Test
+    public void testChangesFeed_disabled() throws Exception {
+        GDocReader reader = newReader();
+        reader.readChanges();
+        reader.getMetadataById("doc1");
+        reader.commitChanges();
+
+        assertThat(mTransport.getRequests()).containsExactly("files/doc1");
+        verify(mHashStore, never()).putString(anyString(), anyString());
+    }
+
+    @Test
+    public void testChangesFeed() throws Exception {
+        when(mFlags.getBool("gdoc-changes-feed")).thenReturn(true);
+        mTransport.setResponse("changes/startPageToken", "{\"startPageToken\":\"10\"}");
+        mTransport.setResponse("changes?pageToken=10",
+                "{\"nextPageToken\":\"10b\",\"changes\":[]}");
+        mTransport.setResponse("changes?pageToken=10b",
+                "{\"newStartPageToken\":\"11\",\"changes\":[{\"fileId\":\"doc2\"}]}");
+
+        // The first run has no page token and checks all the files.
+        GDocReader reader = newReader();
+        reader.readChanges();
+        GDocMetadata metadata1 = reader.getMetadataById("doc1");
+        reader.getMetadataById("doc2");
+        reader.commitChanges();
+        assertThat(mTransport.getRequests())
+                .containsExactly("changes/startPageToken", "files/doc1", "files/doc2").inOrder();
+        verify(mHashStore).putString("gdoc-changes-page-token", "10");
+
+        // The next run only fetches the metadata of the changed files.
+        mTransport.clearRequests();
+        when(mHashStore.getString("gdoc-changes-page-token")).thenReturn("10");
+        reader = newReader();
+        reader.readChanges();
+        assertThat(reader.getMetadataById("doc1")).isEqualTo(metadata1);
+        reader.getMetadataById("doc2");
+        reader.commitChanges();
+        assertThat(mTransport.getRequests())
+                .containsExactly("changes?pageToken=10", "changes?pageToken=10b", "files/doc2").inOrder();
+        verify(mHashStore).putString("gdoc-changes-page-token", "11");
+    }
+
+    @Test
+    public void testChangesFeed_retried() throws Exception {
+        when(mFlags.getBool("gdoc-changes-feed")).thenReturn(true);
+        when(mFlags.getInt("gdoc-retry-max-attempts")).thenReturn(3);
+        when(mFlags.getInt("gdoc-retry-budget")).thenReturn(10);
+        mTransport.setResponse("changes/startPageToken", "{\"startPageToken\":\"10\"}");
+        mTransport.setFailures("changes/startPageToken", 1);
+        mTransport.setResponse("changes?pageToken=10",
+                "{\"newStartPageToken\":\"11\",\"changes\":[{\"fileId\":\"doc2\"}]}");
+        mTransport.setFailures("changes?pageToken=10", 2);
+
+        GDocReader reader = newReader();
+        reader.readChanges();
+        reader.commitChanges();
+        verify(mHashStore).putString("gdoc-changes-page-token", "10");
+
+        when(mHashStore.getString("gdoc-changes-page-token")).thenReturn("10");
+        reader = newReader();
+        reader.readChanges();
+        reader.commitChanges();
+        verify(mHashStore).putString("gdoc-changes-page-token", "11");
+        assertThat(mTransport.getRequests()).containsExactly(
+                "changes/startPageToken", "changes/startPageToken",
+                "changes?pageToken=10", "changes?pageToken=10", "changes?pageToken=10").inOrder();
+    }
+
+    @Test
+    public void testGetDataByUrl_conditional() throws Exception {
+        mTransport.setResponse("/export/doc1", "content v1");
+        mTransport.setETag("/export/doc1", "\"v1\"");
+        URL url = new URL("https://example.com/export/doc1");
+        GDocReader reader = newReader();
+
+        HttpValidators validators = new HttpValidators();
+        try (InputStream stream = reader.getDataByUrl(url, validators)) {
+            assertThat(new String(ByteStreams.toByteArray(stream), Charsets.UTF_8)).isEqualTo("content v1");
+        }
+        assertThat(validators.getETag()).isEqualTo("\"v1\"");
+
+        // Same validators: not modified.
+        validators = HttpValidators.parse(validators.toString());
+        assertThat(reader.getDataByUrl(url, validators)).isNull();
+        assertThat(validators.getETag()).isEqualTo("\"v1\"");
+
+        // The content changed: fetched again with the new validators.
+        mTransport.setResponse("/export/doc1", "content v2");
+        mTransport.setETag("/export/doc1", "\"v2\"");
+        try (InputStream stream = reader.getDataByUrl(url, validators)) {
+            assertThat(new String(ByteStreams.toByteArray(stream), Charsets.UTF_8)).isEqualTo("content v2");
+        }
+        assertThat(validators.getETag()).isEqualTo("\"v2\"");
+    }
+
+    @Test
+    public void testRecordAndReplay() throws Exception {
+        File dir = mTempFolder.newFolder("recording");
+        mTransport.setResponse("/export/doc1", "content v1");
+        URL url = new URL("https://example.com/export/doc1");
+
+        GDocReader reader = newReader(new RecordingTransport(mTransport, dir));
+        GDocMetadata metadata = reader.getMetadataById("doc1");
+        try (InputStream stream = reader.getDataByUrl(url, null /* validators */)) {
+            assertThat(new String(ByteStreams.toByteArray(stream), Charsets.UTF_8)).isEqualTo("content v1");
+        }
+        assertThat(mTransport.getRequests()).containsExactly("files/doc1", "/export/doc1").inOrder();
+
+        // The replay gets the same responses without using the fake Drive.
+        mTransport.clearRequests();
+        long start = mClock.elapsedRealtime();
+        reader = newReader(new ReplayTransport(dir, mClock, 25 /* latencyMs */));
+        assertThat(reader.getMetadataById("doc1")).isEqualTo(metadata);
+        try (InputStream stream = reader.getDataByUrl(url, null /* validators */)) {
+            assertThat(new String(ByteStreams.toByteArray(stream), Charsets.UTF_8)).isEqualTo("content v1");
+        }
+        assertThat(mTransport.getRequests()).isEmpty();
+        assertThat(mClock.elapsedRealtime() - start).isEqualTo(50);
+
+        // Requests which were not recorded fail.
+        try {
+            reader.getMetadataById("doc2");
+            fail("Expected HttpResponseException");
+        } catch (HttpResponseException e) {
+            assertThat(e.getStatusCode()).isEqualTo(404);
+        }
+    }
+
+    private GDocReader newReader() {
+        return newReader(mTransport);
+    }
+
+    private GDocReader newReader(HttpTransport transport) {
+        GDocReader reader = new GDocReader(
+                JacksonFactory.getDefaultInstance(), mFlags, mClock, mTiming, mLogger, mBlobStore, mHashStore,
+                new RetryPolicy(mFlags, mClock, mLogger));
+        reader.initDrive(transport, null);
+        return reader;
+    }
+}
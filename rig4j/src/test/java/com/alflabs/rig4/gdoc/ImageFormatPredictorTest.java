@@ -0,0 +1,120 @@
+package com.alflabs.rig4.gdoc;
+
+import com.alflabs.rig4.Timing;
+import com.alflabs.rig4.flags.Flags;
+import com.alflabs.utils.ILogger;
+import com.alflabs.utils.MockClock;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnit;
+import org.mockito.junit.MockitoRule;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.Mockito.when;
+
+public class ImageFormatPredictorTest {
+    public @Rule MockitoRule mMockitoRule = MockitoJUnit.rule();
+
+    @Mock private Flags mFlags;
+    @Mock private ILogger mLogger;
+
+    private Timing mTiming;
+    private ImageFormatPredictor mPredictor;
+
+    @Before
+    public void setUp() throws Exception {
+        mTiming = new Timing(new MockClock(), mLogger);
+        mPredictor = new ImageFormatPredictor(mFlags, mTiming);
+    }
+
+    @Test
+    public void testPredict_drawing() throws Exception {
+        BufferedImage image = new BufferedImage(400, 300, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        g.setColor(Color.WHITE);
+        g.fillRect(0, 0, 400, 300);
+        g.setColor(Color.BLUE);
+        g.fillRect(50, 50, 100, 80);
+        g.setColor(Color.BLACK);
+        g.drawLine(0, 0, 399, 299);
+        g.drawString("Some label", 200, 100);
+        g.dispose();
+
+        ImageFormatPredictor.Prediction prediction = mPredictor.predict(image);
+        assertThat(prediction.getFormat()).isEqualTo(ImageFormatPredictor.PNG);
+        assertThat(prediction.isConfident()).isTrue();
+        assertThat(mTiming.getCounter("ImageFormat.Predicted").getCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void testPredict_alpha() throws Exception {
+        BufferedImage image = createPhoto(BufferedImage.TYPE_INT_ARGB);
+        image.setRGB(10, 10, 0x80FF0000);
+
+        ImageFormatPredictor.Prediction prediction = mPredictor.predict(image);
+        assertThat(prediction.getFormat()).isEqualTo(ImageFormatPredictor.PNG);
+        assertThat(prediction.isConfident()).isTrue();
+    }
+
+    @Test
+    public void testPredict_photo() throws Exception {
+        ImageFormatPredictor.Prediction prediction = mPredictor.predict(createPhoto(BufferedImage.TYPE_INT_RGB));
+        assertThat(prediction.getFormat()).isEqualTo(ImageFormatPredictor.JPG);
+        assertThat(prediction.isConfident()).isTrue();
+    }
+
+    @Test
+    public void testShouldEncodeBoth() throws Exception {
+        ImageFormatPredictor.Prediction confident = new ImageFormatPredictor.Prediction(ImageFormatPredictor.PNG, true);
+        ImageFormatPredictor.Prediction uncertain = new ImageFormatPredictor.Prediction(ImageFormatPredictor.JPG, false);
+        assertThat(mPredictor.shouldEncodeBoth(confident)).isFalse();
+        assertThat(mPredictor.shouldEncodeBoth(uncertain)).isFalse();
+
+        when(mFlags.getBool("gdoc-image-format-fallback")).thenReturn(true);
+        assertThat(mPredictor.shouldEncodeBoth(confident)).isFalse();
+        assertThat(mPredictor.shouldEncodeBoth(uncertain)).isTrue();
+
+        when(mFlags.getBool("gdoc-image-format-audit")).thenReturn(true);
+        assertThat(mPredictor.shouldEncodeBoth(confident)).isTrue();
+    }
+
+    @Test
+    public void testReport() throws Exception {
+        ImageFormatPredictor.Prediction confident = new ImageFormatPredictor.Prediction(ImageFormatPredictor.PNG, true);
+        ImageFormatPredictor.Prediction uncertain = new ImageFormatPredictor.Prediction(ImageFormatPredictor.JPG, false);
+        mPredictor.report(confident, ImageFormatPredictor.PNG);
+        mPredictor.report(confident, ImageFormatPredictor.JPG);
+        mPredictor.report(uncertain, ImageFormatPredictor.PNG);
+
+        assertThat(mTiming.getCounter("ImageFormat.Confident.Match").getCount()).isEqualTo(1);
+        assertThat(mTiming.getCounter("ImageFormat.Confident.Mismatch").getCount()).isEqualTo(1);
+        assertThat(mTiming.getCounter("ImageFormat.Uncertain.Match").getCount()).isEqualTo(0);
+        assertThat(mTiming.getCounter("ImageFormat.Uncertain.Mismatch").getCount()).isEqualTo(1);
+    }
+
+    /** Creates a gradient with noise, which behaves like a photo. */
+    private static BufferedImage createPhoto(int type) {
+        Random random = new Random(42);
+        BufferedImage image = new BufferedImage(400, 300, type);
+        for (int y = 0; y < 300; y++) {
+            for (int x = 0; x < 400; x++) {
+                int r = clamp(x * 255 / 400 + random.nextInt(41) - 20);
+                int g = clamp(y * 255 / 300 + random.nextInt(41) - 20);
+                int b = clamp(128 + random.nextInt(41) - 20);
+                image.setRGB(x, y, 0xFF000000 | (r << 16) | (g << 8) | b);
+            }
+        }
+        return image;
+    }
+
+    private static int clamp(int value) {
+        return Math.max(0, Math.min(255, value));
+    }
+}
@@ -0,0 +1,102 @@
+package com.alflabs.rig4.gdoc;
+
+import com.alflabs.utils.ILogger;
+import com.alflabs.utils.MockClock;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.http.HttpResponseException;
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnit;
+import org.mockito.junit.MockitoRule;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+public class RateLimiterTest {
+    public @Rule MockitoRule mMockitoRule = MockitoJUnit.rule();
+
+    @Mock private ILogger mLogger;
+
+    private final MockClock mClock = new MockClock();
+
+    @Test
+    public void testDisabled() throws Exception {
+        RateLimiter limiter = new RateLimiter("test", mClock, mLogger, 0);
+        long start = mClock.elapsedRealtime();
+        for (int i = 0; i < 100; i++) {
+            limiter.acquire();
+        }
+        limiter.onRateLimited();
+        assertThat(mClock.elapsedRealtime()).isEqualTo(start);
+    }
+
+    @Test
+    public void testRate() throws Exception {
+        RateLimiter limiter = new RateLimiter("test", mClock, mLogger, 10);
+        long start = mClock.elapsedRealtime();
+
+        // The first second worth of requests is a burst, then one request every 100 ms.
+        for (int i = 0; i < 10; i++) {
+            limiter.acquire();
+        }
+        assertThat(mClock.elapsedRealtime()).isEqualTo(start);
+        for (int i = 0; i < 10; i++) {
+            limiter.acquire();
+        }
+        assertThat(mClock.elapsedRealtime() - start).isEqualTo(1000);
+    }
+
+    @Test
+    public void testAdaptsToRateLimits() throws Exception {
+        RateLimiter limiter = new RateLimiter("test", mClock, mLogger, 16);
+        limiter.onRateLimited();
+        assertThat(limiter.getRate()).isWithin(0.01).of(8);
+        for (int i = 0; i < 10; i++) {
+            limiter.onRateLimited();
+        }
+        assertThat(limiter.getRate()).isWithin(0.01).of(1);
+
+        // The burst was dropped: the next request waits for a token at the reduced rate.
+        long start = mClock.elapsedRealtime();
+        limiter.acquire();
+        assertThat(mClock.elapsedRealtime() - start).isEqualTo(1000);
+
+        for (int i = 0; i < 100; i++) {
+            limiter.onSuccess();
+        }
+        assertThat(limiter.getRate()).isWithin(0.01).of(16);
+    }
+
+    @Test
+    public void testLimit() throws Exception {
+        RateLimiter limiter = new RateLimiter("test", mClock, mLogger, 16);
+        RetryPolicy.Operation<String> operation = limiter.limit(attempt -> {
+            throw new HttpResponseException.Builder(403, "Forbidden", new HttpHeaders())
+                    .setContent("{\"error\":{\"errors\":[{\"reason\":\"userRateLimitExceeded\"}]}}")
+                    .build();
+        });
+        try {
+            operation.run(0);
+            fail("Expected HttpResponseException");
+        } catch (HttpResponseException e) {
+            assertThat(RateLimiter.isRateLimited(e)).isTrue();
+        }
+        assertThat(limiter.getRate()).isWithin(0.01).of(8);
+
+        assertThat(limiter.limit(attempt -> "ok").run(0)).isEqualTo("ok");
+        assertThat(limiter.getRate()).isGreaterThan(8.0);
+    }
+
+    @Test
+    public void testIsRateLimited() throws Exception {
+        assertThat(RateLimiter.isRateLimited(
+                new HttpResponseException.Builder(429, "Too Many Requests", new HttpHeaders()).build())).isTrue();
+        assertThat(RateLimiter.isRateLimited(
+                new HttpResponseException.Builder(403, "Forbidden", new HttpHeaders())
+                        .setContent("{\"error\":{\"errors\":[{\"reason\":\"insufficientPermissions\"}]}}")
+                        .build())).isFalse();
+        assertThat(RateLimiter.isRateLimited(
+                new HttpResponseException.Builder(404, "Not Found", new HttpHeaders()).build())).isFalse();
+    }
+}
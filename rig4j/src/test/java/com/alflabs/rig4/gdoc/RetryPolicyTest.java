@@ -0,0 +1,202 @@
+package com.alflabs.rig4.gdoc;
+
+import com.alflabs.rig4.flags.Flags;
+import com.alflabs.utils.ILogger;
+import com.alflabs.utils.MockClock;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.http.HttpResponseException;
+import com.google.common.collect.Range;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnit;
+import org.mockito.junit.MockitoRule;
+
+import javax.imageio.IIOException;
+import javax.net.ssl.SSLException;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.when;
+
+public class RetryPolicyTest {
+    public @Rule MockitoRule mMockitoRule = MockitoJUnit.rule();
+
+    @Mock private Flags mFlags;
+    @Mock private ILogger mLogger;
+
+    private final MockClock mClock = new MockClock();
+    private final List<Integer> mAttempts = new ArrayList<>();
+    private RetryPolicy mPolicy;
+
+    @Before
+    public void setUp() throws Exception {
+        when(mFlags.getInt("gdoc-retry-max-attempts")).thenReturn(4);
+        when(mFlags.getInt("gdoc-retry-base-delay-ms")).thenReturn(1000);
+        when(mFlags.getInt("gdoc-retry-max-delay-ms")).thenReturn(30000);
+        when(mFlags.getInt("gdoc-retry-budget")).thenReturn(50);
+        when(mFlags.getInt("gdoc-circuit-failures")).thenReturn(0);
+        when(mFlags.getInt("gdoc-circuit-open-seconds")).thenReturn(60);
+        mPolicy = new RetryPolicy(mFlags, mClock, mLogger);
+    }
+
+    @Test
+    public void testRetriesWithBackoff() throws Exception {
+        long start = mClock.elapsedRealtime();
+        String result = mPolicy.run("op", attempt -> {
+            mAttempts.add(attempt);
+            if (attempt < 2) {
+                throw new SocketTimeoutException("failed");
+            }
+            return "ok";
+        });
+
+        assertThat(result).isEqualTo("ok");
+        assertThat(mAttempts).containsExactly(0, 1, 2).inOrder();
+        // Equal jitter waits between 500..1000 then 1000..2000 ms.
+        assertThat(mClock.elapsedRealtime() - start).isIn(Range.closed(1500L, 3000L));
+    }
+
+    @Test
+    public void testMaxAttempts() throws Exception {
+        assertFails(IOException.class);
+        assertThat(mAttempts).containsExactly(0, 1, 2, 3).inOrder();
+    }
+
+    @Test
+    public void testMockedFlags_singleAttempt() throws Exception {
+        when(mFlags.getInt("gdoc-retry-max-attempts")).thenReturn(0);
+        long start = mClock.elapsedRealtime();
+        assertFails(IOException.class);
+        assertThat(mAttempts).containsExactly(0);
+        assertThat(mClock.elapsedRealtime()).isEqualTo(start);
+    }
+
+    @Test
+    public void testClientErrorNotRetried() throws Exception {
+        try {
+            mPolicy.run("op", attempt -> {
+                mAttempts.add(attempt);
+                throw new HttpResponseException.Builder(404, "Not Found", new HttpHeaders()).build();
+            });
+            fail("Expected HttpResponseException");
+        } catch (HttpResponseException e) {
+            assertThat(e.getStatusCode()).isEqualTo(404);
+        }
+        assertThat(mAttempts).containsExactly(0);
+    }
+
+    @Test
+    public void testPermanentErrorNotRetried() throws Exception {
+        try {
+            mPolicy.run("op", attempt -> {
+                mAttempts.add(attempt);
+                throw new FileNotFoundException("missing");
+            });
+            fail("Expected FileNotFoundException");
+        } catch (FileNotFoundException e) {
+            assertThat(e.getMessage()).isEqualTo("missing");
+        }
+        assertThat(mAttempts).containsExactly(0);
+    }
+
+    @Test
+    public void testIsTransient() throws Exception {
+        assertThat(RetryPolicy.isTransient(new SocketTimeoutException())).isTrue();
+        assertThat(RetryPolicy.isTransient(new ConnectException())).isTrue();
+        assertThat(RetryPolicy.isTransient(new UnknownHostException())).isTrue();
+        assertThat(RetryPolicy.isTransient(new SSLException("handshake"))).isTrue();
+        assertThat(RetryPolicy.isTransient(
+                new HttpResponseException.Builder(503, "Unavailable", new HttpHeaders()).build())).isTrue();
+
+        assertThat(RetryPolicy.isTransient(new IOException())).isFalse();
+        assertThat(RetryPolicy.isTransient(new FileNotFoundException())).isFalse();
+        assertThat(RetryPolicy.isTransient(new MalformedURLException())).isFalse();
+        assertThat(RetryPolicy.isTransient(new IIOException("bad image"))).isFalse();
+    }
+
+    @Test
+    public void testBudget() throws Exception {
+        when(mFlags.getInt("gdoc-retry-budget")).thenReturn(4);
+        assertFails(IOException.class);
+        assertThat(mAttempts).hasSize(4);
+
+        // Only one retry left in the budget, then none.
+        mAttempts.clear();
+        assertFails(IOException.class);
+        assertThat(mAttempts).containsExactly(0, 1).inOrder();
+        mAttempts.clear();
+        assertFails(IOException.class);
+        assertThat(mAttempts).containsExactly(0);
+    }
+
+    @Test
+    public void testCircuitBreaker() throws Exception {
+        when(mFlags.getInt("gdoc-circuit-failures")).thenReturn(3);
+        assertFails(IOException.class);
+        assertThat(mAttempts).hasSize(3);
+
+        // The circuit is open: operations fail without being tried.
+        mAttempts.clear();
+        assertFails(RetryPolicy.CircuitOpenException.class);
+        assertThat(mAttempts).isEmpty();
+
+        // Once the delay expired, a trial operation closes the circuit when it succeeds.
+        mClock.sleep(60 * 1000);
+        assertThat(mPolicy.<String>run("op", attempt -> "ok")).isEqualTo("ok");
+        assertThat(mPolicy.<String>run("op", attempt -> "ok")).isEqualTo("ok");
+    }
+
+    @Test
+    public void testCircuitBreaker_trialFails() throws Exception {
+        when(mFlags.getInt("gdoc-circuit-failures")).thenReturn(3);
+        assertFails(IOException.class);
+
+        // A failed trial operation reopens the circuit right away.
+        mClock.sleep(60 * 1000);
+        mAttempts.clear();
+        assertFails(IOException.class);
+        assertThat(mAttempts).containsExactly(0);
+        assertFails(RetryPolicy.CircuitOpenException.class);
+    }
+
+    @Test
+    public void testNestedRunsOnce() throws Exception {
+        List<Integer> inner = new ArrayList<>();
+        String result = mPolicy.run("outer", attempt -> {
+            mAttempts.add(attempt);
+            return mPolicy.run("inner", innerAttempt -> {
+                inner.add(innerAttempt);
+                if (innerAttempt < 1) {
+                    throw new SocketTimeoutException("failed");
+                }
+                return "ok";
+            });
+        });
+
+        assertThat(result).isEqualTo("ok");
+        assertThat(mAttempts).containsExactly(0, 1).inOrder();
+        assertThat(inner).containsExactly(0, 1).inOrder();
+    }
+
+    private void assertFails(Class<? extends IOException> expected) {
+        try {
+            mPolicy.run("op", attempt -> {
+                mAttempts.add(attempt);
+                throw new SocketTimeoutException("failed");
+            });
+            fail("Expected " + expected.getSimpleName());
+        } catch (IOException e) {
+            assertThat(e).isInstanceOf(expected);
+        }
+    }
+}
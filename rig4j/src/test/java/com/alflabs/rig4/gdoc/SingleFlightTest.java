@@ -0,0 +1,102 @@
+package com.alflabs.rig4.gdoc;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+public class SingleFlightTest {
+
+    @Test
+    public void testConcurrentCallersShareLoad() throws Exception {
+        SingleFlight<String, String> flight = new SingleFlight<>(0);
+        AtomicInteger loads = new AtomicInteger();
+        CountDownLatch loading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<String> first = executor.submit(() -> flight.get("key", () -> {
+                loads.incrementAndGet();
+                loading.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                return "value";
+            }));
+            assertThat(loading.await(5, TimeUnit.SECONDS)).isTrue();
+            Future<String> second = executor.submit(() -> flight.get("key", () -> {
+                loads.incrementAndGet();
+                return "other";
+            }));
+
+            // Give the second caller time to join the load in flight.
+            Thread.sleep(50);
+            release.countDown();
+            assertThat(first.get(5, TimeUnit.SECONDS)).isEqualTo("value");
+            assertThat(second.get(5, TimeUnit.SECONDS)).isEqualTo("value");
+            assertThat(loads.get()).isEqualTo(1);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // Nothing is retained: the next caller loads again.
+        assertThat(flight.get("key", () -> "again")).isEqualTo("again");
+    }
+
+    @Test
+    public void testRetained() throws Exception {
+        SingleFlight<String, String> flight = new SingleFlight<>(2);
+        assertThat(flight.get("a", () -> "a1")).isEqualTo("a1");
+        assertThat(flight.get("b", () -> "b1")).isEqualTo("b1");
+        assertThat(flight.get("a", () -> "a2")).isEqualTo("a1");
+
+        // "b" is the least recently used one.
+        assertThat(flight.get("c", () -> "c1")).isEqualTo("c1");
+        assertThat(flight.get("b", () -> "b2")).isEqualTo("b2");
+        assertThat(flight.get("c", () -> "c2")).isEqualTo("c1");
+
+        flight.clear();
+        assertThat(flight.get("c", () -> "c3")).isEqualTo("c3");
+    }
+
+    @Test
+    public void testRetained_byWeight() throws Exception {
+        SingleFlight<String, String> flight = new SingleFlight<>(10, String::length);
+        assertThat(flight.get("a", () -> "aaaa")).isEqualTo("aaaa");
+        assertThat(flight.get("b", () -> "bbbb")).isEqualTo("bbbb");
+        assertThat(flight.get("a", () -> "a2")).isEqualTo("aaaa");
+
+        // Too heavy to ever be retained.
+        assertThat(flight.get("big", () -> "big value 1")).isEqualTo("big value 1");
+        assertThat(flight.get("big", () -> "big value 2")).isEqualTo("big value 2");
+        assertThat(flight.get("b", () -> "b2")).isEqualTo("bbbb");
+
+        // Drops as many of the least recently used ones as needed.
+        assertThat(flight.get("c", () -> "cccccccc")).isEqualTo("cccccccc");
+        assertThat(flight.get("a", () -> "a3")).isEqualTo("a3");
+        assertThat(flight.get("c", () -> "c2")).isEqualTo("cccccccc");
+    }
+
+    @Test
+    public void testFailuresNotRetained() throws Exception {
+        SingleFlight<String, String> flight = new SingleFlight<>(10);
+        try {
+            flight.get("key", () -> { throw new IOException("failed"); });
+            fail("Expected IOException");
+        } catch (IOException e) {
+            assertThat(e.getMessage()).isEqualTo("failed");
+        }
+        assertThat(flight.get("key", () -> "value")).isEqualTo("value");
+    }
+}
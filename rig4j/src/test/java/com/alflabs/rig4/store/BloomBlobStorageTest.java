@@ -0,0 +1,122 @@
+package com.alflabs.rig4.store;
+
+import com.alflabs.rig4.Timing;
+import com.alflabs.utils.ILogger;
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hashing;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnit;
+import org.mockito.junit.MockitoRule;
+
+import java.io.File;
+
+import static com.google.common.truth.Truth.assertThat;
+
+public class BloomBlobStorageTest {
+    public @Rule MockitoRule mMockitoRule = MockitoJUnit.rule();
+    public @Rule TemporaryFolder mTempFolder = new TemporaryFolder();
+
+    @Mock private ILogger mLogger;
+
+    private StoreFileOps mFileOps;
+    private FileBlobStorage mFiles;
+    private File mFilterFile;
+    private Timing.Counter mAvoided;
+    private Timing.Counter mFalsePositives;
+
+    @Before
+    public void setUp() throws Exception {
+        File dir = mTempFolder.newFolder("blobs");
+        mFileOps = new StoreFileOps();
+        mFiles = new FileBlobStorage(mFileOps, mLogger, dir.getPath());
+        mFilterFile = new File(mTempFolder.getRoot(), "blob_store.bloom");
+        mAvoided = new Timing.Counter("avoided");
+        mFalsePositives = new Timing.Counter("false-positives");
+    }
+
+    @Test
+    public void testDefiniteMisses() throws Exception {
+        BloomBlobStorage storage = newStorage();
+        storage.write(key("key1"), bytes("content"));
+
+        assertThat(storage.read(key("key1"))).isEqualTo(bytes("content"));
+        assertThat(mAvoided.getCount()).isEqualTo(0);
+
+        assertThat(storage.read(key("key2"))).isNull();
+        assertThat(storage.openRead(key("key2"))).isNull();
+        assertThat(storage.size(key("key2"))).isEqualTo(0);
+        assertThat(storage.delete(key("key2"))).isFalse();
+        assertThat(mAvoided.getCount()).isEqualTo(4);
+    }
+
+    @Test
+    public void testDeletedKeys() throws Exception {
+        BloomBlobStorage storage = newStorage();
+        storage.write(key("key1"), bytes("content"));
+        assertThat(storage.delete(key("key1"))).isTrue();
+
+        // Deleted keys stay in the filter and are looked up.
+        assertThat(storage.read(key("key1"))).isNull();
+        assertThat(mFalsePositives.getCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void testReopen() throws Exception {
+        BloomBlobStorage storage = newStorage();
+        storage.write(key("key1"), bytes("content"));
+        storage.flush();
+        assertThat(mFilterFile.isFile()).isTrue();
+
+        storage = newStorage();
+        assertThat(storage.read(key("key1"))).isEqualTo(bytes("content"));
+        assertThat(storage.read(key("key2"))).isNull();
+        assertThat(mAvoided.getCount()).isEqualTo(1);
+
+        // The saved filter is discarded as soon as it's out of date.
+        storage.write(key("key2"), bytes("content 2"));
+        assertThat(mFilterFile.exists()).isFalse();
+        storage.flush();
+        assertThat(mFilterFile.isFile()).isTrue();
+    }
+
+    @Test
+    public void testRebuild() throws Exception {
+        // Blobs written without the filter, e.g. before a crash.
+        mFiles.write(key("key1"), bytes("content"));
+
+        BloomBlobStorage storage = newStorage();
+        assertThat(mFilterFile.exists()).isFalse();
+        assertThat(storage.read(key("key1"))).isEqualTo(bytes("content"));
+        assertThat(storage.read(key("key2"))).isNull();
+        assertThat(mAvoided.getCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void testReopen_staleFilter() throws Exception {
+        BloomBlobStorage storage = newStorage();
+        storage.write(key("key1"), bytes("content"));
+        storage.flush();
+
+        // Written without the filter, e.g. by a run with the filter disabled.
+        mFiles.write(key("key2"), bytes("content 2"));
+
+        storage = newStorage();
+        assertThat(storage.read(key("key2"))).isEqualTo(bytes("content 2"));
+    }
+
+    private BloomBlobStorage newStorage() throws Exception {
+        return new BloomBlobStorage(mFileOps, mLogger, mFiles, mFilterFile, mAvoided, mFalsePositives);
+    }
+
+    private static String key(String name) {
+        return Hashing.sha256().hashString(name, Charsets.UTF_8).toString() + "b";
+    }
+
+    private static byte[] bytes(String content) {
+        return content.getBytes(Charsets.UTF_8);
+    }
+}
@@ -0,0 +1,123 @@
+package com.alflabs.rig4.store;
+
+import com.alflabs.utils.ILogger;
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import com.google.common.io.ByteStreams;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnit;
+import org.mockito.junit.MockitoRule;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static com.google.common.truth.Truth.assertThat;
+
+public class CompressedBlobStorageTest {
+    public @Rule MockitoRule mMockitoRule = MockitoJUnit.rule();
+    public @Rule TemporaryFolder mTempFolder = new TemporaryFolder();
+
+    @Mock private ILogger mLogger;
+
+    private SegmentBlobStorage mSegments;
+    private CompressedBlobStorage mStorage;
+
+    @Before
+    public void setUp() throws Exception {
+        mSegments = new SegmentBlobStorage(new StoreFileOps(), mLogger, mTempFolder.newFolder("segments"));
+        mStorage = new CompressedBlobStorage(mSegments, 64);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mStorage.close();
+    }
+
+    @Test
+    public void testCompressed() throws Exception {
+        byte[] content = bytes(Strings.repeat("<span style=\"font-weight:700\">x</span>", 100));
+        mStorage.write("key", content);
+
+        assertThat(mSegments.size("key")).isLessThan((long) content.length);
+        assertThat(mStorage.read("key")).isEqualTo(content);
+        assertThat(toBytes(mStorage.map("key"))).isEqualTo(content);
+        try (InputStream in = mStorage.openRead("key")) {
+            assertThat(ByteStreams.toByteArray(in)).isEqualTo(content);
+        }
+    }
+
+    @Test
+    public void testUncompressed() throws Exception {
+        // Too small to be compressed.
+        mStorage.write("small", bytes("hash"));
+        assertThat(mSegments.read("small")).isEqualTo(bytes("hash"));
+        assertThat(mStorage.read("small")).isEqualTo(bytes("hash"));
+
+        // Does not compress.
+        byte[] random = new byte[1024];
+        new Random(42).nextBytes(random);
+        random[0] = 1;
+        mStorage.write("random", random);
+        assertThat(mSegments.read("random")).isEqualTo(random);
+        assertThat(mStorage.read("random")).isEqualTo(random);
+    }
+
+    @Test
+    public void testLegacy() throws Exception {
+        byte[] content = bytes(Strings.repeat("legacy ", 100));
+        mSegments.write("key", content);
+
+        assertThat(mStorage.read("key")).isEqualTo(content);
+        assertThat(toBytes(mStorage.map("key"))).isEqualTo(content);
+        try (InputStream in = mStorage.openRead("key")) {
+            assertThat(ByteStreams.toByteArray(in)).isEqualTo(content);
+        }
+    }
+
+    @Test
+    public void testRawLookingLikeHeader() throws Exception {
+        byte[] content = new byte[] { (byte) 0xC1, 'R', '4', 'Z', 1, 2, 3 };
+        mStorage.write("key", content);
+        mStorage.write("streamed", new ByteArrayInputStream(content));
+
+        for (String key : new String[] { "key", "streamed" }) {
+            assertThat(mStorage.read(key)).isEqualTo(content);
+            assertThat(toBytes(mStorage.map(key))).isEqualTo(content);
+            try (InputStream in = mStorage.openRead(key)) {
+                assertThat(ByteStreams.toByteArray(in)).isEqualTo(content);
+            }
+        }
+    }
+
+    @Test
+    public void testStreaming() throws Exception {
+        // Large enough to be memory-mapped.
+        byte[] content = bytes(Strings.repeat("streamed ", 10000));
+        mStorage.write("key", new ByteArrayInputStream(content));
+
+        // Stored as-is so that it can be mapped rather than inflated on the heap.
+        assertThat(mSegments.size("key")).isEqualTo((long) content.length);
+        assertThat(mStorage.map("key").isDirect()).isTrue();
+        assertThat(mStorage.read("key")).isEqualTo(content);
+        try (InputStream in = mStorage.openRead("key")) {
+            assertThat(ByteStreams.toByteArray(in)).isEqualTo(content);
+        }
+    }
+
+    private static byte[] toBytes(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+
+    private static byte[] bytes(String content) {
+        return content.getBytes(Charsets.UTF_8);
+    }
+}
@@ -0,0 +1,256 @@
+package com.alflabs.rig4.store;
+
+import com.alflabs.utils.ILogger;
+import com.google.common.base.Charsets;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnit;
+import org.mockito.junit.MockitoRule;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static com.google.common.truth.Truth.assertThat;
+
+public class DedupBlobStorageTest {
+    public @Rule MockitoRule mMockitoRule = MockitoJUnit.rule();
+    public @Rule TemporaryFolder mTempFolder = new TemporaryFolder();
+
+    @Mock private ILogger mLogger;
+
+    private File mDir;
+    private SegmentBlobStorage mSegments;
+
+    @Before
+    public void setUp() throws Exception {
+        mDir = mTempFolder.newFolder("segments");
+        mSegments = new SegmentBlobStorage(new StoreFileOps(), mLogger, mDir);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mSegments.close();
+    }
+
+    @Test
+    public void testSharedPayloads() throws Exception {
+        DedupBlobStorage storage = new DedupBlobStorage(mLogger, mSegments);
+        storage.write("key1", bytes("same content"));
+        storage.write("key2", bytes("same content"));
+        storage.write("key3", bytes("other content"));
+
+        assertThat(storage.read("key1")).isEqualTo(bytes("same content"));
+        assertThat(storage.read("key2")).isEqualTo(bytes("same content"));
+        assertThat(storage.read("key3")).isEqualTo(bytes("other content"));
+        assertThat(storage.keys()).containsExactly("key1", "key2", "key3");
+        assertThat(storage.getPayloadCount()).isEqualTo(2);
+        assertThat(mSegments.keys()).hasSize(2);
+    }
+
+    @Test
+    public void testRefCounts() throws Exception {
+        DedupBlobStorage storage = new DedupBlobStorage(mLogger, mSegments);
+        storage.write("key1", bytes("same content"));
+        storage.write("key2", bytes("same content"));
+
+        // The payload is still referenced by key2.
+        assertThat(storage.delete("key1")).isTrue();
+        assertThat(storage.read("key1")).isNull();
+        assertThat(storage.read("key2")).isEqualTo(bytes("same content"));
+        assertThat(storage.getPayloadCount()).isEqualTo(1);
+
+        // Overwriting the last reference drops the old payload once the table is saved.
+        storage.write("key2", bytes("new content"));
+        assertThat(storage.read("key2")).isEqualTo(bytes("new content"));
+        assertThat(storage.getPayloadCount()).isEqualTo(1);
+        assertThat(payloadKeys()).hasSize(2);
+        storage.flush();
+        assertThat(payloadKeys()).hasSize(1);
+
+        assertThat(storage.delete("key2")).isTrue();
+        assertThat(storage.delete("key2")).isFalse();
+        assertThat(storage.getPayloadCount()).isEqualTo(0);
+        storage.flush();
+        assertThat(payloadKeys()).isEmpty();
+    }
+
+    @Test
+    public void testReopen_afterReleaseWithoutFlush() throws Exception {
+        DedupBlobStorage storage = new DedupBlobStorage(mLogger, mSegments);
+        storage.write("key1", bytes("old content"));
+        storage.flush();
+        storage.write("key1", bytes("new content"));
+        storage.delete("key1");
+
+        // Simulate a crash: the saved table still refers to the old payload, which must still exist.
+        storage = reopenAfterCrash();
+        assertThat(storage.read("key1")).isEqualTo(bytes("old content"));
+
+        storage.write("key2", bytes("old content"));
+        storage.write("key1", bytes("other content"));
+        storage.flush();
+        assertThat(storage.read("key2")).isEqualTo(bytes("old content"));
+    }
+
+    @Test
+    public void testUnchangedContent_notRewritten() throws Exception {
+        DedupBlobStorage storage = new DedupBlobStorage(mLogger, mSegments);
+        storage.write("key1", bytes("content"));
+        storage.flush();
+        long size = segmentsSize();
+
+        storage.write("key1", bytes("content"));
+        storage.flush();
+        assertThat(segmentsSize()).isEqualTo(size);
+    }
+
+    @Test
+    public void testConcurrentWrites() throws Exception {
+        DedupBlobStorage storage = new DedupBlobStorage(mLogger, mSegments);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Void>> futures = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                int thread = t;
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < 50; i++) {
+                        storage.write("key" + thread + "-" + i, bytes("content " + (i % 5)));
+                        assertThat(storage.read("key" + thread + "-" + i)).isEqualTo(bytes("content " + (i % 5)));
+                        if (i % 10 == 0) {
+                            storage.flush();
+                        }
+                    }
+                    return null;
+                }));
+            }
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        storage.flush();
+        assertThat(storage.getPayloadCount()).isEqualTo(5);
+        assertThat(payloadKeys()).hasSize(5);
+        assertThat(storage.keys()).hasSize(8 * 50);
+    }
+
+    @Test
+    public void testReopen() throws Exception {
+        DedupBlobStorage storage = new DedupBlobStorage(mLogger, mSegments);
+        storage.write("key1", bytes("same content"));
+        storage.write("key2", bytes("same content"));
+        storage.flush();
+        storage.close();
+
+        mSegments = new SegmentBlobStorage(new StoreFileOps(), mLogger, mDir);
+        storage = new DedupBlobStorage(mLogger, mSegments);
+        assertThat(storage.keys()).containsExactly("key1", "key2");
+        assertThat(storage.read("key2")).isEqualTo(bytes("same content"));
+        assertThat(storage.getPayloadCount()).isEqualTo(1);
+
+        // Ref counts are rebuilt from the saved table.
+        storage.delete("key1");
+        assertThat(storage.read("key2")).isEqualTo(bytes("same content"));
+    }
+
+    @Test
+    public void testLegacyKeys() throws Exception {
+        mSegments.write("legacy", bytes("legacy content"));
+
+        DedupBlobStorage storage = new DedupBlobStorage(mLogger, mSegments);
+        assertThat(storage.keys()).containsExactly("legacy");
+        assertThat(storage.read("legacy")).isEqualTo(bytes("legacy content"));
+
+        // Rewriting a legacy key moves it into the content-addressed storage. The old copy is
+        // only deleted once the table refers to the new payload.
+        storage.write("legacy", bytes("new content"));
+        assertThat(mSegments.read("legacy")).isEqualTo(bytes("legacy content"));
+        assertThat(storage.read("legacy")).isEqualTo(bytes("new content"));
+        assertThat(storage.keys()).containsExactly("legacy");
+        storage.flush();
+        assertThat(mSegments.read("legacy")).isNull();
+        assertThat(storage.read("legacy")).isEqualTo(bytes("new content"));
+    }
+
+    @Test
+    public void testLegacyKeys_deletedBeforeFlush() throws Exception {
+        mSegments.write("legacy", bytes("legacy content"));
+
+        DedupBlobStorage storage = new DedupBlobStorage(mLogger, mSegments);
+        storage.write("legacy", bytes("new content"));
+        assertThat(storage.delete("legacy")).isTrue();
+
+        // The old copy does not come back.
+        assertThat(storage.read("legacy")).isNull();
+        assertThat(storage.contains("legacy")).isFalse();
+        assertThat(storage.keys()).isEmpty();
+        assertThat(storage.delete("legacy")).isFalse();
+        storage.flush();
+        assertThat(mSegments.keys()).doesNotContain("legacy");
+    }
+
+    @Test
+    public void testReopen_legacyKeyWithoutFlush() throws Exception {
+        mSegments.write("legacy", bytes("legacy content"));
+        DedupBlobStorage storage = new DedupBlobStorage(mLogger, mSegments);
+        storage.write("legacy", bytes("new content"));
+
+        // Simulate a crash: the entry is still readable from its old copy.
+        storage = reopenAfterCrash();
+        assertThat(storage.read("legacy")).isEqualTo(bytes("legacy content"));
+    }
+
+    @Test
+    public void testReopen_deletesOrphanPayloads() throws Exception {
+        DedupBlobStorage storage = new DedupBlobStorage(mLogger, mSegments);
+        storage.write("key1", bytes("content 1"));
+        storage.flush();
+        storage.write("key2", bytes("content 2"));
+        assertThat(payloadKeys()).hasSize(2);
+
+        // Simulate a crash: the payload of key2 is not referenced by the saved table.
+        storage = reopenAfterCrash();
+        assertThat(payloadKeys()).hasSize(1);
+        assertThat(storage.read("key1")).isEqualTo(bytes("content 1"));
+        assertThat(storage.read("key2")).isNull();
+    }
+
+    /** Opens the storage again without flushing the current one, as after a crash. */
+    private DedupBlobStorage reopenAfterCrash() throws Exception {
+        SegmentBlobStorage crashed = mSegments;
+        mSegments = new SegmentBlobStorage(new StoreFileOps(), mLogger, mDir);
+        crashed.close();
+        return new DedupBlobStorage(mLogger, mSegments);
+    }
+
+    private long segmentsSize() {
+        long size = 0;
+        for (File file : mDir.listFiles((dir, name) -> name.startsWith("seg-"))) {
+            size += file.length();
+        }
+        return size;
+    }
+
+    private List<String> payloadKeys() throws Exception {
+        List<String> keys = new ArrayList<>();
+        for (String key : mSegments.keys()) {
+            if (key.endsWith("c")) {
+                keys.add(key);
+            }
+        }
+        return keys;
+    }
+
+    private static byte[] bytes(String content) {
+        return content.getBytes(Charsets.UTF_8);
+    }
+}
@@ -0,0 +1,295 @@
+package com.alflabs.rig4.store;
+
+import com.alflabs.annotations.NonNull;
+import com.google.common.io.ByteStreams;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/** An in-memory {@link StoreFileOps} which never touches the real file system. */
+public class FakeStoreFileOps extends StoreFileOps {
+    private final Map<String, FakeFile> mFiles = new ConcurrentSkipListMap<>();
+
+    @Override
+    public boolean isFile(File file) {
+        return mFiles.containsKey(file.getPath());
+    }
+
+    @Override
+    public boolean isDir(File file) {
+        String prefix = file.getPath() + File.separator;
+        for (String path : mFiles.keySet()) {
+            if (path.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void createParentDirs(File file) {
+        // Directories are implied by the paths of the files.
+    }
+
+    @Override
+    public void writeBytes(byte[] content, File file) {
+        mFiles.put(file.getPath(), new FakeFile(content.clone()));
+    }
+
+    @Override
+    public byte[] readBytes(File file) throws IOException {
+        return get(file).toByteArray();
+    }
+
+    @Override
+    public long length(@NonNull File file) {
+        FakeFile content = mFiles.get(file.getPath());
+        return content == null ? 0 : content.size();
+    }
+
+    @Override
+    public boolean delete(@NonNull File file) {
+        return mFiles.remove(file.getPath()) != null;
+    }
+
+    @Override
+    public void writeAtomically(@NonNull byte[] content, @NonNull File file, boolean sync) {
+        writeBytes(content, file);
+    }
+
+    @Override
+    public long writeAtomically(@NonNull InputStream content, @NonNull File file) throws IOException {
+        byte[] bytes = ByteStreams.toByteArray(content);
+        writeBytes(bytes, file);
+        return bytes.length;
+    }
+
+    @NonNull
+    @Override
+    public InputStream openRead(@NonNull File file) throws IOException {
+        return new ByteArrayInputStream(readBytes(file));
+    }
+
+    @NonNull
+    @Override
+    public ByteBuffer map(@NonNull File file) throws IOException {
+        return ByteBuffer.wrap(readBytes(file)).asReadOnlyBuffer();
+    }
+
+    @NonNull
+    @Override
+    public FileChannel openChannel(@NonNull File file) {
+        mFiles.putIfAbsent(file.getPath(), new FakeFile(new byte[0]));
+        return new FakeFileChannel(file);
+    }
+
+    @NonNull
+    @Override
+    public ByteBuffer map(@NonNull FileChannel channel, long position, int size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException();
+            }
+        }
+        buffer.flip();
+        return buffer.asReadOnlyBuffer();
+    }
+
+    @NonNull
+    @Override
+    public List<String> list(@NonNull File dir) {
+        List<String> names = new ArrayList<>();
+        for (String path : mFiles.keySet()) {
+            File file = new File(path);
+            if (dir.getPath().equals(file.getParent())) {
+                names.add(file.getName());
+            }
+        }
+        return names;
+    }
+
+    @NonNull
+    private FakeFile get(@NonNull File file) throws IOException {
+        FakeFile content = mFiles.get(file.getPath());
+        if (content == null) {
+            throw new FileNotFoundException(file.getPath());
+        }
+        return content;
+    }
+
+    /** The content of an in-memory file, which grows like an array list when written to. */
+    private static class FakeFile {
+        private byte[] mBytes;
+        private int mSize;
+
+        FakeFile(@NonNull byte[] bytes) {
+            mBytes = bytes;
+            mSize = bytes.length;
+        }
+
+        synchronized int size() {
+            return mSize;
+        }
+
+        @NonNull
+        synchronized byte[] toByteArray() {
+            return Arrays.copyOf(mBytes, mSize);
+        }
+
+        synchronized int read(@NonNull ByteBuffer dst, long position) {
+            if (position >= mSize) {
+                return -1;
+            }
+            int n = (int) Math.min(dst.remaining(), mSize - position);
+            dst.put(mBytes, (int) position, n);
+            return n;
+        }
+
+        synchronized int write(@NonNull ByteBuffer src, long position) {
+            int n = src.remaining();
+            int end = (int) (position + n);
+            if (end > mBytes.length) {
+                mBytes = Arrays.copyOf(mBytes, Math.max(end, 2 * mBytes.length));
+            }
+            src.get(mBytes, (int) position, n);
+            mSize = Math.max(mSize, end);
+            return n;
+        }
+
+        synchronized void truncate(long size) {
+            mSize = (int) Math.min(mSize, size);
+        }
+    }
+
+    /** A channel on one of the in-memory files. Mapping and locking are not supported. */
+    private class FakeFileChannel extends FileChannel {
+        private final File mFile;
+        private long mPosition;
+
+        FakeFileChannel(@NonNull File file) {
+            mFile = file;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            int n = read(dst, mPosition);
+            if (n > 0) {
+                mPosition += n;
+            }
+            return n;
+        }
+
+        @Override
+        public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+            long total = 0;
+            for (int i = offset; i < offset + length; i++) {
+                int n = read(dsts[i]);
+                if (n < 0) {
+                    return total == 0 ? -1 : total;
+                }
+                total += n;
+            }
+            return total;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            int n = write(src, mPosition);
+            mPosition += n;
+            return n;
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+            long total = 0;
+            for (int i = offset; i < offset + length; i++) {
+                total += write(srcs[i]);
+            }
+            return total;
+        }
+
+        @Override
+        public long position() {
+            return mPosition;
+        }
+
+        @Override
+        public FileChannel position(long newPosition) {
+            mPosition = newPosition;
+            return this;
+        }
+
+        @Override
+        public long size() throws IOException {
+            return get(mFile).size();
+        }
+
+        @Override
+        public FileChannel truncate(long size) throws IOException {
+            get(mFile).truncate(size);
+            mPosition = Math.min(mPosition, size);
+            return this;
+        }
+
+        @Override
+        public void force(boolean metaData) {
+            // Nothing to sync.
+        }
+
+        @Override
+        public long transferTo(long position, long count, WritableByteChannel target) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public long transferFrom(ReadableByteChannel src, long position, long count) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int read(ByteBuffer dst, long position) throws IOException {
+            return get(mFile).read(dst, position);
+        }
+
+        @Override
+        public int write(ByteBuffer src, long position) throws IOException {
+            return get(mFile).write(src, position);
+        }
+
+        @Override
+        public MappedByteBuffer map(MapMode mode, long position, long size) {
+            throw new UnsupportedOperationException("Use FakeStoreFileOps.map() instead");
+        }
+
+        @Override
+        public FileLock lock(long position, long size, boolean shared) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public FileLock tryLock(long position, long size, boolean shared) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        protected void implCloseChannel() {
+            // Nothing to release.
+        }
+    }
+}
@@ -0,0 +1,298 @@
+package com.alflabs.rig4.store;
+
+import com.alflabs.utils.ILogger;
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import com.google.common.io.ByteStreams;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnit;
+import org.mockito.junit.MockitoRule;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static com.google.common.truth.Truth.assertThat;
+
+public class SegmentBlobStorageTest {
+    public @Rule MockitoRule mMockitoRule = MockitoJUnit.rule();
+    public @Rule TemporaryFolder mTempFolder = new TemporaryFolder();
+
+    @Mock private ILogger mLogger;
+
+    private File mDir;
+    private final List<SegmentBlobStorage> mOpened = new ArrayList<>();
+
+    @Before
+    public void setUp() throws Exception {
+        mDir = mTempFolder.newFolder("segments");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (SegmentBlobStorage storage : mOpened) {
+            storage.close();
+        }
+    }
+
+    @Test
+    public void testReadWriteDelete() throws Exception {
+        SegmentBlobStorage storage = open(SegmentBlobStorage.DEFAULT_SEGMENT_SIZE);
+        assertThat(storage.read("key1")).isNull();
+
+        storage.write("key1", bytes("content 1"));
+        storage.write("key2", bytes("content 2"));
+        assertThat(storage.read("key1")).isEqualTo(bytes("content 1"));
+        assertThat(storage.read("key2")).isEqualTo(bytes("content 2"));
+        assertThat(storage.keys()).containsExactly("key1", "key2");
+
+        storage.write("key1", bytes("content 1 updated"));
+        assertThat(storage.read("key1")).isEqualTo(bytes("content 1 updated"));
+
+        assertThat(storage.delete("key2")).isTrue();
+        assertThat(storage.delete("key2")).isFalse();
+        assertThat(storage.read("key2")).isNull();
+        assertThat(storage.contains("key1")).isTrue();
+        assertThat(storage.contains("key2")).isFalse();
+        assertThat(storage.keys()).containsExactly("key1");
+    }
+
+    @Test
+    public void testReopen_withIndex() throws Exception {
+        SegmentBlobStorage storage = open(SegmentBlobStorage.DEFAULT_SEGMENT_SIZE);
+        storage.write("key1", bytes("content 1"));
+        storage.write("key2", bytes("content 2"));
+        storage.delete("key2");
+        storage.flush();
+        assertThat(new File(mDir, "index.dat").isFile()).isTrue();
+
+        // Records written after the index was saved are recovered from the segment tail.
+        storage.write("key3", bytes("content 3"));
+
+        storage = open(SegmentBlobStorage.DEFAULT_SEGMENT_SIZE);
+        assertThat(storage.keys()).containsExactly("key1", "key3");
+        assertThat(storage.read("key1")).isEqualTo(bytes("content 1"));
+        assertThat(storage.read("key3")).isEqualTo(bytes("content 3"));
+    }
+
+    @Test
+    public void testReopen_withoutIndex() throws Exception {
+        SegmentBlobStorage storage = open(SegmentBlobStorage.DEFAULT_SEGMENT_SIZE);
+        storage.write("key1", bytes("content 1"));
+        storage.write("key1", bytes("content 1 updated"));
+        storage.write("key2", bytes("content 2"));
+        storage.delete("key2");
+
+        storage = open(SegmentBlobStorage.DEFAULT_SEGMENT_SIZE);
+        assertThat(storage.keys()).containsExactly("key1");
+        assertThat(storage.read("key1")).isEqualTo(bytes("content 1 updated"));
+    }
+
+    @Test
+    public void testReopen_tornTail() throws Exception {
+        SegmentBlobStorage storage = open(SegmentBlobStorage.DEFAULT_SEGMENT_SIZE);
+        storage.write("key1", bytes("content 1"));
+        storage.write("key2", bytes("content 2"));
+
+        // Simulate a crash in the middle of writing the last record.
+        File segment = new File(mDir, "seg-000001.dat");
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            file.setLength(file.length() - 3);
+        }
+
+        storage = open(SegmentBlobStorage.DEFAULT_SEGMENT_SIZE);
+        assertThat(storage.keys()).containsExactly("key1");
+        assertThat(storage.read("key1")).isEqualTo(bytes("content 1"));
+
+        // New records are appended after the last valid one.
+        storage.write("key2", bytes("content 2 again"));
+        storage = open(SegmentBlobStorage.DEFAULT_SEGMENT_SIZE);
+        assertThat(storage.read("key2")).isEqualTo(bytes("content 2 again"));
+    }
+
+    @Test
+    public void testCompaction() throws Exception {
+        // Tiny segments so that each one only holds a couple of records.
+        SegmentBlobStorage storage = open(100);
+        storage.write("stable", bytes("stable content"));
+        for (int i = 0; i < 20; i++) {
+            storage.write("key", bytes("content " + i));
+        }
+        storage.flush();
+
+        assertThat(storage.read("stable")).isEqualTo(bytes("stable content"));
+        assertThat(storage.read("key")).isEqualTo(bytes("content 19"));
+        // All the dead segments have been compacted away.
+        assertThat(mDir.list((dir, name) -> name.startsWith("seg-")).length).isLessThan(4);
+
+        storage = open(100);
+        assertThat(storage.keys()).containsExactly("key", "stable");
+        assertThat(storage.read("stable")).isEqualTo(bytes("stable content"));
+        assertThat(storage.read("key")).isEqualTo(bytes("content 19"));
+    }
+
+    @Test
+    public void testCompaction_keepsTombstones() throws Exception {
+        SegmentBlobStorage storage = open(100);
+        // Segment 1 stays mostly live, so it is not compacted and keeps the old "deleted" record.
+        storage.write("stable", bytes(Strings.repeat("s", 45)));
+        storage.write("deleted", bytes("content"));
+        // The tombstone goes in segment 2, which then gets compacted.
+        storage.delete("deleted");
+        for (int i = 0; i < 10; i++) {
+            storage.write("key", bytes("content " + i));
+        }
+        storage.flush();
+        assertThat(new File(mDir, "seg-000001.dat").isFile()).isTrue();
+        assertThat(new File(mDir, "seg-000002.dat").exists()).isFalse();
+
+        // Without index, the segments are scanned in order and the tombstone must still win.
+        storage.close();
+        assertThat(new File(mDir, "index.dat").delete()).isTrue();
+        storage = open(100);
+        assertThat(storage.keys()).containsExactly("key", "stable");
+        assertThat(storage.read("deleted")).isNull();
+    }
+
+    @Test(timeout = 30000)
+    public void testCompaction_tombstonesDoNotGrow() throws Exception {
+        SegmentBlobStorage storage = open(200);
+        // The first segments stay mostly live and keep the old records, so the tombstones remain
+        // live. There are more tombstones than fit in a segment.
+        for (int s = 0; s < 5; s++) {
+            storage.write("stable" + s, bytes(Strings.repeat("s", 100)));
+            for (int d = 0; d < 4; d++) {
+                storage.write("d" + s + d, bytes("x"));
+            }
+        }
+        for (int s = 0; s < 5; s++) {
+            for (int d = 0; d < 4; d++) {
+                storage.delete("d" + s + d);
+            }
+        }
+
+        List<Long> sizes = new ArrayList<>();
+        for (int round = 0; round < 20; round++) {
+            for (int i = 0; i < 20; i++) {
+                storage.write("key", bytes("content " + i));
+            }
+            storage.flush();
+            sizes.add(segmentsSize());
+        }
+        assertThat(new File(mDir, "seg-000001.dat").isFile()).isTrue();
+        // The later rounds don't leave more data behind than the first ones.
+        assertThat(Collections.max(sizes.subList(10, 20))).isAtMost(Collections.max(sizes.subList(0, 10)));
+        assertThat(Collections.max(sizes)).isAtMost(8 * 200L);
+
+        storage.close();
+        assertThat(new File(mDir, "index.dat").delete()).isTrue();
+        storage = open(200);
+        assertThat(storage.keys()).containsExactly("key", "stable0", "stable1", "stable2", "stable3", "stable4");
+
+        // Once the first segments are compacted, the tombstones are not needed anymore and get dropped.
+        for (int s = 0; s < 5; s++) {
+            storage.delete("stable" + s);
+        }
+        for (int i = 0; i < 20; i++) {
+            storage.write("key", bytes("content " + i));
+        }
+        storage.flush();
+        assertThat(new File(mDir, "seg-000001.dat").exists()).isFalse();
+        storage.close();
+        assertThat(new File(mDir, "index.dat").delete()).isTrue();
+        storage = open(200);
+        assertThat(storage.keys()).containsExactly("key");
+        assertThat(segmentsSize()).isAtMost(2 * 200L);
+    }
+
+    @Test
+    public void testFakeFileOps() throws Exception {
+        FakeStoreFileOps fileOps = new FakeStoreFileOps();
+        SegmentBlobStorage storage = open(fileOps, 100);
+        storage.write("stable", bytes(Strings.repeat("s", 45)));
+        storage.write("deleted", bytes("content"));
+        storage.delete("deleted");
+        for (int i = 0; i < 10; i++) {
+            storage.write("key", bytes("content " + i));
+        }
+        storage.write("streamed", new ByteArrayInputStream(bytes("streamed content")));
+        storage.flush();
+        assertThat(storage.read("key")).isEqualTo(bytes("content 9"));
+        assertThat(fileOps.isFile(new File(mDir, "seg-000002.dat"))).isFalse();
+        assertThat(fileOps.list(mDir)).contains("index.dat");
+        assertThat(mDir.list()).isEmpty();
+
+        storage.close();
+        storage = open(fileOps, 100);
+        assertThat(storage.keys()).containsExactly("key", "stable", "streamed");
+        assertThat(storage.read("streamed")).isEqualTo(bytes("streamed content"));
+
+        storage.close();
+        assertThat(fileOps.delete(new File(mDir, "index.dat"))).isTrue();
+        storage = open(fileOps, 100);
+        assertThat(storage.keys()).containsExactly("key", "stable", "streamed");
+        assertThat(storage.read("deleted")).isNull();
+    }
+
+    @Test
+    public void testStreaming() throws Exception {
+        // Large enough to be memory-mapped.
+        byte[] large = new byte[200 * 1024];
+        new Random(42).nextBytes(large);
+
+        SegmentBlobStorage storage = open(SegmentBlobStorage.DEFAULT_SEGMENT_SIZE);
+        storage.write("large", new ByteArrayInputStream(large));
+        storage.write("small", new ByteArrayInputStream(bytes("small content")));
+        assertThat(storage.size("large")).isEqualTo(large.length);
+        assertThat(mDir.list((dir, name) -> name.startsWith("spool-"))).isEmpty();
+
+        ByteBuffer buffer = storage.map("large");
+        assertThat(buffer.isReadOnly()).isTrue();
+        byte[] actual = new byte[buffer.remaining()];
+        buffer.get(actual);
+        assertThat(actual).isEqualTo(large);
+
+        try (InputStream stream = storage.openRead("small")) {
+            assertThat(ByteStreams.toByteArray(stream)).isEqualTo(bytes("small content"));
+        }
+        assertThat(storage.openRead("missing")).isNull();
+
+        // Streamed records are regular records, with a valid CRC for the tail scan.
+        storage = open(SegmentBlobStorage.DEFAULT_SEGMENT_SIZE);
+        assertThat(storage.read("large")).isEqualTo(large);
+        assertThat(storage.read("small")).isEqualTo(bytes("small content"));
+    }
+
+    private SegmentBlobStorage open(long maxSegmentSize) throws Exception {
+        return open(new StoreFileOps(), maxSegmentSize);
+    }
+
+    private SegmentBlobStorage open(StoreFileOps fileOps, long maxSegmentSize) throws Exception {
+        SegmentBlobStorage storage = new SegmentBlobStorage(fileOps, mLogger, mDir, maxSegmentSize);
+        mOpened.add(storage);
+        return storage;
+    }
+
+    private long segmentsSize() {
+        long size = 0;
+        for (File file : mDir.listFiles((dir, name) -> name.startsWith("seg-"))) {
+            size += file.length();
+        }
+        return size;
+    }
+
+    private static byte[] bytes(String content) {
+        return content.getBytes(Charsets.UTF_8);
+    }
+}